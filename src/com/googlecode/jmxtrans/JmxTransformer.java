@@ -7,9 +7,14 @@ import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -35,12 +40,17 @@ import org.slf4j.LoggerFactory;
 
 import com.googlecode.jmxtrans.jmx.ManagedGenericKeyedObjectPool;
 import com.googlecode.jmxtrans.jmx.ManagedJmxTransformerProcess;
+import com.googlecode.jmxtrans.jmx.ManagedMBeanMetadataCache;
+import com.googlecode.jmxtrans.jmx.ManagedObject;
+import com.googlecode.jmxtrans.jmx.ManagedQueryExecutor;
 import com.googlecode.jmxtrans.jobs.ServerJob;
+import com.googlecode.jmxtrans.jobs.VirtualThreadEngine;
 import com.googlecode.jmxtrans.model.JmxProcess;
 import com.googlecode.jmxtrans.model.Query;
 import com.googlecode.jmxtrans.model.Server;
 import com.googlecode.jmxtrans.util.JmxUtils;
 import com.googlecode.jmxtrans.util.LifecycleException;
+import com.googlecode.jmxtrans.util.NamedThreadFactory;
 import com.googlecode.jmxtrans.util.OptionsException;
 import com.googlecode.jmxtrans.util.ValidationException;
 import com.googlecode.jmxtrans.util.WatchDir;
@@ -57,6 +67,9 @@ public class JmxTransformer implements WatchedCallback {
 
 	private static final Logger log = LoggerFactory.getLogger(JmxTransformer.class);
 
+	/** Idle query threads are let go after five minutes. */
+	private static final long QUERY_THREAD_KEEP_ALIVE = 1000 * 60 * 5;
+
 	/** The Quartz server properties. */
 	private String quartPropertiesFile = null;
 
@@ -72,6 +85,14 @@ public class JmxTransformer implements WatchedCallback {
 
 	private Scheduler serverScheduler;
 
+	/** Run the server jobs and their queries on virtual threads. */
+	private boolean virtualThreads = false;
+
+	/** With virtual threads, how many servers may be collected at once. */
+	private int maxInFlightServers = 0;
+
+	private VirtualThreadEngine engine;
+
 	private WatchDir watcher;
 
 	/**
@@ -80,6 +101,9 @@ public class JmxTransformer implements WatchedCallback {
 	private Map<String, KeyedObjectPool> poolMap;
 	private Map<String, ManagedGenericKeyedObjectPool> poolMBeans;
 
+	/** Per server MBeans, like the metadata cache statistics. */
+	private Map<Server, List<ManagedObject>> serverMBeans = new HashMap<Server, List<ManagedObject>>();
+
 	private List<Server> masterServersList = new ArrayList<Server>();
 
 	/** The shutdown hook. */
@@ -138,6 +162,8 @@ public class JmxTransformer implements WatchedCallback {
 			try {
 				this.startupScheduler();
 
+				this.startupEngine();
+
 				this.startupWatchdir();
 
 				this.setupObjectPooling();
@@ -226,18 +252,35 @@ public class JmxTransformer implements WatchedCallback {
 			}
 			this.poolMap = null;
 
+			for (List<ManagedObject> mbeans : this.serverMBeans.values()) {
+				for (ManagedObject mbean : mbeans) {
+					JmxUtils.unregisterJMX(mbean);
+				}
+			}
+			this.serverMBeans.clear();
+
+			// With virtual threads the jobs only handed the servers over, wait
+			// for the runs themselves.
+			if (this.engine != null) {
+				try {
+					this.engine.shutdown(60, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					log.error(e.getMessage(), e);
+				}
+				this.engine = null;
+				log.debug("Shutdown virtual thread engine");
+			}
+
+			// Shutdown the query executors, the running jobs are done so they
+			// are idle by now.
+			for (Server server : this.masterServersList) {
+				this.shutdownQueryExecutor(server);
+			}
+
 			// Shutdown the outputwriters
 			for (Server server : this.masterServersList) {
-				for (Query query : server.getQueries()) {
-					for (OutputWriter writer : query.getOutputWriters()) {
-						try {
-							writer.stop();
-							log.debug("Stopped writer: " + writer.getClass().getSimpleName() + " for query: " + query);
-						} catch (LifecycleException ex) {
-							log.error("Error stopping writer: " + writer.getClass().getSimpleName() + " for query: " + query);
-						}
-					}
-				}
+				server.getMetadataCache().unbind();
+				this.stopWriters(server);
 			}
 			this.masterServersList.clear();
 
@@ -301,12 +344,73 @@ public class JmxTransformer implements WatchedCallback {
 	 */
 	private void startupSystem() throws LifecycleException {
 		// process all the json files into Server objects
-		this.processFilesIntoServers(this.getJsonFiles());
+		List<Server> configured = new ArrayList<Server>();
+		boolean complete = this.processFilesIntoServers(this.getJsonFiles(), configured);
+
+		// A file that couldn't be read may still list servers, keep them all
+		// until it is fixed.
+		if (complete) {
+			this.removeServers(configured);
+		}
+		JmxUtils.mergeServerLists(this.masterServersList, configured);
 
 		// process the servers into jobs
 		this.processServersIntoJobs(this.serverScheduler);
 	}
 
+	/**
+	 * Stops what the servers that are no longer configured were running:
+	 * their query executor, their MBeans, their metadata cache and the
+	 * writers of their queries. Their jobs are deleted by the reload already.
+	 */
+	private void removeServers(List<Server> configured) {
+		for (Iterator<Server> it = this.masterServersList.iterator(); it.hasNext();) {
+			Server server = it.next();
+			if (configured.contains(server)) {
+				continue;
+			}
+			it.remove();
+			this.shutdownQueryExecutor(server);
+			List<ManagedObject> mbeans = this.serverMBeans.remove(server);
+			if (mbeans != null) {
+				for (ManagedObject mbean : mbeans) {
+					try {
+						JmxUtils.unregisterJMX(mbean);
+					} catch (Exception ex) {
+						log.warn("Unable to unregister " + mbean.getClass().getSimpleName() + " of server: " + server, ex);
+					}
+				}
+			}
+			server.getMetadataCache().unbind();
+			this.stopWriters(server);
+			log.info("Removed server: " + server);
+		}
+	}
+
+	/** */
+	private void shutdownQueryExecutor(Server server) {
+		ExecutorService executor = server.getQueryExecutor();
+		server.setQueryExecutor(null);
+		if (executor instanceof ThreadPoolExecutor) {
+			executor.shutdown();
+			log.debug("Shutdown query executor for server: " + server);
+		}
+	}
+
+	/** */
+	private void stopWriters(Server server) {
+		for (Query query : server.getQueries()) {
+			for (OutputWriter writer : query.getOutputWriters()) {
+				try {
+					writer.stop();
+					log.debug("Stopped writer: " + writer.getClass().getSimpleName() + " for query: " + query);
+				} catch (LifecycleException ex) {
+					log.error("Error stopping writer: " + writer.getClass().getSimpleName() + " for query: " + query);
+				}
+			}
+		}
+	}
+
 	/**
 	 * Override this method if you'd like to add your own object pooling.
 	 *
@@ -336,6 +440,8 @@ public class JmxTransformer implements WatchedCallback {
 
 	/** */
 	private void validateSetup(Query query) throws ValidationException {
+		query.compile();
+
 		List<OutputWriter> writers = query.getOutputWriters();
 		if (writers != null) {
 			for (OutputWriter w : writers) {
@@ -345,10 +451,12 @@ public class JmxTransformer implements WatchedCallback {
 	}
 
 	/**
-	 * Processes all the json files and manages the dedup process
+	 * Processes all the json files into servers and manages the dedup process
+	 *
+	 * @return whether every file could be read
 	 */
-	private void processFilesIntoServers(List<File> jsonFiles) throws LifecycleException {
-
+	private boolean processFilesIntoServers(List<File> jsonFiles, List<Server> servers) throws LifecycleException {
+		boolean complete = true;
 		for (File jsonFile : jsonFiles) {
 			JmxProcess process;
 			try {
@@ -356,17 +464,30 @@ public class JmxTransformer implements WatchedCallback {
 				if (log.isDebugEnabled()) {
 					log.debug("Loaded file: " + jsonFile.getAbsolutePath());
 				}
-				JmxUtils.mergeServerLists(this.masterServersList, process.getServers());
+				JmxUtils.mergeServerLists(servers, process.getServers());
 			} catch (Exception ex) {
 				if (isContinueOnJsonError()) {
 					throw new LifecycleException("Error parsing json: " + jsonFile, ex);
 				} else {
 					// error parsing one file should not prevent the startup of JMXTrans
 					log.error("Error parsing json: " + jsonFile, ex);
+					complete = false;
 				}
 			}
 		}
+		return complete;
+	}
 
+	/**
+	 * Creates the engine running the server jobs on virtual threads, if asked
+	 * to.
+	 */
+	private void startupEngine() {
+		if (this.virtualThreads) {
+			this.engine = new VirtualThreadEngine(this.maxInFlightServers);
+			log.info("Running server jobs on " + (this.engine.isVirtual() ? "virtual" : "platform") + " threads, max in flight: "
+					+ ((this.maxInFlightServers > 0) ? String.valueOf(this.maxInFlightServers) : "unlimited"));
+		}
 	}
 
 	/**
@@ -392,6 +513,9 @@ public class JmxTransformer implements WatchedCallback {
 				// query.
 				this.validateSetup(server.getQueries());
 
+				this.setupQueryExecutor(server);
+				this.registerServerMBeans(server);
+
 				// Now schedule the jobs for execution.
 				this.scheduleJob(scheduler, server);
 			} catch (ParseException ex) {
@@ -404,6 +528,70 @@ public class JmxTransformer implements WatchedCallback {
 		}
 	}
 
+	/**
+	 * Creates, resizes or removes the executor running the queries of a server
+	 * so that it matches the current configuration. The executor is kept from
+	 * one run to the next and only shut down by stop(), or once the server is
+	 * no longer configured; its idle threads go away after a while on their
+	 * own. With virtual threads, the servers share
+	 * the executor of the engine instead.
+	 */
+	private void setupQueryExecutor(Server server) {
+		int numThreads = server.getQueryThreadCount();
+		ExecutorService current = server.getQueryExecutor();
+		ThreadPoolExecutor executor = (current instanceof ThreadPoolExecutor) ? (ThreadPoolExecutor) current : null;
+
+		if ((numThreads <= 1) || (this.engine != null)) {
+			if (executor != null) {
+				executor.shutdown();
+			}
+			// The queries run in the job thread, or on the engine's threads.
+			server.setQueryExecutor((numThreads > 1) ? this.engine.getQueryExecutor() : null);
+			return;
+		}
+
+		if (executor == null) {
+			executor = new ThreadPoolExecutor(numThreads, numThreads, QUERY_THREAD_KEEP_ALIVE, TimeUnit.MILLISECONDS,
+					new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("jmxtrans-query-" + server.getHost() + ":"
+							+ server.getPort()));
+			executor.allowCoreThreadTimeOut(true);
+			server.setQueryExecutor(executor);
+			log.debug("Started " + numThreads + " query threads for server: " + server);
+		} else if (executor.getMaximumPoolSize() != numThreads) {
+			// The core size can't go above the maximum, so the order depends
+			// on the direction.
+			if (numThreads > executor.getMaximumPoolSize()) {
+				executor.setMaximumPoolSize(numThreads);
+				executor.setCorePoolSize(numThreads);
+			} else {
+				executor.setCorePoolSize(numThreads);
+				executor.setMaximumPoolSize(numThreads);
+			}
+			log.debug("Resized query threads to " + numThreads + " for server: " + server);
+		}
+	}
+
+	/**
+	 * Exposes the per server statistics over JMX. Servers survive a reload of
+	 * the configuration, so this only registers the ones we haven't seen yet.
+	 */
+	private void registerServerMBeans(Server server) {
+		if (this.serverMBeans.containsKey(server)) {
+			return;
+		}
+		List<ManagedObject> mbeans = new ArrayList<ManagedObject>();
+		mbeans.add(new ManagedMBeanMetadataCache(server));
+		mbeans.add(new ManagedQueryExecutor(server));
+		for (ManagedObject mbean : mbeans) {
+			try {
+				JmxUtils.registerJMX(mbean);
+			} catch (Exception ex) {
+				log.warn("Unable to register " + mbean.getClass().getSimpleName() + " of server: " + server, ex);
+			}
+		}
+		this.serverMBeans.put(server, mbeans);
+	}
+
 	/**
 	 * Schedules an individual job.
 	 */
@@ -415,6 +603,9 @@ public class JmxTransformer implements WatchedCallback {
 		JobDataMap map = new JobDataMap();
 		map.put(Server.class.getName(), server);
 		map.put(Server.JMX_CONNECTION_FACTORY_POOL, this.poolMap.get(Server.JMX_CONNECTION_FACTORY_POOL));
+		if (this.engine != null) {
+			map.put(VirtualThreadEngine.class.getName(), this.engine);
+		}
 		jd.setJobDataMap(map);
 
 		Trigger trigger = null;
@@ -519,6 +710,10 @@ public class JmxTransformer implements WatchedCallback {
 				}
 			} else if (option.getOpt().equals("s")) {
 				this.setRunPeriod(Integer.valueOf(option.getValue()));
+			} else if (option.getOpt().equals("v")) {
+				this.setVirtualThreads(true);
+			} else if (option.getOpt().equals("m")) {
+				this.setMaxInFlightServers(Integer.valueOf(option.getValue()));
 			} else if (option.getOpt().equals("h")) {
 				HelpFormatter formatter = new HelpFormatter();
 				formatter.printHelp("java -jar jmxtrans-all.jar", this.getOptions());
@@ -540,6 +735,8 @@ public class JmxTransformer implements WatchedCallback {
 		options.addOption("e", false, "Run endlessly. Default false.");
 		options.addOption("q", true, "Path to quartz configuration file.");
 		options.addOption("s", true, "Seconds between server job runs (not defined with cron). Default: 60");
+		options.addOption("v", false, "Run the server jobs and their queries on virtual threads (Java 21+). Default false.");
+		options.addOption("m", true, "Maximum number of servers collected at the same time with -v. Default: no limit");
 		options.addOption("h", false, "Help");
 		return options;
 	}
@@ -582,6 +779,37 @@ public class JmxTransformer implements WatchedCallback {
 		this.runPeriod = runPeriod;
 	}
 
+	/**
+	 * Whether the server jobs and their queries are run on virtual threads.
+	 */
+	public boolean isVirtualThreads() {
+		return virtualThreads;
+	}
+
+	/**
+	 * Whether the server jobs and their queries are run on virtual threads.
+	 * Takes effect on the next start().
+	 */
+	public void setVirtualThreads(boolean virtualThreads) {
+		this.virtualThreads = virtualThreads;
+	}
+
+	/**
+	 * The maximum number of servers collected at the same time with virtual
+	 * threads, 0 for no limit.
+	 */
+	public int getMaxInFlightServers() {
+		return maxInFlightServers;
+	}
+
+	/**
+	 * The maximum number of servers collected at the same time with virtual
+	 * threads, 0 for no limit. Takes effect on the next start().
+	 */
+	public void setMaxInFlightServers(int maxInFlightServers) {
+		this.maxInFlightServers = maxInFlightServers;
+	}
+
 	/**
 	 * Sets the json dir or file.
 	 *
@@ -637,7 +865,7 @@ public class JmxTransformer implements WatchedCallback {
 
 	/** */
 	@Override
-	public void fileModified(File file) throws Exception {
+	public synchronized void fileModified(File file) throws Exception {
 		if (this.isJsonFile(file)) {
 			Thread.sleep(1000);
 			if (log.isDebugEnabled()) {
@@ -650,7 +878,7 @@ public class JmxTransformer implements WatchedCallback {
 
 	/** */
 	@Override
-	public void fileDeleted(File file) throws Exception {
+	public synchronized void fileDeleted(File file) throws Exception {
 		if (this.isJsonFile(file)) {
 			Thread.sleep(1000);
 			if (log.isDebugEnabled()) {
@@ -663,12 +891,14 @@ public class JmxTransformer implements WatchedCallback {
 
 	/** */
 	@Override
-	public void fileAdded(File file) throws Exception {
+	public synchronized void fileAdded(File file) throws Exception {
 		if (this.isJsonFile(file)) {
 			Thread.sleep(1000);
 			if (log.isDebugEnabled()) {
 				log.debug("File added: " + file);
 			}
+			// Every server is scheduled again below.
+			this.deleteAllJobs(this.serverScheduler);
 			this.startupSystem();
 		}
 	}
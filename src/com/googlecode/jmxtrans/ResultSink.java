@@ -0,0 +1,41 @@
+package com.googlecode.jmxtrans;
+
+import com.googlecode.jmxtrans.model.MetricRef;
+import com.googlecode.jmxtrans.model.Query;
+
+/**
+ * An OutputWriter can implement this to be handed the values of its queries
+ * one at a time, as the MBeans are fetched, instead of getting a list of
+ * Results in doWrite(Query). Nothing is kept in memory for a query whose
+ * writers all stream.
+ *
+ * Calls for one query are never made concurrently. The values of a run come
+ * between begin() and end(), MBean by MBean; when the MBeans are fetched in
+ * parallel they come in the order the fetches complete. If a run of a server
+ * takes longer than the period, the next one may begin before it ends.
+ *
+ * Writers implementing this don't have doWrite(Query) called.
+ */
+public interface ResultSink {
+
+	/**
+	 * A run of the query is about to hand over its first value.
+	 */
+	public void begin(Query query) throws Exception;
+
+	/**
+	 * One value of a query.
+	 *
+	 * @param metric
+	 *            what the value is, only valid during the call: it is reused
+	 *            for the next value.
+	 * @param epoch
+	 *            when the MBean was fetched
+	 */
+	public void onValue(MetricRef metric, Object value, long epoch) throws Exception;
+
+	/**
+	 * The run of the query is over, if it began.
+	 */
+	public void end(Query query) throws Exception;
+}
@@ -0,0 +1,17 @@
+package com.googlecode.jmxtrans;
+
+import com.googlecode.jmxtrans.model.CollectionSnapshot;
+
+/**
+ * An OutputWriter can implement this to be handed the snapshot of each run of
+ * its queries instead of a query holding the Results.
+ *
+ * Writers implementing this don't have doWrite(Query) called.
+ */
+public interface SnapshotWriter {
+
+	/**
+	 * Writes the Results of one run of a query.
+	 */
+	public void doWrite(CollectionSnapshot snapshot) throws Exception;
+}
@@ -74,13 +74,16 @@ public class TreeWalker3 {
 				query.addAttr(attrInfo.getName());
 			}
 
+			List<Result> results = null;
 			try {
-				JmxUtils.processQuery(connection, query);
+				results = JmxUtils.processQuery(connection, query);
 			} catch (AttributeNotFoundException anfe) {
 				log.error("Error", anfe);
 			}
 
-			List<Result> results = query.getResults();
+			if (results == null) {
+				continue;
+			}
 			for (Result result : results) {
 				output.put(result.getTypeName(), query.getAttr().toString());
 			}
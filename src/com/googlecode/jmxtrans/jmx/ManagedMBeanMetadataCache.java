@@ -0,0 +1,140 @@
+package com.googlecode.jmxtrans.jmx;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import com.googlecode.jmxtrans.model.Server;
+import com.googlecode.jmxtrans.util.MBeanMetadataCache;
+
+/**
+ * The Class ManagedMBeanMetadataCache.
+ */
+public class ManagedMBeanMetadataCache implements ManagedMBeanMetadataCacheMBean, ManagedObject {
+
+    /** The object name. */
+    private ObjectName objectName;
+
+    /** The server owning the cache. */
+    private Server server;
+
+	/**
+	 * The Constructor.
+	 *
+	 * @param server the server whose cache is managed
+	 */
+	public ManagedMBeanMetadataCache(Server server) {
+		this.server = server;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.googlecode.jmxtrans.jmx.ManagedObject#getObjectName()
+	 */
+	@Override
+	public ObjectName getObjectName() throws MalformedObjectNameException {
+        if (objectName == null) {
+            objectName = new ObjectName("com.googlecode.jmxtrans:Type=MBeanMetadataCache,Server="
+            		+ ObjectName.quote(server.getHost() + ":" + server.getPort()));
+        }
+        return objectName;
+    }
+
+	/* (non-Javadoc)
+	 * @see com.googlecode.jmxtrans.jmx.ManagedObject#setObjectName(javax.management.ObjectName)
+	 */
+	@Override
+    public void setObjectName(ObjectName objectName) throws MalformedObjectNameException {
+        this.objectName = objectName;
+    }
+
+	/* (non-Javadoc)
+	 * @see com.googlecode.jmxtrans.jmx.ManagedObject#setObjectName(java.lang.String)
+	 */
+	@Override
+    public void setObjectName(String objectName) throws MalformedObjectNameException {
+        this.objectName = ObjectName.getInstance(objectName);
+    }
+
+	/* (non-Javadoc)
+	 * @see com.googlecode.jmxtrans.jmx.ManagedMBeanMetadataCacheMBean#getHits()
+	 */
+	@Override
+	public long getHits() {
+		return getCache().getHits();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.googlecode.jmxtrans.jmx.ManagedMBeanMetadataCacheMBean#getMisses()
+	 */
+	@Override
+	public long getMisses() {
+		return getCache().getMisses();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.googlecode.jmxtrans.jmx.ManagedMBeanMetadataCacheMBean#getSize()
+	 */
+	@Override
+	public int getSize() {
+		return getCache().getSize();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.googlecode.jmxtrans.jmx.ManagedMBeanMetadataCacheMBean#getResolutionHits()
+	 */
+	@Override
+	public long getResolutionHits() {
+		return getCache().getResolutionHits();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.googlecode.jmxtrans.jmx.ManagedMBeanMetadataCacheMBean#getResolutionMisses()
+	 */
+	@Override
+	public long getResolutionMisses() {
+		return getCache().getResolutionMisses();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.googlecode.jmxtrans.jmx.ManagedMBeanMetadataCacheMBean#getResolutionSize()
+	 */
+	@Override
+	public int getResolutionSize() {
+		return getCache().getResolutionSize();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.googlecode.jmxtrans.jmx.ManagedMBeanMetadataCacheMBean#getRefreshInterval()
+	 */
+	@Override
+	public long getRefreshInterval() {
+		return getCache().getRefreshInterval();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.googlecode.jmxtrans.jmx.ManagedMBeanMetadataCacheMBean#setRefreshInterval(long)
+	 */
+	@Override
+	public void setRefreshInterval(long refreshInterval) {
+		getCache().setRefreshInterval(refreshInterval);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.googlecode.jmxtrans.jmx.ManagedMBeanMetadataCacheMBean#isSubscribed()
+	 */
+	@Override
+	public boolean isSubscribed() {
+		return getCache().isSubscribed();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.googlecode.jmxtrans.jmx.ManagedMBeanMetadataCacheMBean#clear()
+	 */
+	@Override
+	public void clear() {
+		getCache().clear();
+	}
+
+	private MBeanMetadataCache getCache() {
+		return server.getMetadataCache();
+	}
+}
@@ -0,0 +1,47 @@
+package com.googlecode.jmxtrans.jmx;
+
+/**
+ * Managed attributes and operations of a {@link com.googlecode.jmxtrans.util.MBeanMetadataCache}.
+ */
+public interface ManagedMBeanMetadataCacheMBean {
+
+    /**
+     * Gets the number of lookups answered from the cache.
+     *
+     * @return the hit count
+     */
+    long getHits();
+
+    /**
+     * Gets the number of lookups that went to the remote MBeanServer.
+     *
+     * @return the miss count
+     */
+    long getMisses();
+
+    int getSize();
+
+    /**
+     * Gets the number of ObjectName patterns resolved from the cache.
+     *
+     * @return the resolution hit count
+     */
+    long getResolutionHits();
+
+    /**
+     * Gets the number of queryNames calls made to the remote MBeanServer.
+     *
+     * @return the resolution miss count
+     */
+    long getResolutionMisses();
+
+    int getResolutionSize();
+
+    long getRefreshInterval();
+
+    void setRefreshInterval(long refreshInterval);
+
+    boolean isSubscribed();
+
+    void clear();
+}
@@ -0,0 +1,119 @@
+package com.googlecode.jmxtrans.jmx;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import com.googlecode.jmxtrans.model.Server;
+
+/**
+ * The Class ManagedQueryExecutor. Reads the executor from the server on every
+ * call, so that it keeps reporting the right one across reloads. Everything is
+ * 0 when the server has no executor of its own.
+ */
+public class ManagedQueryExecutor implements ManagedQueryExecutorMBean, ManagedObject {
+
+    /** The object name. */
+    private ObjectName objectName;
+
+    /** The server owning the executor. */
+    private Server server;
+
+	/**
+	 * The Constructor.
+	 *
+	 * @param server the server whose executor is managed
+	 */
+	public ManagedQueryExecutor(Server server) {
+		this.server = server;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.googlecode.jmxtrans.jmx.ManagedObject#getObjectName()
+	 */
+	@Override
+	public ObjectName getObjectName() throws MalformedObjectNameException {
+        if (objectName == null) {
+            objectName = new ObjectName("com.googlecode.jmxtrans:Type=QueryExecutor,Server="
+            		+ ObjectName.quote(server.getHost() + ":" + server.getPort()));
+        }
+        return objectName;
+    }
+
+	/* (non-Javadoc)
+	 * @see com.googlecode.jmxtrans.jmx.ManagedObject#setObjectName(javax.management.ObjectName)
+	 */
+	@Override
+    public void setObjectName(ObjectName objectName) throws MalformedObjectNameException {
+        this.objectName = objectName;
+    }
+
+	/* (non-Javadoc)
+	 * @see com.googlecode.jmxtrans.jmx.ManagedObject#setObjectName(java.lang.String)
+	 */
+	@Override
+    public void setObjectName(String objectName) throws MalformedObjectNameException {
+        this.objectName = ObjectName.getInstance(objectName);
+    }
+
+	/* (non-Javadoc)
+	 * @see com.googlecode.jmxtrans.jmx.ManagedQueryExecutorMBean#getMaximumPoolSize()
+	 */
+	@Override
+	public int getMaximumPoolSize() {
+		ThreadPoolExecutor executor = getExecutor();
+		return (executor == null) ? 0 : executor.getMaximumPoolSize();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.googlecode.jmxtrans.jmx.ManagedQueryExecutorMBean#getPoolSize()
+	 */
+	@Override
+	public int getPoolSize() {
+		ThreadPoolExecutor executor = getExecutor();
+		return (executor == null) ? 0 : executor.getPoolSize();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.googlecode.jmxtrans.jmx.ManagedQueryExecutorMBean#getActiveCount()
+	 */
+	@Override
+	public int getActiveCount() {
+		ThreadPoolExecutor executor = getExecutor();
+		return (executor == null) ? 0 : executor.getActiveCount();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.googlecode.jmxtrans.jmx.ManagedQueryExecutorMBean#getQueueSize()
+	 */
+	@Override
+	public int getQueueSize() {
+		ThreadPoolExecutor executor = getExecutor();
+		return (executor == null) ? 0 : executor.getQueue().size();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.googlecode.jmxtrans.jmx.ManagedQueryExecutorMBean#getLargestPoolSize()
+	 */
+	@Override
+	public int getLargestPoolSize() {
+		ThreadPoolExecutor executor = getExecutor();
+		return (executor == null) ? 0 : executor.getLargestPoolSize();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.googlecode.jmxtrans.jmx.ManagedQueryExecutorMBean#getCompletedTaskCount()
+	 */
+	@Override
+	public long getCompletedTaskCount() {
+		ThreadPoolExecutor executor = getExecutor();
+		return (executor == null) ? 0 : executor.getCompletedTaskCount();
+	}
+
+	private ThreadPoolExecutor getExecutor() {
+		ExecutorService executor = server.getQueryExecutor();
+		return (executor instanceof ThreadPoolExecutor) ? (ThreadPoolExecutor) executor : null;
+	}
+}
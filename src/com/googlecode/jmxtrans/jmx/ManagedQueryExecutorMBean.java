@@ -0,0 +1,34 @@
+package com.googlecode.jmxtrans.jmx;
+
+/**
+ * Managed attributes of the executor running the queries of a server.
+ */
+public interface ManagedQueryExecutorMBean {
+
+    /**
+     * Gets the number of threads the executor is allowed to run.
+     *
+     * @return the pool size, 0 if the queries run in the job thread
+     */
+    int getMaximumPoolSize();
+
+    int getPoolSize();
+
+    /**
+     * Gets the number of threads busy fetching MBeans.
+     *
+     * @return the active count
+     */
+    int getActiveCount();
+
+    /**
+     * Gets the number of fetches waiting for a thread.
+     *
+     * @return the queue depth
+     */
+    int getQueueSize();
+
+    int getLargestPoolSize();
+
+    long getCompletedTaskCount();
+}
@@ -0,0 +1,103 @@
+package com.googlecode.jmxtrans.jmx;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import com.googlecode.jmxtrans.model.output.StatsDWriter;
+
+/**
+ * The Class ManagedStatsDWriter.
+ */
+public class ManagedStatsDWriter implements ManagedStatsDWriterMBean, ManagedObject {
+
+    /** The object name. */
+    private ObjectName objectName;
+
+    /** The writer. */
+    private StatsDWriter writer;
+
+	/**
+	 * The Constructor.
+	 *
+	 * @param writer the writer whose counters are exposed
+	 */
+	public ManagedStatsDWriter(StatsDWriter writer) {
+		this.writer = writer;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.googlecode.jmxtrans.jmx.ManagedObject#getObjectName()
+	 */
+	@Override
+	public ObjectName getObjectName() throws MalformedObjectNameException {
+        if (objectName == null) {
+            objectName = new ObjectName("com.googlecode.jmxtrans:Type=StatsDWriter,Name=" + writer.getClass().getSimpleName() + "@" + writer.hashCode());
+        }
+        return objectName;
+    }
+
+	/* (non-Javadoc)
+	 * @see com.googlecode.jmxtrans.jmx.ManagedObject#setObjectName(javax.management.ObjectName)
+	 */
+	@Override
+    public void setObjectName(ObjectName objectName) throws MalformedObjectNameException {
+        this.objectName = objectName;
+    }
+
+	/* (non-Javadoc)
+	 * @see com.googlecode.jmxtrans.jmx.ManagedObject#setObjectName(java.lang.String)
+	 */
+	@Override
+    public void setObjectName(String objectName) throws MalformedObjectNameException {
+        this.objectName = ObjectName.getInstance(objectName);
+    }
+
+	/* (non-Javadoc)
+	 * @see com.googlecode.jmxtrans.jmx.ManagedStatsDWriterMBean#getPacketSize()
+	 */
+	@Override
+	public int getPacketSize() {
+		return writer.getPacketSize();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.googlecode.jmxtrans.jmx.ManagedStatsDWriterMBean#getPacketsSent()
+	 */
+	@Override
+	public long getPacketsSent() {
+		return writer.getPacketsSent();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.googlecode.jmxtrans.jmx.ManagedStatsDWriterMBean#getMetricsSent()
+	 */
+	@Override
+	public long getMetricsSent() {
+		return writer.getMetricsSent();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.googlecode.jmxtrans.jmx.ManagedStatsDWriterMBean#getBytesSent()
+	 */
+	@Override
+	public long getBytesSent() {
+		return writer.getBytesSent();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.googlecode.jmxtrans.jmx.ManagedStatsDWriterMBean#getBytesPerPacket()
+	 */
+	@Override
+	public double getBytesPerPacket() {
+		long packets = writer.getPacketsSent();
+		return (packets == 0) ? 0 : (double) writer.getBytesSent() / packets;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.googlecode.jmxtrans.jmx.ManagedStatsDWriterMBean#getSendErrors()
+	 */
+	@Override
+	public long getSendErrors() {
+		return writer.getSendErrors();
+	}
+}
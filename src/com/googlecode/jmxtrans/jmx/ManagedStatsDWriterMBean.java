@@ -0,0 +1,49 @@
+package com.googlecode.jmxtrans.jmx;
+
+/**
+ * Managed attributes of a {@link com.googlecode.jmxtrans.model.output.StatsDWriter}.
+ */
+public interface ManagedStatsDWriterMBean {
+
+    /**
+     * Gets the largest payload put in a packet.
+     *
+     * @return the packet size in bytes
+     */
+    int getPacketSize();
+
+    /**
+     * Gets the number of packets sent.
+     *
+     * @return the packet count
+     */
+    long getPacketsSent();
+
+    /**
+     * Gets the number of stats sent.
+     *
+     * @return the stat count
+     */
+    long getMetricsSent();
+
+    /**
+     * Gets the number of payload bytes sent.
+     *
+     * @return the byte count
+     */
+    long getBytesSent();
+
+    /**
+     * Gets the average payload of the packets sent.
+     *
+     * @return the bytes per packet, 0 if nothing was sent
+     */
+    double getBytesPerPacket();
+
+    /**
+     * Gets the number of packets the channel failed to send.
+     *
+     * @return the error count
+     */
+    long getSendErrors();
+}
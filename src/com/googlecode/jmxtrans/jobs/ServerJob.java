@@ -17,6 +17,9 @@ import com.googlecode.jmxtrans.util.JmxUtils;
  * This is a quartz job that is responsible for executing a Server object on a
  * cron schedule that is defined within the Server object.
  *
+ * If a {@link VirtualThreadEngine} is in the job data, the server is handed
+ * over to it and the job returns right away.
+ *
  * @author jon
  */
 public class ServerJob implements Job {
@@ -24,9 +27,36 @@ public class ServerJob implements Job {
 
 	public void execute(JobExecutionContext context) throws JobExecutionException {
 		JobDataMap map = context.getMergedJobDataMap();
-		Server server = (Server) map.get(Server.class.getName());
-		GenericKeyedObjectPool pool = (GenericKeyedObjectPool) map.get(Server.JMX_CONNECTION_FACTORY_POOL);
+		final Server server = (Server) map.get(Server.class.getName());
+		final GenericKeyedObjectPool pool = (GenericKeyedObjectPool) map.get(Server.JMX_CONNECTION_FACTORY_POOL);
+		VirtualThreadEngine engine = (VirtualThreadEngine) map.get(VirtualThreadEngine.class.getName());
+
+		if (engine != null) {
+			engine.submit(server, new Runnable() {
+				public void run() {
+					try {
+						processServer(server, pool);
+					} catch (Exception e) {
+						log.error("Error in job for server: " + server, e);
+					}
+				}
+			});
+			return;
+		}
 
+		try {
+			processServer(server, pool);
+		} catch (Exception e) {
+			log.error("Error in job for server: " + server, e);
+			throw new JobExecutionException(e);
+		}
+	}
+
+	/**
+	 * Borrows a connection to the server from the pool, runs its queries and
+	 * gives the connection back.
+	 */
+	public static void processServer(Server server, GenericKeyedObjectPool pool) throws Exception {
 		if (log.isDebugEnabled()) {
 			log.debug("+++++ Started server job: " + server);
 		}
@@ -37,9 +67,6 @@ public class ServerJob implements Job {
 				conn = (JMXConnector) pool.borrowObject(server);
 			}
 			JmxUtils.processServer(server, conn);
-		} catch (Exception e) {
-			log.error("Error in job for server: " + server, e);
-			throw new JobExecutionException(e);
 		} finally {
 			try {
 				pool.returnObject(server, conn);
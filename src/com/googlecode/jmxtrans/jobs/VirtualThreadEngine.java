@@ -0,0 +1,183 @@
+package com.googlecode.jmxtrans.jobs;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.googlecode.jmxtrans.model.Server;
+import com.googlecode.jmxtrans.util.NamedThreadFactory;
+
+/**
+ * Runs every server job, and the queries of multithreaded servers, on a
+ * thread of its own instead of on the Quartz pool and the per server
+ * executors. On Java 21 and later these are virtual threads, so thousands of
+ * slow remote JVMs can be waited on at the same time without sizing any pool.
+ * On older JVMs threads are created as needed, which is only reasonable
+ * together with a maxInFlight limit.
+ *
+ * Quartz still does the scheduling: ServerJob hands the server to the engine
+ * and returns right away. A server whose previous run hasn't finished yet is
+ * skipped rather than piled up.
+ *
+ * The virtual thread API is looked up reflectively so that jmxtrans still
+ * builds and runs on the JVMs it targets.
+ */
+public class VirtualThreadEngine {
+
+	private static final Logger log = LoggerFactory.getLogger(VirtualThreadEngine.class);
+
+	private final ExecutorService serverExecutor;
+	private final ExecutorService queryExecutor;
+	private final Semaphore inFlight;
+	private final int maxInFlight;
+	private final boolean virtual;
+
+	private final Set<Server> running = Collections.newSetFromMap(new ConcurrentHashMap<Server, Boolean>());
+	private final AtomicLong submitted = new AtomicLong();
+	private final AtomicLong skipped = new AtomicLong();
+	private final AtomicLong completed = new AtomicLong();
+
+	/**
+	 * @param maxInFlight
+	 *            how many servers may be collected at the same time, 0 or less
+	 *            for no limit
+	 */
+	public VirtualThreadEngine(int maxInFlight) {
+		this.maxInFlight = (maxInFlight > 0) ? maxInFlight : 0;
+		this.inFlight = (maxInFlight > 0) ? new Semaphore(maxInFlight, true) : null;
+
+		ExecutorService servers = newVirtualThreadExecutor("jmxtrans-server-");
+		this.virtual = (servers != null);
+		if (this.virtual) {
+			this.serverExecutor = servers;
+			this.queryExecutor = newVirtualThreadExecutor("jmxtrans-query-");
+		} else {
+			log.warn("Virtual threads are not available on this JVM, falling back to one platform thread per running server and query");
+			this.serverExecutor = Executors.newCachedThreadPool(new NamedThreadFactory("jmxtrans-server"));
+			this.queryExecutor = Executors.newCachedThreadPool(new NamedThreadFactory("jmxtrans-query"));
+		}
+	}
+
+	/**
+	 * Creates an executor starting a new virtual thread per task, null if the
+	 * JVM doesn't have them.
+	 */
+	private static ExecutorService newVirtualThreadExecutor(String namePrefix) {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+			ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+			Method newExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+			return (ExecutorService) newExecutor.invoke(null, factory);
+		} catch (Exception ex) {
+			log.debug("No virtual threads: " + ex);
+			return null;
+		}
+	}
+
+	/**
+	 * Runs the collection of a server in the background.
+	 *
+	 * @return false if the previous run of the server is still going, in which
+	 *         case nothing is done
+	 */
+	public boolean submit(final Server server, final Runnable collection) {
+		if (!this.running.add(server)) {
+			this.skipped.incrementAndGet();
+			log.warn("Previous run of server " + server + " hasn't finished yet, skipping this one");
+			return false;
+		}
+		this.submitted.incrementAndGet();
+		try {
+			this.serverExecutor.execute(new Runnable() {
+				public void run() {
+					try {
+						if (inFlight != null) {
+							inFlight.acquire();
+						}
+						try {
+							collection.run();
+						} finally {
+							if (inFlight != null) {
+								inFlight.release();
+							}
+						}
+					} catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+					} finally {
+						running.remove(server);
+						completed.incrementAndGet();
+					}
+				}
+			});
+		} catch (RejectedExecutionException ex) {
+			this.running.remove(server);
+			log.debug("Engine is stopped, not running server: " + server);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * The executor the queries of multithreaded servers are run on. It is
+	 * shared by all the servers, so don't shut it down.
+	 */
+	public ExecutorService getQueryExecutor() {
+		return this.queryExecutor;
+	}
+
+	/**
+	 * Stops accepting servers and waits for the running ones to finish.
+	 */
+	public void shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+		this.serverExecutor.shutdown();
+		if (!this.serverExecutor.awaitTermination(timeout, unit)) {
+			log.warn("Server runs still going after " + timeout + " " + unit + ", interrupting them");
+			this.serverExecutor.shutdownNow();
+		}
+		this.queryExecutor.shutdown();
+		this.queryExecutor.awaitTermination(timeout, unit);
+	}
+
+	/** Whether the threads are virtual ones. */
+	public boolean isVirtual() {
+		return this.virtual;
+	}
+
+	/** 0 if there is no limit. */
+	public int getMaxInFlight() {
+		return this.maxInFlight;
+	}
+
+	/** The number of servers being collected or waiting for their turn. */
+	public int getRunningCount() {
+		return this.running.size();
+	}
+
+	/** */
+	public long getSubmittedCount() {
+		return this.submitted.get();
+	}
+
+	/** The number of runs skipped because the previous one was too slow. */
+	public long getSkippedCount() {
+		return this.skipped.get();
+	}
+
+	/** */
+	public long getCompletedCount() {
+		return this.completed.get();
+	}
+}
@@ -0,0 +1,74 @@
+package com.googlecode.jmxtrans.model;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What one run of a query collected: the Results, along with the server and
+ * the compiled query they came from and when the run started.
+ *
+ * Snapshots are immutable and every run makes its own, so writers can take
+ * their time with one while the next run of the same server is collecting.
+ * The Results of the run point at the read-only copy of the query the
+ * snapshot hands out, not at the configured one.
+ */
+public class CollectionSnapshot {
+	private final Server server;
+	private final Query query;
+	private final QueryPlan plan;
+	private final List<Result> results;
+	private final long epoch;
+	private final Query copy;
+
+	/**
+	 * @param results
+	 *            not copied, don't modify it afterwards
+	 * @param epoch
+	 *            when the run started
+	 */
+	public CollectionSnapshot(Server server, Query query, List<Result> results, long epoch) {
+		this.server = server;
+		this.query = query;
+		this.plan = query.getPlan();
+		this.results = Collections.unmodifiableList(results);
+		this.epoch = epoch;
+		this.copy = new Query(query, server, results);
+		for (Result result : results) {
+			result.setQuery(this.copy);
+		}
+	}
+
+	/** The server that was queried, null for a query run on its own. */
+	public Server getServer() {
+		return this.server;
+	}
+
+	/** The configuration of the query. */
+	public Query getQuery() {
+		return this.query;
+	}
+
+	/** The query as compiled when the run started. */
+	public QueryPlan getPlan() {
+		return this.plan;
+	}
+
+	/** The Results, in the order the MBeans were matched. */
+	public List<Result> getResults() {
+		return this.results;
+	}
+
+	/** When the run started. */
+	public long getEpoch() {
+		return this.epoch;
+	}
+
+	/**
+	 * A read-only copy of the query holding the Results and the server of this
+	 * run, for writers that read them from the query. All the writers of the
+	 * run share it.
+	 */
+	public Query toQuery() {
+		return this.copy;
+	}
+}
@@ -0,0 +1,77 @@
+package com.googlecode.jmxtrans.model;
+
+/**
+ * What a value streamed to a {@link com.googlecode.jmxtrans.ResultSink} is:
+ * the same things a Result and the key of one of its values tell, without the
+ * Result.
+ *
+ * A MetricRef is reused for every value of an MBean, copy() it to keep it.
+ */
+public class MetricRef {
+	private final Query query;
+	private final String className;
+	private final String typeName;
+	private String attributeName;
+	private String key;
+
+	public MetricRef(Query query, String className, String typeName) {
+		this.query = query;
+		this.className = className;
+		this.typeName = typeName;
+	}
+
+	/** A MetricRef that won't change. */
+	public MetricRef copy() {
+		MetricRef copy = new MetricRef(this.query, this.className, this.typeName);
+		copy.attributeName = this.attributeName;
+		copy.key = this.key;
+		return copy;
+	}
+
+	public Query getQuery() {
+		return query;
+	}
+
+	public String getClassName() {
+		return className;
+	}
+
+	/**
+	 * Specified as part of the query.
+	 */
+	public String getClassNameAlias() {
+		return query.getResultAlias();
+	}
+
+	public String getTypeName() {
+		return typeName;
+	}
+
+	public void setAttributeName(String attributeName) {
+		this.attributeName = attributeName;
+	}
+
+	/**
+	 * The attribute name as a Result would have it: nested data has the path
+	 * to it appended, ie: LastGcInfo.memoryUsageAfterGc.PS Eden Space
+	 */
+	public String getAttributeName() {
+		return attributeName;
+	}
+
+	public void setKey(String key) {
+		this.key = key;
+	}
+
+	/**
+	 * The key the value would have in the values of a Result.
+	 */
+	public String getKey() {
+		return key;
+	}
+
+	@Override
+	public String toString() {
+		return "MetricRef [attributeName=" + attributeName + ", className=" + className + ", typeName=" + typeName + ", key=" + key + "]";
+	}
+}
@@ -1,8 +1,13 @@
 package com.googlecode.jmxtrans.model;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.management.MalformedObjectNameException;
 
 import org.apache.commons.lang.builder.EqualsBuilder;
 import org.apache.commons.lang.builder.HashCodeBuilder;
@@ -13,16 +18,19 @@ import org.codehaus.jackson.map.annotate.JsonSerialize.Inclusion;
 
 import com.googlecode.jmxtrans.OutputWriter;
 import com.googlecode.jmxtrans.util.PropertyResolver;
+import com.googlecode.jmxtrans.util.ValidationException;
 
 /**
  * Represents a JMX Query to ask for obj, attr and one or more keys.
  * 
- * Once the query has been executed, it'll have a list of results.
+ * The query is configuration and isn't changed by running it: each run hands
+ * its Results to the writers in a {@link CollectionSnapshot}, or in a
+ * read-only copy of the query.
  * 
  * @author jon
  */
 @JsonSerialize(include = Inclusion.NON_NULL)
-@JsonPropertyOrder(value = { "obj", "attr", "typeNames", "resultAlias", "keys", "outputWriters" })
+@JsonPropertyOrder(value = { "obj", "attr", "typeNames", "resultAlias", "keys", "fetchParallelism", "outputWriters" })
 public class Query {
 
 	private Server server;
@@ -34,6 +42,19 @@ public class Query {
 	private List<OutputWriter> outputWriters;
 	private List<Result> results;
 	private Set<String> typeNames;
+	private Integer fetchParallelism;
+
+	private volatile QueryPlan plan;
+
+	/**
+	 * Serializes the writes of the runs of this query. A Lock rather than the
+	 * monitor of the query, which would pin a virtual thread to its carrier
+	 * for as long as the writers block.
+	 */
+	private final Lock writeLock = new ReentrantLock();
+
+	/** Set on the copies handed to writers, whose setters throw. */
+	private boolean readOnly = false;
 
 	public Query() {
 	}
@@ -52,11 +73,47 @@ public class Query {
 		this.attr = attr;
 	}
 
+	/**
+	 * A read-only copy of another query holding the Results of one of its
+	 * runs, see {@link CollectionSnapshot#toQuery()}.
+	 */
+	Query(Query query, Server server, List<Result> results) {
+		this.server = server;
+		this.obj = query.obj;
+		this.attr = (query.attr == null) ? null : Collections.unmodifiableList(query.attr);
+		this.resultAlias = query.resultAlias;
+		this.keys = (query.keys == null) ? null : Collections.unmodifiableList(query.keys);
+		this.outputWriters = (query.outputWriters == null) ? null : Collections.unmodifiableList(query.outputWriters);
+		this.typeNames = (query.typeNames == null) ? null : Collections.unmodifiableSet(query.typeNames);
+		this.fetchParallelism = query.fetchParallelism;
+		this.plan = query.getPlan();
+		this.results = Collections.unmodifiableList(results);
+		this.readOnly = true;
+	}
+
+	/**
+	 * Whether this is a copy of a query handed to writers, which can't be
+	 * changed.
+	 */
+	@JsonIgnore
+	public boolean isReadOnly() {
+		return readOnly;
+	}
+
+	/** */
+	private void checkWritable() {
+		if (readOnly) {
+			throw new UnsupportedOperationException("This is a read-only copy of " + this + " for one run, change the configured query instead");
+		}
+	}
+
 	/**
 	 * The JMX object representation: java.lang:type=Memory
 	 */
 	public void setObj(String obj) {
+		checkWritable();
 		this.obj = PropertyResolver.resolveProps(obj);
+		this.plan = null;
 	}
 
 	/**
@@ -71,7 +128,9 @@ public class Query {
 	 * query to go into.
 	 */
 	public void setResultAlias(String resultAlias) {
+		checkWritable();
 		this.resultAlias = resultAlias;
+		this.plan = null;
 	}
 
 	/**
@@ -83,7 +142,9 @@ public class Query {
 	}
 
 	public void setTypeNames(Set<String> typeNames) {
+		checkWritable();
 		this.typeNames = typeNames;
+		this.plan = null;
 	}
 
 	/**
@@ -101,8 +162,10 @@ public class Query {
 	}
 
 	public void setAttr(List<String> attr) {
+		checkWritable();
 		this.attr = attr;
 		PropertyResolver.resolveList(this.attr);
+		this.plan = null;
 	}
 
 	public List<String> getAttr() {
@@ -110,15 +173,19 @@ public class Query {
 	}
 
 	public void addAttr(String attr) {
+		checkWritable();
 		if (this.attr == null) {
 			this.attr = new ArrayList<String>();
 		}
 		this.attr.add(attr);
+		this.plan = null;
 	}
 
 	public void setKeys(List<String> keys) {
+		checkWritable();
 		this.keys = keys;
 		PropertyResolver.resolveList(this.keys);
+		this.plan = null;
 	}
 
 	public List<String> getKeys() {
@@ -126,26 +193,53 @@ public class Query {
 	}
 
 	public void addKey(String key) {
+		checkWritable();
 		if (this.keys == null) {
 			this.keys = new ArrayList<String>();
 		}
 		this.keys.add(key);
+		this.plan = null;
 	}
 
 	public void setResults(List<Result> results) {
+		checkWritable();
 		this.results = results;
 	}
 
 	/**
-	 * We don't want Jackson to serialize the results if they exist.
+	 * Only set on the copies of the query handed to writers, the query itself
+	 * doesn't keep the Results of its runs. We don't want Jackson to serialize
+	 * the results if they exist.
 	 */
 	@JsonIgnore
 	public List<Result> getResults() {
 		return results;
 	}
 
+	/**
+	 * How many of the MBeans matched by this query may be fetched at the
+	 * same time, over the same connection. Only useful for wildcard queries
+	 * matching many MBeans. If not set, the MBeans are fetched one at a time,
+	 * or up to the numQueryThreads of the server if it has one.
+	 */
+	public void setFetchParallelism(Integer fetchParallelism) {
+		checkWritable();
+		this.fetchParallelism = fetchParallelism;
+		this.plan = null;
+	}
+
+	/**
+	 * How many of the MBeans matched by this query may be fetched at the
+	 * same time, over the same connection.
+	 */
+	public Integer getFetchParallelism() {
+		return fetchParallelism;
+	}
+
 	public void setOutputWriters(List<OutputWriter> outputWriters) {
+		checkWritable();
 		this.outputWriters = outputWriters;
+		this.plan = null;
 	}
 
 	public List<OutputWriter> getOutputWriters() {
@@ -153,14 +247,57 @@ public class Query {
 	}
 
 	public void addOutputWriter(OutputWriter writer) {
+		checkWritable();
 		if (this.outputWriters == null) {
 			this.outputWriters = new ArrayList<OutputWriter>();
 		}
 		this.outputWriters.add(writer);
+		this.plan = null;
+	}
+
+	/**
+	 * Compiles this query into a QueryPlan. This is done when the
+	 * configuration is loaded, so that a bad obj is reported right away.
+	 */
+	public QueryPlan compile() throws ValidationException {
+		checkWritable();
+		try {
+			QueryPlan compiled = new QueryPlan(this);
+			this.plan = compiled;
+			return compiled;
+		} catch (MalformedObjectNameException ex) {
+			throw new ValidationException("Invalid obj: " + this.obj + " (" + ex.getMessage() + ")", this);
+		}
+	}
+
+	/**
+	 * The compiled form of this query, compiled on first use if it hasn't been
+	 * already.
+	 */
+	@JsonIgnore
+	public QueryPlan getPlan() {
+		QueryPlan compiled = this.plan;
+		if (compiled == null) {
+			try {
+				compiled = this.compile();
+			} catch (ValidationException ex) {
+				throw new IllegalStateException(ex.getMessage(), ex);
+			}
+		}
+		return compiled;
+	}
+
+	/**
+	 * Held while the writers of the query run.
+	 */
+	@JsonIgnore
+	public Lock getWriteLock() {
+		return writeLock;
 	}
 
 	@JsonIgnore
 	public void setServer(Server server) {
+		checkWritable();
 		this.server = server;
 	}
 
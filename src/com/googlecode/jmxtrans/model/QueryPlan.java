@@ -0,0 +1,201 @@
+package com.googlecode.jmxtrans.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import com.googlecode.jmxtrans.OutputWriter;
+import com.googlecode.jmxtrans.ResultSink;
+import com.googlecode.jmxtrans.util.BaseOutputWriter;
+import com.googlecode.jmxtrans.util.BoundedCache;
+import com.googlecode.jmxtrans.util.JmxUtils;
+import com.googlecode.jmxtrans.util.MBeanMetadataCache.MBeanMetadata;
+
+/**
+ * The compiled form of a Query: everything that can be worked out from the
+ * configuration is worked out once, when the configuration is loaded, instead
+ * of on every run.
+ *
+ * A QueryPlan is immutable. Changing the Query it was compiled from throws
+ * the plan away and the next call to {@link Query#getPlan()} compiles a new
+ * one.
+ */
+public class QueryPlan {
+
+	/**
+	 * How many typeName strings have their values kept, per writer, the least
+	 * recently used going first.
+	 */
+	static final int MAX_CACHED_TYPE_NAMES = 1024;
+
+	private final ObjectName objectName;
+	private final String[] attributes;
+	private final Set<String> keys;
+	private final List<String> typeNames;
+	private final Map<List<String>, List<String>> mergedTypeNames;
+	private final Map<List<String>, BoundedCache<String, String>> typeNameValues;
+	private final int fetchParallelism;
+	private final List<ResultSink> sinks;
+	private final boolean listWriters;
+
+	/**
+	 * Compiles the query.
+	 *
+	 * @throws MalformedObjectNameException
+	 *             if obj isn't a valid ObjectName (or pattern)
+	 */
+	public QueryPlan(Query query) throws MalformedObjectNameException {
+		this.objectName = new ObjectName(query.getObj());
+
+		List<String> attr = query.getAttr();
+		if ((attr == null) || attr.isEmpty()) {
+			this.attributes = null;
+		} else {
+			this.attributes = attr.toArray(new String[attr.size()]);
+		}
+
+		if (query.getKeys() == null) {
+			this.keys = null;
+		} else {
+			this.keys = Collections.unmodifiableSet(new HashSet<String>(query.getKeys()));
+		}
+
+		if (query.getTypeNames() == null) {
+			this.typeNames = Collections.emptyList();
+		} else {
+			this.typeNames = Collections.unmodifiableList(new ArrayList<String>(query.getTypeNames()));
+		}
+
+		// The writers of the query pass their own typeNames setting when
+		// building key strings, merge each of them with ours up front.
+		Map<List<String>, List<String>> merged = new IdentityHashMap<List<String>, List<String>>();
+		Map<List<String>, BoundedCache<String, String>> values = new IdentityHashMap<List<String>, BoundedCache<String, String>>();
+		List<ResultSink> resultSinks = new ArrayList<ResultSink>();
+		boolean others = false;
+		if (query.getOutputWriters() != null) {
+			for (OutputWriter writer : query.getOutputWriters()) {
+				if (writer instanceof BaseOutputWriter) {
+					List<String> writerTypeNames = ((BaseOutputWriter) writer).getTypeNames();
+					merged.put(writerTypeNames, this.mergeTypeNames(writerTypeNames));
+					values.put(writerTypeNames, new BoundedCache<String, String>(MAX_CACHED_TYPE_NAMES));
+				}
+				if (writer instanceof ResultSink) {
+					resultSinks.add((ResultSink) writer);
+				} else {
+					others = true;
+				}
+			}
+		}
+		this.mergedTypeNames = merged;
+		this.typeNameValues = values;
+		this.sinks = resultSinks.isEmpty() ? null : Collections.unmodifiableList(resultSinks);
+		this.listWriters = others;
+
+		Integer parallelism = query.getFetchParallelism();
+		this.fetchParallelism = (parallelism != null && parallelism > 0) ? parallelism : 0;
+	}
+
+	/**
+	 * The parsed obj of the query.
+	 */
+	public ObjectName getObjectName() {
+		return this.objectName;
+	}
+
+	/**
+	 * The attributes to ask the given MBean for: the ones of the query, or all
+	 * of the MBean's attributes if the query didn't list any. Don't modify the
+	 * returned array.
+	 */
+	public String[] getAttributes(MBeanMetadata metadata) {
+		if (this.attributes != null) {
+			return this.attributes;
+		}
+		return metadata.getAttributeNameArray();
+	}
+
+	/**
+	 * Whether the value stored under key is to be kept in the Result.
+	 */
+	public boolean acceptsKey(String key) {
+		return (this.keys == null) || this.keys.contains(key);
+	}
+
+	/**
+	 * How many of the matched MBeans may be fetched at the same time, 0 if
+	 * the query doesn't say.
+	 */
+	public int getFetchParallelism() {
+		return this.fetchParallelism;
+	}
+
+	/**
+	 * The writers of the query that stream, null if none does.
+	 */
+	public List<ResultSink> getSinks() {
+		return this.sinks;
+	}
+
+	/**
+	 * Whether some writers of the query want the Results as a list, in
+	 * doWrite(Query).
+	 */
+	public boolean hasListWriters() {
+		return this.listWriters;
+	}
+
+	/**
+	 * The typeNames of the query, followed by the typeNames of a writer it
+	 * doesn't already have.
+	 */
+	public List<String> getTypeNames(List<String> writerTypeNames) {
+		if (this.typeNames.isEmpty()) {
+			return writerTypeNames;
+		}
+		List<String> merged = this.mergedTypeNames.get(writerTypeNames);
+		if (merged == null) {
+			merged = this.mergeTypeNames(writerTypeNames);
+		}
+		return merged;
+	}
+
+	/**
+	 * The values of the typeNames (see {@link #getTypeNames(List)}) found in
+	 * the typeName of an MBean, joined with _. The typeName is only parsed the
+	 * first time a writer of the query asks.
+	 */
+	public String getConcatedTypeNameValues(List<String> writerTypeNames, String typeName) {
+		List<String> names = this.getTypeNames(writerTypeNames);
+		BoundedCache<String, String> cache = this.typeNameValues.get(writerTypeNames);
+		if ((names == null) || names.isEmpty() || (typeName == null) || (cache == null)) {
+			return JmxUtils.getConcatedTypeNameValues(names, typeName);
+		}
+
+		String concated = cache.get(typeName);
+		if (concated == null) {
+			// MBeans can come and go under a pattern, the cache is bounded.
+			concated = cache.putIfAbsent(typeName, JmxUtils.getConcatedTypeNameValues(names, typeName));
+		}
+		return concated;
+	}
+
+	/** */
+	private List<String> mergeTypeNames(List<String> writerTypeNames) {
+		List<String> allNames = new ArrayList<String>(this.typeNames);
+		if (writerTypeNames != null) {
+			for (String name : writerTypeNames) {
+				if (!allNames.contains(name)) {
+					allNames.add(name);
+				}
+			}
+		}
+		return Collections.unmodifiableList(allNames);
+	}
+}
@@ -74,7 +74,7 @@ public class Result {
 		if (this.values == null) {
 			values = new TreeMap<String, Object>();
 		}
-		if (query.getKeys() == null || query.getKeys().contains(key)) {
+		if (query.getPlan().acceptsKey(key)) {
 			values.put(key, value);
 		}
 	}
@@ -3,6 +3,7 @@ package com.googlecode.jmxtrans.model;
 import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 
 import org.apache.commons.lang.builder.EqualsBuilder;
 import org.apache.commons.lang.builder.HashCodeBuilder;
@@ -15,6 +16,7 @@ import org.slf4j.LoggerFactory;
 
 import com.googlecode.jmxtrans.util.DatagramSocketFactory;
 import com.googlecode.jmxtrans.util.JmxConnectionFactory;
+import com.googlecode.jmxtrans.util.MBeanMetadataCache;
 import com.googlecode.jmxtrans.util.PropertyResolver;
 import com.googlecode.jmxtrans.util.SocketFactory;
 import com.googlecode.jmxtrans.util.ValidationException;
@@ -58,6 +60,9 @@ public class Server {
 
 	private List<Query> queries = new ArrayList<Query>();
 
+	private final MBeanMetadataCache metadataCache = new MBeanMetadataCache();
+	private volatile ExecutorService queryExecutor;
+
 	public Server() {
 	}
 
@@ -101,6 +106,33 @@ public class Server {
 		this.localMBeanServer = localMBeanServer;
 	}
 
+	/**
+	 * The cache of MBean metadata for this server, shared by all of its
+	 * queries.
+	 */
+	@JsonIgnore
+	public MBeanMetadataCache getMetadataCache() {
+		return this.metadataCache;
+	}
+
+	/**
+	 * The long lived executor running the queries of this server in parallel,
+	 * null if they are run in the job thread or if nobody owns one (each run
+	 * then creates its own threads).
+	 */
+	@JsonIgnore
+	public ExecutorService getQueryExecutor() {
+		return this.queryExecutor;
+	}
+
+	/**
+	 * The long lived executor running the queries of this server in parallel.
+	 * Whoever sets it is responsible for shutting it down.
+	 */
+	public void setQueryExecutor(ExecutorService queryExecutor) {
+		this.queryExecutor = queryExecutor;
+	}
+
 	/**
 	 * Some writers (GraphiteWriter) use the alias in generation of the unique
 	 * key which references this server.
@@ -204,6 +236,7 @@ public class Server {
 	 */
 	public void addQuery(Query q) throws ValidationException {
 		if (!this.queries.contains(q)) {
+			q.setServer(this);
 			this.queries.add(q);
 		} else {
 			log.debug("Skipped duplicate query: " + q + " for server: " + this);
@@ -234,7 +267,11 @@ public class Server {
 	 *
 	 * @return null if there are no queries or empty list if there are no
 	 *         results.
+	 * @deprecated queries don't keep the Results of their runs anymore, the
+	 *             writers get them in a CollectionSnapshot. This always
+	 *             returns an empty list now.
 	 */
+	@Deprecated
 	@JsonIgnore
 	public List<Result> getResults() {
 		List<Query> queries = this.getQueries();
@@ -257,6 +294,27 @@ public class Server {
 		return (this.numQueryThreads != null) && (this.numQueryThreads > 0);
 	}
 
+	/**
+	 * How many threads running the queries of this server need: the
+	 * numQueryThreads if set, otherwise the highest fetchParallelism of its
+	 * queries. 1 means the queries are run in the job thread.
+	 */
+	@JsonIgnore
+	public int getQueryThreadCount() {
+		if (this.isQueriesMultiThreaded()) {
+			return this.numQueryThreads;
+		}
+		int max = 1;
+		for (Query query : this.queries) {
+			try {
+				max = Math.max(max, query.getPlan().getFetchParallelism());
+			} catch (IllegalStateException e) {
+				// A query that doesn't compile is skipped by the runs.
+			}
+		}
+		return max;
+	}
+
 	/**
 	 * The number of query threads for this server.
 	 */
@@ -298,7 +356,10 @@ public class Server {
 				+ ", numQueryThreads=" + this.numQueryThreads + "]";
 	}
 
-	/** */
+	/**
+	 * The numQueryThreads isn't part of what makes a server: a reload of the
+	 * configuration applies a new one to the running server.
+	 */
 	@Override
 	public boolean equals(Object o) {
 		if (o == null) {
@@ -318,7 +379,7 @@ public class Server {
 		Server other = (Server) o;
 
 		return new EqualsBuilder().append(this.getHost(), other.getHost()).append(this.getPort(), other.getPort())
-				.append(this.getNumQueryThreads(), other.getNumQueryThreads()).append(this.getCronExpression(), other.getCronExpression())
+				.append(this.getCronExpression(), other.getCronExpression())
 				.append(this.getAlias(), other.getAlias()).append(this.getUsername(), other.getUsername())
 				.append(this.getPassword(), other.getPassword()).isEquals();
 	}
@@ -326,8 +387,7 @@ public class Server {
 	/** */
 	@Override
 	public int hashCode() {
-		return new HashCodeBuilder(13, 21).append(this.getHost()).append(this.getPort()).append(this.getNumQueryThreads())
-				.append(this.getCronExpression()).append(this.getAlias()).append(this.getUsername()).append(this.getPassword()).toHashCode();
+		return new HashCodeBuilder(13, 21).append(this.getHost()).append(this.getPort()).append(this.getCronExpression()).append(this.getAlias()).append(this.getUsername()).append(this.getPassword()).toHashCode();
 	}
 
 	/**
@@ -2,6 +2,8 @@ package com.googlecode.jmxtrans.model.output;
 
 import static com.googlecode.jmxtrans.model.output.KeyOutWriter.LOG_PATTERN;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import org.apache.log4j.Appender;
 
 import org.apache.log4j.DailyRollingFileAppender;
@@ -24,6 +26,10 @@ import org.apache.log4j.PatternLayout;
  * ("'.'yyyy-MM-dd") See the documentation for DailyRollingFileAppender for
  * other useful patterns.
  * 
+ * The compression setting works as it does for KeyOutWriter. compressRolled
+ * doesn't, DailyRollingFileAppender doesn't let the files it rolls over be
+ * compressed.
+ * 
  */
 public class DailyKeyOutWriter extends KeyOutWriter {
 
@@ -37,13 +43,27 @@ public class DailyKeyOutWriter extends KeyOutWriter {
 	 * The maxLogFileSize and maxLogBackupFiles are ignored as per the existing behaviour of DailyKeyOutWriter.
 	 */
 	@Override
-	protected Appender buildLog4jAppender(String fileStr, String maxLogFileSize, Integer maxLogBackupFiles)
+	protected Appender buildLog4jAppender(final String fileStr, String maxLogFileSize, Integer maxLogBackupFiles)
 			throws IOException {
 		String datePattern = (String) this.getSettings().get("datePattern");
 		if (datePattern == null) {
 			datePattern = DATE_PATTERN;
 		}
 		PatternLayout pl = new PatternLayout(LOG_PATTERN);
+		if (isCompressed()) {
+			final long syncIntervalMillis = getCompressionSyncIntervalMillis();
+			DailyRollingFileAppender appender = new DailyRollingFileAppender() {
+				@Override
+				protected OutputStreamWriter createWriter(OutputStream os) {
+					return super.createWriter(compressedStream(fileStr, os, syncIntervalMillis));
+				}
+			};
+			appender.setLayout(pl);
+			appender.setFile(fileStr);
+			appender.setDatePattern(datePattern);
+			appender.activateOptions();
+			return appender;
+		}
 		DailyRollingFileAppender appender = new DailyRollingFileAppender(pl, fileStr, datePattern);
 		
 		return appender;
@@ -3,9 +3,12 @@ package com.googlecode.jmxtrans.model.output;
 import com.googlecode.jmxtrans.model.Query;
 import com.googlecode.jmxtrans.model.Result;
 import com.googlecode.jmxtrans.util.BaseOutputWriter;
+import com.googlecode.jmxtrans.util.BoundedCache;
+import com.googlecode.jmxtrans.util.GangliaSender;
 import com.googlecode.jmxtrans.util.JmxUtils;
+import com.googlecode.jmxtrans.util.MetricNameSanitizer;
 import com.googlecode.jmxtrans.util.ValidationException;
-import info.ganglia.gmetric4j.gmetric.GMetric;
+import com.googlecode.jmxtrans.util.XdrBuffer;
 import info.ganglia.gmetric4j.gmetric.GMetricSlope;
 import info.ganglia.gmetric4j.gmetric.GMetricType;
 import org.slf4j.Logger;
@@ -13,6 +16,7 @@ import org.slf4j.LoggerFactory;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.List;
 import java.util.Map;
 import java.io.IOException;
 
@@ -25,6 +29,12 @@ import static info.ganglia.gmetric4j.gmetric.GMetric.UDPAddressingMode;
 /**
  * {@link com.googlecode.jmxtrans.OutputWriter} for <a href="http://ganglia.sourceforge.net">Ganglia</a>.
  *
+ * Values are sent through a socket shared by the writers announcing to the
+ * same gmond, see {@link GangliaSender}. With the 3.1 protocol a metric is
+ * described by a metadata packet, encoded once per metric name and sent with
+ * its first value, then every sendMetadataInterval values (so that a
+ * restarted gmond learns about it again) or as soon as its type changes.
+ *
  * @author Julien Nicoulaud <http://github.com/nicoulaj>
  * @author jon
  */
@@ -45,6 +55,7 @@ public class GangliaWriter extends BaseOutputWriter {
     public static final String DMAX = "dmax";
     public static final String GROUP_NAME = "groupName";
     public static final String SPOOF_NAME = "spoofedHostName";
+    public static final String SEND_METADATA_INTERVAL = "sendMetadataInterval";
 
     /* Settings default values. */
     public static final String DEFAULT_HOST = null;
@@ -57,6 +68,14 @@ public class GangliaWriter extends BaseOutputWriter {
     public static final int DEFAULT_DMAX = 0;
     public static final int DEFAULT_TMAX = 60;
     public static final String DEFAULT_GROUP_NAME = "JMX";
+    public static final int DEFAULT_SEND_METADATA_INTERVAL = 5;
+
+    /** How many metrics are remembered, the least recently used going first. */
+    private static final int MAX_METRICS = 10000;
+
+    /* Ganglia 3.1 message ids. */
+    private static final int GMETADATA_FULL = 128;
+    private static final int GMETRIC_STRING = 133;
 
     /* Settings run-time values. */
     protected String host = DEFAULT_HOST;
@@ -70,6 +89,10 @@ public class GangliaWriter extends BaseOutputWriter {
     protected int dmax = DEFAULT_DMAX;
     protected String groupName = DEFAULT_GROUP_NAME;
     protected String spoofedHostName = null;
+    protected int sendMetadataInterval = DEFAULT_SEND_METADATA_INTERVAL;
+
+    /** The metrics announced so far, by name. */
+    private final BoundedCache<String, GangliaMetric> metrics = new BoundedCache<String, GangliaMetric>(MAX_METRICS);
 
     /** Parse and validate settings. */
     @Override
@@ -116,6 +139,10 @@ public class GangliaWriter extends BaseOutputWriter {
         // Parse and validate group name setting
         groupName = getStringSetting(GROUP_NAME, DEFAULT_GROUP_NAME);
 
+        // Parse and validate metadata interval setting
+        sendMetadataInterval = getIntegerSetting(SEND_METADATA_INTERVAL, DEFAULT_SEND_METADATA_INTERVAL);
+        if (sendMetadataInterval < 1) throw new ValidationException("sendMetadataInterval must be greater than 0", query);
+
     	// Determine the spoofed hostname
         spoofedHostName = getSpoofedHostName(query.getServer().getHost(), query.getServer().getAlias());
         
@@ -130,42 +157,137 @@ public class GangliaWriter extends BaseOutputWriter {
                   TMAX + ": " + tmax + ", " +
                   DMAX + ": " + dmax + ", " +
                   SPOOF_NAME + ": " + spoofedHostName + ", " +
+                  SEND_METADATA_INTERVAL + ": " + sendMetadataInterval + ", " +
                   GROUP_NAME + ": '" + groupName + "']");
+
+        // The metadata depends on the settings.
+        metrics.clear();
     }
 
     /** Send query result values to Ganglia. */
     @Override
     public void doWrite(Query query) throws Exception {
+        final GangliaSender sender = GangliaSender.get(host, port, addressingMode, ttl);
+        final List<String> typeNames = getTypeNames();
+        final XdrBuffer buffer = new XdrBuffer(256);
         for (final Result result : query.getResults()) {
             if (result.getValues() != null) {
                 for (final Map.Entry<String, Object> resultValue : result.getValues().entrySet()) {
-                    final String name = JmxUtils.getKeyString2(query, result, resultValue, getTypeNames(), null);
+                    final String name = getMetricName2(query, result, resultValue, typeNames).getName();
                     final String value = resultValue.getValue().toString();
-                    GMetricType dataType = getType(resultValue.getValue());
-                    log.debug("Sending Ganglia metric {}={} [type={}]", new Object[]{name, value, dataType});
-                    new GMetric(
-                            host,
-                            port,
-                            addressingMode,
-                            ttl,
-                            v31,
-                            null,
-                            spoofedHostName
-                    ).announce(
-                            name,
-                            value,
-                            dataType,
-                            units,
-                            slope,
-                            tmax,
-                            dmax,
-                            groupName
-                    );
+                    final GangliaMetric metric = getMetric(name);
+                    synchronized (metric) {
+                        GMetricType dataType = metric.getType(resultValue.getValue());
+                        log.debug("Sending Ganglia metric {}={} [type={}]", new Object[]{name, value, dataType});
+                        if (v31) {
+                            if (metric.isTimeToSendMetadata(dataType)) {
+                                sender.send(metric.metadata, metric.metadata.length);
+                            }
+                            buffer.reset();
+                            buffer.putRaw(metric.valuePrefix).putString(value);
+                        } else {
+                            buffer.reset();
+                            buffer.putInt(0).putString(dataType.getGangliaType()).putString(name).putString(value)
+                                    .putString(units).putInt(slope.getGangliaSlope()).putInt(tmax).putInt(dmax);
+                        }
+                        sender.send(buffer.array(), buffer.size());
+                    }
                 }
             }
         }
     }
 
+    /** The metric of that name, created on first use. */
+    private GangliaMetric getMetric(String name) throws UnknownHostException {
+        GangliaMetric metric = metrics.get(name);
+        if (metric == null) {
+            metric = metrics.putIfAbsent(name, new GangliaMetric(name));
+        }
+        return metric;
+    }
+
+    /**
+     * What is remembered of a metric: its type and the packets that only
+     * depend on its name and type, encoded.
+     */
+    private class GangliaMetric {
+        private final String name;
+        /** The metric_id, as it starts every packet about the metric. */
+        private final byte[] metricId;
+        /** The start of value packets, up to the value. */
+        private final byte[] valuePrefix;
+
+        private Class<?> valueClass;
+        private GMetricType type;
+        private GMetricType metadataType;
+        private byte[] metadata;
+        /** The number of values sent since the metadata was. */
+        private int sinceMetadata;
+
+        private GangliaMetric(String name) throws UnknownHostException {
+            this.name = name;
+            XdrBuffer buffer = new XdrBuffer(64);
+            if (spoofedHostName == null) {
+                buffer.putString(InetAddress.getLocalHost().getHostName()).putString(name).putBoolean(false);
+            } else {
+                buffer.putString(spoofedHostName).putString(name).putBoolean(true);
+            }
+            this.metricId = buffer.toByteArray();
+
+            buffer.reset();
+            this.valuePrefix = buffer.putInt(GMETRIC_STRING).putRaw(metricId).putString("%s").toByteArray();
+        }
+
+        /**
+         * The type of a value, decided once per class of value. A string keeps
+         * its type as long as it is made of digits, or if it wasn't a number.
+         */
+        private GMetricType getType(Object value) {
+            if (value.getClass() != valueClass
+                    || (value instanceof String && type != GMetricType.STRING && !JmxUtils.isNumeric((String) value))) {
+                valueClass = value.getClass();
+                type = GangliaWriter.getType(value);
+            }
+            return type;
+        }
+
+        /**
+         * Whether the metadata is to be sent with this value, encoding it again
+         * if the type changed.
+         */
+        private boolean isTimeToSendMetadata(GMetricType dataType) {
+            if (dataType != metadataType) {
+                metadata = encodeMetadata(dataType);
+                metadataType = dataType;
+                sinceMetadata = 0;
+                return true;
+            }
+            if (++sinceMetadata >= sendMetadataInterval) {
+                sinceMetadata = 0;
+                return true;
+            }
+            return false;
+        }
+
+        private byte[] encodeMetadata(GMetricType dataType) {
+            XdrBuffer buffer = new XdrBuffer(128);
+            buffer.putInt(GMETADATA_FULL).putRaw(metricId)
+                    .putString(dataType.getGangliaType()).putString(name).putString(units)
+                    .putInt(slope.getGangliaSlope()).putInt(tmax).putInt(dmax)
+                    .putInt(3)
+                    .putString("GROUP").putString(groupName)
+                    .putString("TITLE").putString(name)
+                    .putString("DESC").putString(name);
+            return buffer.toByteArray();
+        }
+    }
+
+    /** Ganglia metric names get the usual cleanup. */
+    @Override
+    public MetricNameSanitizer getSanitizer() {
+        return MetricNameSanitizer.GANGLIA;
+    }
+
     /**
     * Determines the spoofed host name to be used when emitting metrics to a
     * gmond process. Spoofed host names are of the form IP:hostname.
@@ -6,6 +6,7 @@ import com.googlecode.jmxtrans.model.Query;
 import com.googlecode.jmxtrans.model.Result;
 import com.googlecode.jmxtrans.model.Server;
 import com.googlecode.jmxtrans.util.*;
+import com.googlecode.jmxtrans.util.MetricKeyCache.MetricName;
 import org.apache.commons.pool.KeyedObjectPool;
 import org.apache.commons.pool.impl.GenericKeyedObjectPool;
 import org.slf4j.Logger;
@@ -13,10 +14,11 @@ import org.slf4j.LoggerFactory;
 
 import javax.management.MBeanServer;
 import javax.management.ObjectName;
-import java.io.PrintWriter;
+import java.io.OutputStream;
 import java.lang.management.ManagementFactory;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -29,6 +31,21 @@ import java.util.concurrent.locks.ReentrantLock;
  * This low latency and thread save output writer sends data to a host/port combination
  * in the Graphite format.
  *
+ * The lines of a query are encoded into a buffer that is reused from one write
+ * to the next, and sent in chunks of batchSize lines (or maxBufferBytes bytes,
+ * whichever comes first) instead of one line per packet. Everything is sent
+ * by the time doWrite returns. A batchSize of 1 sends every line on its own.
+ *
+ * With protocol set to "pickle" the datapoints are sent to carbon's pickle
+ * receiver (usually port 2004) instead, in frames of batchSize datapoints or
+ * maxBufferBytes bytes.
+ *
+ * Instead of a host and port, destinations can list several carbon-caches as
+ * "host:port" or "host:port:instance". Every metric path is then sent to the
+ * destination carbon-relay's consistent hashing would pick for it (and to the
+ * next replicationFactor - 1 ones on the ring), so the caches can be written
+ * to directly. Each destination has its own pooled connection and buffer.
+ *
  * @see <a
  *      href="http://graphite.wikidot.com/getting-your-data-into-graphite">http://graphite.wikidot.com/getting-your-data-into-graphite</a>
  *
@@ -38,10 +55,31 @@ public class GraphiteWriter extends BaseOutputWriter {
 
 	private static final Logger log = LoggerFactory.getLogger(GraphiteWriter.class);
 	public static final String ROOT_PREFIX = "rootPrefix";
-	
+	public static final String BATCH_SIZE = "batchSize";
+	public static final String MAX_BUFFER_BYTES = "maxBufferBytes";
+	public static final String PROTOCOL = "protocol";
+	public static final String DESTINATIONS = "destinations";
+	public static final String REPLICATION_FACTOR = "replicationFactor";
+
+	public static final String PROTOCOL_PLAINTEXT = "plaintext";
+	public static final String PROTOCOL_PICKLE = "pickle";
+
+	public static final int DEFAULT_BATCH_SIZE = 500;
+	public static final int DEFAULT_MAX_BUFFER_BYTES = 64 * 1024;
+
 	private String host;
 	private Integer port;
 	private String rootPrefix = "servers";
+	private int batchSize = DEFAULT_BATCH_SIZE;
+	private int maxBufferBytes = DEFAULT_MAX_BUFFER_BYTES;
+	private boolean pickle = false;
+	private int replicationFactor = 1;
+
+	/**
+	 * Where the metrics go. validateSetup replaces it on reload, a write in
+	 * progress keeps using the one it started with.
+	 */
+	private volatile Routing routing;
 
 	private static KeyedObjectPool pool = null;
 	private static AtomicInteger activeServers = new AtomicInteger(0);
@@ -52,7 +90,6 @@ public class GraphiteWriter extends BaseOutputWriter {
 	private GraphiteWriterStatus status = GraphiteWriterStatus.STOPPED;
 	
 	private ManagedObject mbean;
-	private InetSocketAddress address;
 
 	/**
 	 * Uses JmxUtils.getDefaultPoolMap()
@@ -107,29 +144,104 @@ public class GraphiteWriter extends BaseOutputWriter {
 		
 	/** */
 	public void validateSetup(Query query) throws ValidationException {
-		host = (String) this.getSettings().get(HOST);
-		Object portObj = this.getSettings().get(PORT);
-		if (portObj instanceof String) {
-			port = Integer.parseInt((String) portObj);
-		} else if (portObj instanceof Integer) {
-			port = (Integer) portObj;
+		String rootPrefixTmp = (String) this.getSettings().get(ROOT_PREFIX);
+		if (rootPrefixTmp != null) {
+			rootPrefix = rootPrefixTmp;
 		}
 
-		if (host == null || port == null) {
-			throw new ValidationException("Host and port can't be null", query);
+		batchSize = this.getIntSetting(BATCH_SIZE, DEFAULT_BATCH_SIZE);
+		maxBufferBytes = this.getIntSetting(MAX_BUFFER_BYTES, DEFAULT_MAX_BUFFER_BYTES);
+		if (batchSize < 1 || maxBufferBytes < 1) {
+			throw new ValidationException("batchSize and maxBufferBytes must be greater than 0", query);
 		}
 
-		String rootPrefixTmp = (String) this.getSettings().get(ROOT_PREFIX);
-		if (rootPrefixTmp != null) {
-			rootPrefix = rootPrefixTmp;
+		String protocol = this.getStringSetting(PROTOCOL, PROTOCOL_PLAINTEXT);
+		if (PROTOCOL_PICKLE.equalsIgnoreCase(protocol)) {
+			pickle = true;
+		} else if (PROTOCOL_PLAINTEXT.equalsIgnoreCase(protocol)) {
+			pickle = false;
+		} else {
+			throw new ValidationException("Unknown protocol: " + protocol + ", expecting " + PROTOCOL_PLAINTEXT + " or " + PROTOCOL_PICKLE, query);
+		}
+
+		List<Destination> parsed = new ArrayList<Destination>();
+		Object destinationsObj = this.getSettings().get(DESTINATIONS);
+		if (destinationsObj != null) {
+			List<String> ringKeys = new ArrayList<String>();
+			for (String destination : toList(destinationsObj)) {
+				Destination parsedDestination = this.parseDestination(destination, query);
+				if (ringKeys.contains(parsedDestination.ringKey)) {
+					throw new ValidationException("Destination listed twice: " + destination, query);
+				}
+				ringKeys.add(parsedDestination.ringKey);
+				parsed.add(parsedDestination);
+			}
+			if (parsed.isEmpty()) {
+				throw new ValidationException("destinations can't be empty", query);
+			}
+		} else {
+			host = (String) this.getSettings().get(HOST);
+			Object portObj = this.getSettings().get(PORT);
+			if (portObj instanceof String) {
+				port = Integer.parseInt((String) portObj);
+			} else if (portObj instanceof Integer) {
+				port = (Integer) portObj;
+			}
+
+			if (host == null || port == null) {
+				throw new ValidationException("Host and port can't be null", query);
+			}
+			parsed.add(new Destination(host, port, null));
 		}
 
-		this.address = new InetSocketAddress(host, port);
+		replicationFactor = this.getIntSetting(REPLICATION_FACTOR, 1);
+		if (replicationFactor < 1) {
+			throw new ValidationException("replicationFactor must be greater than 0", query);
+		}
+
+		ConsistentHashRing<Destination> newRing = new ConsistentHashRing<Destination>();
+		for (Destination destination : parsed) {
+			newRing.addNode(destination.ringKey, destination);
+		}
+		this.routing = new Routing(parsed, newRing);
+	}
+
+	/**
+	 * The destinations setting, either a list or a comma separated String.
+	 */
+	private static List<String> toList(Object destinationsObj) {
+		List<String> list = new ArrayList<String>();
+		if (destinationsObj instanceof List) {
+			for (Object destination : (List<?>) destinationsObj) {
+				list.add(destination.toString().trim());
+			}
+		} else {
+			for (String destination : destinationsObj.toString().split(",")) {
+				if (destination.trim().length() > 0) {
+					list.add(destination.trim());
+				}
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * Parses host:port or host:port:instance.
+	 */
+	private Destination parseDestination(String destination, Query query) throws ValidationException {
+		String[] parts = destination.split(":");
+		if (parts.length < 2 || parts.length > 3) {
+			throw new ValidationException("Destination should be host:port or host:port:instance, not: " + destination, query);
+		}
+		try {
+			return new Destination(parts[0], Integer.parseInt(parts[1]), (parts.length == 3) ? parts[2] : null);
+		} catch (NumberFormatException e) {
+			throw new ValidationException("Invalid port in destination: " + destination, query);
+		}
 	}
 
 	/** */
 	public void doWrite(Query query) throws Exception {
-		Socket socket = null;
 		statusLock.lock();
 		try {
 			while (status == GraphiteWriterStatus.STARTING) {
@@ -138,54 +250,233 @@ public class GraphiteWriter extends BaseOutputWriter {
 			if (status != GraphiteWriterStatus.STARTED) {
 				throw new LifecycleException("GraphiteWriter instance should be started");
 			}
-			socket = (Socket) pool.borrowObject(address);
 		} finally {
 			statusLock.unlock();
 		}
 
-		try {
-			PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
-
-			List<String> typeNames = this.getTypeNames();
+		List<String> typeNames = this.getTypeNames();
+		// A reload may replace the routing meanwhile, the sockets borrowed are
+		// given back by the destinations that borrowed them.
+		Routing routing = this.routing;
+		ConsistentHashRing<Destination> ring = routing.ring;
+		List<Destination> destinations = routing.destinations;
+		List<Destination> targets = new ArrayList<Destination>(replicationFactor);
+		synchronized (destinations) {
+			try {
+				for (Result result : query.getResults()) {
+					if (isDebugEnabled()) {
+						log.debug("Query result: " + result.toString());
+					}
+					Map<String, Object> resultValues = result.getValues();
+					if (resultValues != null) {
+						for (Entry<String, Object> values : resultValues.entrySet()) {
+							Object value = values.getValue();
+							if (pickle ? toDouble(value) != null : JmxUtils.isNumeric(value)) {
+								MetricName name = this.getMetricName(query, result, values, typeNames, rootPrefix);
+								long epoch = result.getEpoch() / 1000;
 
-			for (Result result : query.getResults()) {
-				if (isDebugEnabled()) {
-					log.debug("Query result: " + result.toString());
-				}
-				Map<String, Object> resultValues = result.getValues();
-				if (resultValues != null) {
-					for (Entry<String, Object> values : resultValues.entrySet()) {
-						Object value = values.getValue();
-						if (JmxUtils.isNumeric(value)) {
-							StringBuilder sb = new StringBuilder();
-
-							sb.append(JmxUtils.getKeyString(query, result, values, typeNames, rootPrefix).replaceAll("[()]", "_"));
-
-							sb.append(" ");
-							sb.append(value.toString());
-							sb.append(" ");
-							sb.append(result.getEpoch() / 1000);
-							sb.append("\n");
-
-							String line = sb.toString();
-							if (isDebugEnabled()) {
-								log.debug("Graphite Message: " + line.trim());
-							}
-							writer.write(line);
-							writer.flush();
-						} else {
-							if (log.isWarnEnabled()) {
-								log.warn("Unable to submit non-numeric value to Graphite: \"" + value + "\" from result " + result);
+								ring.getNodes(name.getName(), replicationFactor, targets);
+								for (Destination destination : targets) {
+									destination.add(name, value, epoch);
+								}
+								if (isDebugEnabled()) {
+									log.debug("Graphite Message: " + name + " " + value + " " + epoch);
+								}
+							} else {
+								if (log.isWarnEnabled()) {
+									log.warn("Unable to submit non-numeric value to Graphite: \"" + value + "\" from result " + result);
+								}
 							}
 						}
 					}
 				}
+
+				Exception firstError = null;
+				for (Destination destination : destinations) {
+					destination.finish();
+					if (firstError == null) {
+						firstError = destination.error;
+					}
+				}
+				if (firstError != null) {
+					throw firstError;
+				}
+			} finally {
+				for (Destination destination : destinations) {
+					destination.release();
+				}
 			}
-		} finally {
-			pool.returnObject(address, socket);
 		}
 	}
-	
+
+	/**
+	 * The destinations and the ring over them, replaced together so that a
+	 * write never routes to destinations other than the ones it locked.
+	 */
+	private static class Routing {
+		/** Guarded by itself while writing. */
+		private final List<Destination> destinations;
+		private final ConsistentHashRing<Destination> ring;
+
+		private Routing(List<Destination> destinations, ConsistentHashRing<Destination> ring) {
+			this.destinations = destinations;
+			this.ring = ring;
+		}
+	}
+
+	/**
+	 * A carbon-cache (or relay) we send to, with the connection borrowed for
+	 * the current write and the buffer of what it hasn't been sent yet. Only
+	 * used while holding the destinations lock.
+	 *
+	 * If sending fails the error is kept and the rest of the write is dropped
+	 * for this destination only, the others still get their metrics.
+	 */
+	private class Destination {
+		private final InetSocketAddress address;
+		private final String ringKey;
+
+		private LineBuffer lines;
+		private PickleEncoder frames;
+
+		private Socket socket;
+		private OutputStream out;
+		private Exception error;
+
+		private Destination(String host, int port, String instance) {
+			this.address = new InetSocketAddress(host, port);
+			this.ringKey = ConsistentHashRing.carbonKey(host, instance);
+		}
+
+		/**
+		 * Buffers a datapoint, sending the batch if it is full.
+		 */
+		private void add(MetricName name, Object value, long epoch) {
+			if (this.error != null) {
+				return;
+			}
+			boolean full;
+			if (pickle) {
+				if (this.frames == null) {
+					this.frames = new PickleEncoder(Math.min(maxBufferBytes, 64 * 1024));
+				}
+				this.frames.add(name.getUtf8(), epoch, toDouble(value));
+				full = this.frames.count() >= batchSize || this.frames.size() >= maxBufferBytes;
+			} else {
+				if (this.lines == null) {
+					this.lines = new LineBuffer(Math.min(maxBufferBytes, 64 * 1024));
+				}
+				this.lines.append(name.getUtf8()).append(' ').append(value.toString()).append(' ').append(epoch).endLine();
+				full = this.lines.lines() >= batchSize || this.lines.size() >= maxBufferBytes;
+			}
+			if (full) {
+				this.send();
+			}
+		}
+
+		/**
+		 * Sends what is left and flushes the connection.
+		 */
+		private void finish() {
+			this.send();
+			if (this.error == null && this.out != null) {
+				try {
+					this.out.flush();
+				} catch (Exception e) {
+					this.failed(e);
+				}
+			}
+		}
+
+		/** */
+		private void send() {
+			boolean empty = pickle ? (this.frames == null || this.frames.count() == 0) : (this.lines == null || this.lines.lines() == 0);
+			if (this.error != null || empty) {
+				return;
+			}
+			try {
+				if (this.socket == null) {
+					this.socket = (Socket) pool.borrowObject(this.address);
+					this.out = this.socket.getOutputStream();
+				}
+				if (pickle) {
+					this.frames.writeTo(this.out);
+				} else {
+					this.lines.writeTo(this.out);
+				}
+			} catch (Exception e) {
+				this.failed(e);
+			} finally {
+				this.reset();
+			}
+		}
+
+		/** */
+		private void failed(Exception e) {
+			log.error("Error sending metrics to " + this.address, e);
+			this.error = e;
+		}
+
+		/** */
+		private void reset() {
+			if (this.frames != null) {
+				this.frames.reset();
+			}
+			if (this.lines != null) {
+				this.lines.reset();
+			}
+		}
+
+		/**
+		 * Gives the connection back to the pool, or throws it away if sending
+		 * failed, and gets ready for the next write.
+		 */
+		private void release() {
+			this.reset();
+			Socket borrowed = this.socket;
+			boolean failed = this.error != null;
+			this.socket = null;
+			this.out = null;
+			this.error = null;
+			if (borrowed != null) {
+				try {
+					if (failed) {
+						pool.invalidateObject(this.address, borrowed);
+					} else {
+						pool.returnObject(this.address, borrowed);
+					}
+				} catch (Exception e) {
+					log.warn("Unable to release the connection to " + this.address, e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Parentheses are replaced as well.
+	 */
+	@Override
+	public MetricNameSanitizer getSanitizer() {
+		return MetricNameSanitizer.GRAPHITE;
+	}
+
+	/**
+	 * The value as a double, null if it isn't a number.
+	 */
+	private static Double toDouble(Object value) {
+		if (value instanceof Number) {
+			return ((Number) value).doubleValue();
+		}
+		if (JmxUtils.isNumeric(value)) {
+			try {
+				return Double.valueOf((String) value);
+			} catch (NumberFormatException e) {
+				// An empty String passes isNumeric().
+			}
+		}
+		return null;
+	}
+
 	/**
 	 * Starts the pool and register it with JMX
 	 * 
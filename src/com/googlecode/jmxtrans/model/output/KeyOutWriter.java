@@ -1,23 +1,33 @@
 package com.googlecode.jmxtrans.model.output;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import org.slf4j.Logger;
 
 import com.googlecode.jmxtrans.model.Query;
 import com.googlecode.jmxtrans.model.Result;
+import com.googlecode.jmxtrans.util.AsyncLineWriter;
 import com.googlecode.jmxtrans.util.BaseOutputWriter;
 import com.googlecode.jmxtrans.util.JmxUtils;
+import com.googlecode.jmxtrans.util.LifecycleException;
+import com.googlecode.jmxtrans.util.RolledFileCompressor;
+import com.googlecode.jmxtrans.util.SyncedGzipOutputStream;
 import com.googlecode.jmxtrans.util.ValidationException;
 import org.apache.log4j.Appender;
 import org.apache.log4j.LogManager;
 import org.apache.log4j.PatternLayout;
 import org.apache.log4j.RollingFileAppender;
 import org.apache.log4j.spi.LoggerFactory;
+import org.codehaus.jackson.annotate.JsonIgnore;
 import org.slf4j.impl.Log4jLoggerFactory;
 
 /**
@@ -28,6 +38,24 @@ import org.slf4j.impl.Log4jLoggerFactory;
  * The default max size of the log files are 10MB (maxLogFileSize) The default
  * number of rolled files to keep is 200 (maxLogBackupFiles)
  * 
+ * With the async setting set to true, lines are queued (up to asyncQueueSize
+ * of them, 10000 by default) and written by a thread of their own, so that
+ * the query threads don't wait for the disk; see {@link AsyncLineWriter}.
+ * When the queue is full, asyncOverflow decides whether the query thread
+ * waits ("block", the default) or the line is dropped ("drop"). Lines are
+ * written asyncFlushSize bytes at a time (64KB by default), or after
+ * asyncFlushIntervalMillis (1000 by default), and whatever is queued is
+ * written on stop.
+ * 
+ * With compression set to "gzip", the files are gzipped as they are written,
+ * see {@link SyncedGzipOutputStream}: the lines are readable with zcat once
+ * the gzip member they are in is ended, which happens on the first write
+ * compressionSyncIntervalMillis (1000 by default) after the member was
+ * started, and on stop. maxLogFileSize is the size of the lines before
+ * compression. Otherwise, with compressRolled set to true, the files rolled
+ * over are gzipped to file.N.gz on a thread of their own, see
+ * {@link RolledFileCompressor}.
+ * 
  * @author jon
  */
 public class KeyOutWriter extends BaseOutputWriter {
@@ -44,8 +72,32 @@ public class KeyOutWriter extends BaseOutputWriter {
 	protected static final String MAX_LOG_FILE_SIZE = "10MB";
 	protected static final String DEFAULT_DELIMITER = "\t";
 
+	public static final String SETTING_ASYNC = "async";
+	public static final String SETTING_ASYNC_QUEUE_SIZE = "asyncQueueSize";
+	public static final String SETTING_ASYNC_OVERFLOW = "asyncOverflow";
+	public static final String SETTING_ASYNC_FLUSH_SIZE = "asyncFlushSize";
+	public static final String SETTING_ASYNC_FLUSH_INTERVAL_MILLIS = "asyncFlushIntervalMillis";
+
+	protected static final int DEFAULT_ASYNC_QUEUE_SIZE = 10000;
+	protected static final int DEFAULT_ASYNC_FLUSH_SIZE = 64 * 1024;
+	protected static final int DEFAULT_ASYNC_FLUSH_INTERVAL_MILLIS = 1000;
+	/** How long stop() waits for the queued lines to be written. */
+	protected static final long ASYNC_STOP_TIMEOUT_MILLIS = 10000;
+
+	public static final String SETTING_COMPRESSION = "compression";
+	public static final String SETTING_COMPRESSION_SYNC_INTERVAL_MILLIS = "compressionSyncIntervalMillis";
+	public static final String SETTING_COMPRESS_ROLLED = "compressRolled";
+
+	protected static final String COMPRESSION_NONE = "none";
+	protected static final String COMPRESSION_GZIP = "gzip";
+	protected static final int DEFAULT_COMPRESSION_SYNC_INTERVAL_MILLIS = 1000;
+	protected static final int COMPRESSION_BUFFER_SIZE = 8 * 1024;
+	/** The stream each compressed file is being written through, by outputFile, synced on stop. */
+	protected static final Map<String, SyncedGzipOutputStream> compressedStreams = new ConcurrentHashMap<String, SyncedGzipOutputStream>();
+
 	protected Logger logger;
 	protected String delimiter = DEFAULT_DELIMITER;
+	protected AsyncLineWriter asyncWriter;
 
 	public KeyOutWriter() {
 	}
@@ -60,26 +112,107 @@ public class KeyOutWriter extends BaseOutputWriter {
 		if (fileStr == null) {
 			throw new ValidationException("You must specify an outputFile setting.", query);
 		}
+		String compression = getStringSetting(SETTING_COMPRESSION, COMPRESSION_NONE);
+		if (!COMPRESSION_NONE.equals(compression) && !COMPRESSION_GZIP.equals(compression)) {
+			throw new ValidationException("compression must be none or gzip, not " + compression, query);
+		}
 		// Check if we've already created a logger for this file. If so, use it.
 		if (loggers.containsKey(fileStr)) {
 			logger = loggers.get(fileStr);
+		} else {
+			// need to create a logger
+			try {
+				logger = initLogger(fileStr);
+				loggers.put(fileStr, logger);
+			} catch (IOException e) {
+				throw new ValidationException("Failed to setup log4j", query);
+			}
+		}
+		if (getBooleanSetting(SETTING_ASYNC)) {
+			initAsyncWriter(query);
+		}
+	}
+
+	/**
+	 * Starts the thread that writes the lines, the first time the writer is
+	 * set up.
+	 */
+	protected synchronized void initAsyncWriter(Query query) throws ValidationException {
+		if (asyncWriter != null) {
 			return;
 		}
-		// need to create a logger
-		try {
-			logger = initLogger(fileStr);
-			loggers.put(fileStr, logger);
-		} catch (IOException e) {
-			throw new ValidationException("Failed to setup log4j", query);
+		int queueSize = getIntSetting(SETTING_ASYNC_QUEUE_SIZE, DEFAULT_ASYNC_QUEUE_SIZE);
+		int flushSize = getIntSetting(SETTING_ASYNC_FLUSH_SIZE, DEFAULT_ASYNC_FLUSH_SIZE);
+		int flushIntervalMillis = getIntSetting(SETTING_ASYNC_FLUSH_INTERVAL_MILLIS, DEFAULT_ASYNC_FLUSH_INTERVAL_MILLIS);
+		String overflow = getStringSetting(SETTING_ASYNC_OVERFLOW, "block");
+		if (queueSize < 1 || flushSize < 1 || flushIntervalMillis < 1) {
+			throw new ValidationException("asyncQueueSize, asyncFlushSize and asyncFlushIntervalMillis must be greater than 0", query);
+		}
+		AsyncLineWriter.Overflow policy;
+		if ("block".equals(overflow)) {
+			policy = AsyncLineWriter.Overflow.BLOCK;
+		} else if ("drop".equals(overflow)) {
+			policy = AsyncLineWriter.Overflow.DROP;
+		} else {
+			throw new ValidationException("asyncOverflow must be block or drop, not " + overflow, query);
+		}
+		asyncWriter = new AsyncLineWriter(logger, canJoinLines(), queueSize, policy, flushSize, flushIntervalMillis);
+		asyncWriter.start();
+	}
+
+	/**
+	 * Whether several lines can be logged as one message, which holds as long
+	 * as the layout only adds a line separator to the message.
+	 */
+	protected boolean canJoinLines() {
+		return true;
+	}
+
+	/**
+	 * Writes what is queued, in async mode.
+	 */
+	@Override
+	public void stop() throws LifecycleException {
+		AsyncLineWriter stopped;
+		synchronized (this) {
+			stopped = asyncWriter;
+			asyncWriter = null;
+		}
+		if (stopped != null) {
+			try {
+				stopped.stop(ASYNC_STOP_TIMEOUT_MILLIS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new LifecycleException(e);
+			}
+		}
+		String fileStr = (String) this.getSettings().get(OUTPUT_FILE);
+		SyncedGzipOutputStream compressed = (fileStr == null) ? null : compressedStreams.get(fileStr);
+		if (compressed != null) {
+			try {
+				compressed.sync();
+			} catch (IOException e) {
+				throw new LifecycleException(e);
+			}
 		}
 	}
 
+	/** The lines dropped because the async queue was full. */
+	@JsonIgnore
+	public synchronized long getLinesDropped() {
+		return (asyncWriter == null) ? 0 : asyncWriter.getLinesDropped();
+	}
+
 	/**
 	 * The meat of the output. Very similar to GraphiteWriter.
 	 */
 	@Override
 	public void doWrite(Query query) throws Exception {
 		List<String> typeNames = getTypeNames();
+		AsyncLineWriter async;
+		synchronized (this) {
+			async = asyncWriter;
+		}
 
 		for (Result result : query.getResults()) {
 			Map<String, Object> resultValues = result.getValues();
@@ -88,13 +221,17 @@ public class KeyOutWriter extends BaseOutputWriter {
 					if (JmxUtils.isNumeric(values.getValue())) {
 						StringBuilder sb = new StringBuilder();
 
-						sb.append(JmxUtils.getKeyString(query, result, values, typeNames, null));
+						sb.append(this.getMetricName(query, result, values, typeNames, null).getName());
 						sb.append(delimiter);
 						sb.append(values.getValue().toString());
 						sb.append(delimiter);
 						sb.append(result.getEpoch());
 
-						logger.info(sb.toString());
+						if (async != null) {
+							async.write(sb.toString());
+						} else {
+							logger.info(sb.toString());
+						}
 					}
 				}
 			}
@@ -134,6 +271,21 @@ public class KeyOutWriter extends BaseOutputWriter {
 			Integer maxLogBackupFiles) throws IOException {
 		
 		PatternLayout pl = new PatternLayout(LOG_PATTERN);
+		boolean compressRolled = !isCompressed() && getBooleanSetting(SETTING_COMPRESS_ROLLED);
+		if (isCompressed() || compressRolled) {
+			CompressingRollingFileAppender appender = new CompressingRollingFileAppender(fileStr, getCompressionSyncIntervalMillis(), compressRolled);
+			appender.setLayout(pl);
+			appender.setFile(fileStr);
+			appender.setAppend(true);
+			appender.setImmediateFlush(true);
+			appender.setBufferedIO(false);
+			appender.setBufferSize(LOG_IO_BUFFER_SIZE_BYTES);
+			appender.setMaxFileSize(maxLogFileSize);
+			appender.setMaxBackupIndex(maxLogBackupFiles);
+			appender.activateOptions();
+			return appender;
+		}
+
 		final RollingFileAppender appender = new RollingFileAppender(pl, fileStr, true);
 		appender.setImmediateFlush(true);
 		appender.setBufferedIO(false);
@@ -143,6 +295,97 @@ public class KeyOutWriter extends BaseOutputWriter {
 		
 		return appender;
 	}
+
+	/**
+	 * Whether the files are gzipped as they are written.
+	 */
+	protected boolean isCompressed() {
+		return COMPRESSION_GZIP.equals(getStringSetting(SETTING_COMPRESSION, COMPRESSION_NONE));
+	}
+
+	protected long getCompressionSyncIntervalMillis() {
+		return getIntSetting(SETTING_COMPRESSION_SYNC_INTERVAL_MILLIS, DEFAULT_COMPRESSION_SYNC_INTERVAL_MILLIS);
+	}
+
+	/**
+	 * Wraps the stream of the file being written in a gzip one, which stop()
+	 * syncs.
+	 */
+	protected static OutputStream compressedStream(String fileStr, OutputStream os, long syncIntervalMillis) {
+		SyncedGzipOutputStream compressed = new SyncedGzipOutputStream(os, COMPRESSION_BUFFER_SIZE, syncIntervalMillis);
+		compressedStreams.put(fileStr, compressed);
+		return compressed;
+	}
+
+	/**
+	 * A RollingFileAppender that either gzips the files as they are written,
+	 * or has them gzipped once they are rolled over. In the latter case the
+	 * backups are file.1.gz to file.N.gz, which this appender shifts the way
+	 * RollingFileAppender shifts file.1 to file.N.
+	 */
+	protected static class CompressingRollingFileAppender extends RollingFileAppender {
+
+		private final String key;
+		private final long syncIntervalMillis;
+		private final boolean compressRolled;
+		private Future<?> compressing;
+
+		/**
+		 * @param syncIntervalMillis
+		 *            see {@link SyncedGzipOutputStream}, unused if
+		 *            compressRolled
+		 */
+		public CompressingRollingFileAppender(String key, long syncIntervalMillis, boolean compressRolled) {
+			this.key = key;
+			this.syncIntervalMillis = syncIntervalMillis;
+			this.compressRolled = compressRolled;
+		}
+
+		@Override
+		protected OutputStreamWriter createWriter(OutputStream os) {
+			if (compressRolled) {
+				return super.createWriter(os);
+			}
+			return super.createWriter(compressedStream(key, os, syncIntervalMillis));
+		}
+
+		/**
+		 * Called with the appender locked, which waits for the previous
+		 * backup to be compressed, if it isn't yet, before it is renamed.
+		 */
+		@Override
+		public void rollOver() {
+			if (!compressRolled || maxBackupIndex <= 0) {
+				super.rollOver();
+				return;
+			}
+			if (compressing != null) {
+				try {
+					compressing.get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} catch (ExecutionException e) {
+					// Logged by the compressor.
+				}
+				compressing = null;
+			}
+			File oldest = new File(fileName + "." + maxBackupIndex + RolledFileCompressor.SUFFIX);
+			if (oldest.exists()) {
+				oldest.delete();
+			}
+			for (int i = maxBackupIndex - 1; i >= 1; i--) {
+				File backup = new File(fileName + "." + i + RolledFileCompressor.SUFFIX);
+				if (backup.exists()) {
+					backup.renameTo(new File(fileName + "." + (i + 1) + RolledFileCompressor.SUFFIX));
+				}
+			}
+			super.rollOver();
+			File rolled = new File(fileName + ".1");
+			if (rolled.exists()) {
+				compressing = RolledFileCompressor.compress(rolled);
+			}
+		}
+	}
 	
 	protected LoggerFactory buildLog4jLoggerFactory(final Appender appender) {
 		LoggerFactory loggerFactory = new LoggerFactory() {
@@ -1,26 +1,67 @@
 package com.googlecode.jmxtrans.model.output;
 
+import com.googlecode.jmxtrans.jmx.ManagedGenericKeyedObjectPool;
 import com.googlecode.jmxtrans.model.Query;
 import com.googlecode.jmxtrans.model.Result;
+import com.googlecode.jmxtrans.model.Server;
 import com.googlecode.jmxtrans.util.BaseOutputWriter;
+import com.googlecode.jmxtrans.util.BoundedCache;
 import com.googlecode.jmxtrans.util.JmxUtils;
 import com.googlecode.jmxtrans.util.LifecycleException;
+import com.googlecode.jmxtrans.util.LineBuffer;
+import com.googlecode.jmxtrans.util.MetricNameSanitizer;
+import com.googlecode.jmxtrans.util.SocketFactory;
 import com.googlecode.jmxtrans.util.ValidationException;
 import org.apache.commons.lang.StringUtils;
+import org.apache.commons.pool.KeyedObjectPool;
+import org.apache.commons.pool.impl.GenericKeyedObjectPool;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.JsonProcessingException;
+import org.codehaus.jackson.annotate.JsonIgnore;
+import org.codehaus.jackson.map.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.BufferedReader;
-import java.io.DataOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
 import java.net.Socket;
+import java.net.URL;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
 import java.io.IOException;
 
 /**
+ * Sends datapoints to OpenTSDB, with the telnet style put command (the
+ * default) or, with the protocol setting set to http, as JSON POSTed to the
+ * /api/put endpoint of OpenTSDB 2.
+ *
+ * Put commands are written on connections taken from a pool, a connection
+ * the TSD dropped is replaced by a new one. The tags of an MBean only depend
+ * on its typeName and are worked out once.
+ *
+ * Over HTTP the datapoints are sent batchSize at a time, gzipped if the gzip
+ * setting is true, on connections kept alive between requests. OpenTSDB is
+ * asked for a summary of what it stored (or the details of what it didn't,
+ * with the response setting set to details) and the stored and failed
+ * datapoints are counted, see {@link #getDatapointsSent()} and
+ * {@link #getDatapointsFailed()}.
+ *
  * Created by Balazs Kossovics <bko@witbe.net>
  * Date: 4/4/13
  * Time: 6:00 PM
@@ -28,155 +69,572 @@ import java.io.IOException;
 public class OpenTSDBWriter extends BaseOutputWriter {
     public static final boolean DEFAULT_MERGE_TYPE_NAMES_TAGS = true;
 
+    public static final String PROTOCOL = "protocol";
+    public static final String PROTOCOL_TELNET = "telnet";
+    public static final String PROTOCOL_HTTP = "http";
+    public static final String BATCH_SIZE = "batchSize";
+    public static final String GZIP = "gzip";
+    public static final String RESPONSE = "response";
+    public static final String RESPONSE_SUMMARY = "summary";
+    public static final String RESPONSE_DETAILS = "details";
+    public static final String HTTP_TIMEOUT_MILLIS = "httpTimeoutMillis";
+
+    /** What OpenTSDB suggests putting in a request. */
+    public static final int DEFAULT_BATCH_SIZE = 50;
+    public static final int DEFAULT_HTTP_TIMEOUT_MILLIS = 5000;
+
+    /**
+     * The typeNames whose tags are kept, the least recently used going first:
+     * MBeans come and go under a pattern.
+     */
+    private static final int MAX_TAG_SETS = 10000;
+    /** How much is buffered before it is written to the TSD. */
+    private static final int MAX_WRITE_BYTES = 64 * 1024;
+
     private static final Logger log = LoggerFactory.getLogger(OpenTSDBWriter.class);
 
     private String host;
     private Integer port;
     private Map<String, String> tags;
     private String tagName;
-    private Socket socket;
+    private InetSocketAddress address;
+    private KeyedObjectPool pool;
+    private ManagedGenericKeyedObjectPool mbean;
     private boolean mergeTypeNamesTags = DEFAULT_MERGE_TYPE_NAMES_TAGS;
+    private String localHostName;
+
+    private boolean http = false;
+    private URL putUrl;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private boolean gzip = false;
+    private boolean details = false;
+    private int httpTimeoutMillis = DEFAULT_HTTP_TIMEOUT_MILLIS;
+
+    private final BoundedCache<String, TagSet> tagSets = new BoundedCache<String, TagSet>(MAX_TAG_SETS);
+
+    private final JsonFactory jsonFactory = new JsonFactory();
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private final AtomicLong datapointsSent = new AtomicLong();
+    private final AtomicLong datapointsFailed = new AtomicLong();
+    private final AtomicLong requestsFailed = new AtomicLong();
 
-    String addTags(String resultString) throws UnknownHostException {
-        resultString = addTag(resultString, "host", java.net.InetAddress.getLocalHost().getHostName());
-        if (tags != null)
-            for (Map.Entry<String, String> tagEntry : tags.entrySet()) {
-                resultString = addTag(resultString, tagEntry.getKey(), tagEntry.getValue());
+    /**
+     * The tags shared by the datapoints of an MBean: host, the tags setting,
+     * then the typeNames tags, along with the " k=v k=v" suffix of its put
+     * commands, encoded once.
+     */
+    static class TagSet {
+        final Map<String, String> tags;
+        final String suffix;
+        final byte[] suffixUtf8;
+
+        TagSet(Map<String, String> tags) {
+            this.tags = tags;
+            StringBuilder sb = new StringBuilder();
+            for (Map.Entry<String, String> tag : tags.entrySet()) {
+                sb.append(' ').append(tag.getKey()).append('=').append(tag.getValue());
+            }
+            this.suffix = sb.toString();
+            try {
+                this.suffixUtf8 = suffix.getBytes("UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
             }
-        return resultString;
+        }
     }
 
-    String addTag(String resultString, String tagName, String tagValue) {
-        String tagFormat = " %s=%s";
-        resultString += String.format(tagFormat, tagName, tagValue);
-        return resultString;
-    }
+    /**
+     * A datapoint: the tag of its value key, if any, then the tags of its MBean.
+     */
+    static class Datapoint {
+        final String metric;
+        final long timestamp;
+        final Object value;
+        final String valueTagName;
+        final String valueTagValue;
+        final TagSet tagSet;
 
-    String getResultString(String className, String attributeName, long epoch, Object value) {
-        String resultStringFormat = "put %s.%s %d %s";
-        return String.format(resultStringFormat, className, attributeName, epoch, value);
+        Datapoint(String metric, long timestamp, Object value, String valueTagName, String valueTagValue, TagSet tagSet) {
+            this.metric = metric;
+            this.timestamp = timestamp;
+            this.value = value;
+            this.tagSet = tagSet;
+            // A value tag named like one of the MBean's would be overwritten by it.
+            boolean valueTag = valueTagName != null && !tagSet.tags.containsKey(valueTagName);
+            this.valueTagName = valueTag ? valueTagName : null;
+            this.valueTagValue = valueTag ? valueTagValue : null;
+        }
+
+        /** All the tags, in the order they are written. */
+        Map<String, String> getTags() {
+            if (valueTagName == null) {
+                return tagSet.tags;
+            }
+            Map<String, String> tags = new LinkedHashMap<String, String>();
+            tags.put(valueTagName, valueTagValue);
+            tags.putAll(tagSet.tags);
+            return tags;
+        }
+
+        /** The telnet put command. */
+        String toPutCommand() {
+            StringBuilder sb = new StringBuilder("put ").append(metric).append(' ').append(timestamp).append(' ').append(value);
+            if (valueTagName != null) {
+                sb.append(' ').append(valueTagName).append('=').append(valueTagValue);
+            }
+            return sb.append(tagSet.suffix).toString();
+        }
+
+        /** The telnet put command, as a line of the buffer. */
+        void appendPutCommand(LineBuffer lines) {
+            lines.append("put ").append(metric).append(' ').append(timestamp).append(' ');
+            if (value instanceof Long || value instanceof Integer) {
+                lines.append(((Number) value).longValue());
+            } else {
+                lines.append(String.valueOf(value));
+            }
+            if (valueTagName != null) {
+                lines.append(' ').append(valueTagName).append('=').append(valueTagValue);
+            }
+            lines.append(tagSet.suffixUtf8).endLine();
+        }
     }
 
-    String getResultString(String className, String attributeName, long epoch, Object value, String tagName, String tagValue) {
-        String taggedResultStringFormat = "put %s.%s %d %s %s=%s";
-        return String.format(taggedResultStringFormat, className, attributeName, epoch, value, tagName, tagValue);
+    /** OpenTSDB only takes a few characters in metric names and tags. */
+    @Override
+    public MetricNameSanitizer getSanitizer() {
+        return MetricNameSanitizer.OPENTSDB;
     }
 
     List<String> resultParser(Result result) throws UnknownHostException {
         List<String> resultStrings = new LinkedList<String>();
+        for (Datapoint datapoint : datapoints(result)) {
+            resultStrings.add(datapoint.toPutCommand());
+        }
+        return resultStrings;
+    }
+
+    /**
+     * The datapoints of a result: a single one if its only value is the
+     * attribute, else one per value, tagged with tagName=key.
+     */
+    List<Datapoint> datapoints(Result result) throws UnknownHostException {
+        List<Datapoint> datapoints = new ArrayList<Datapoint>();
         Map<String, Object> values = result.getValues();
         if (values == null)
-            return resultStrings;
+            return datapoints;
 
+        MetricNameSanitizer sanitizer = getSanitizer();
         String attributeName = result.getAttributeName();
         String className = result.getClassNameAlias() == null ? result.getClassName() : result.getClassNameAlias();
+        String metric = sanitizer.sanitizeVerbatim(className) + "." + sanitizer.sanitizeVerbatim(attributeName);
+        long epoch = result.getEpoch() / 1000L;
+        TagSet tagSet = getTagSet(result.getTypeName());
         if (values.containsKey(attributeName) && values.size() == 1) {
-            String resultString = getResultString(className, attributeName, (long)(result.getEpoch()/1000L), values.get(attributeName));
-            resultString = addTags(resultString);
-            if (getTypeNames().size() > 0) {
-                resultString = this.addTypeNamesTags(result, resultString);
-            }
-            resultStrings.add(resultString);
+            datapoints.add(new Datapoint(metric, epoch, values.get(attributeName), null, null, tagSet));
         } else {
+            String valueTagName = sanitizer.sanitizeVerbatim(tagName);
             for (Map.Entry<String, Object> valueEntry: values.entrySet() ) {
-                String resultString = getResultString(className, attributeName, (long)(result.getEpoch()/1000L), valueEntry.getValue(), tagName, valueEntry.getKey());
-                resultString = addTags(resultString);
-                if (getTypeNames().size() > 0) {
-                    resultString = this.addTypeNamesTags(result, resultString);
-                }
-                resultStrings.add(resultString);
+                datapoints.add(new Datapoint(metric, epoch, valueEntry.getValue(), valueTagName,
+                        sanitizer.sanitizeVerbatim(valueEntry.getKey()), tagSet));
             }
         }
-        return resultStrings;
+        return datapoints;
     }
 
     /**
-     * Add the tags for the TypeNames setting to the given result string.
+     * The tags of the MBeans with the given typeName, built the first time
+     * they are asked for.
      */
-    protected String    addTypeNamesTags (Result result, String resultString) {
-        String  retVal = resultString;
+    TagSet getTagSet(String typeName) throws UnknownHostException {
+        String key = (typeName == null) ? "" : typeName;
+        TagSet tagSet = tagSets.get(key);
+        if (tagSet == null) {
+            Map<String, String> tags = new LinkedHashMap<String, String>();
+            addTags(tags, typeName);
+            tagSet = tagSets.putIfAbsent(key, new TagSet(tags));
+        }
+        return tagSet;
+    }
+
+    /** The host tag, the tags setting, then the typeNames tags. */
+    private void addTags(Map<String, String> tags, String typeName) throws UnknownHostException {
+        addTag(tags, "host", getLocalHostName());
+        if (this.tags != null)
+            for (Map.Entry<String, String> tagEntry : this.tags.entrySet()) {
+                addTag(tags, tagEntry.getKey(), tagEntry.getValue());
+            }
+        if (getTypeNames().size() > 0) {
+            addTypeNamesTags(tags, typeName);
+        }
+    }
+
+    void addTag(Map<String, String> tags, String tagName, String tagValue) {
+        MetricNameSanitizer sanitizer = getSanitizer();
+        tags.put(sanitizer.sanitizeVerbatim(tagName), sanitizer.sanitizeVerbatim(tagValue));
+    }
+
+    /**
+     * Add the tags for the TypeNames setting to the given tags.
+     */
+    protected void addTypeNamesTags(Map<String, String> tags, String typeName) {
         if ( mergeTypeNamesTags ) {
             // Produce a single tag with all the TypeName keys concatenated and all the values joined with '_'.
-            retVal = addTag(retVal, StringUtils.join(getTypeNames(), ""), getConcatedTypeNameValues(result.getTypeName()));
+            addTag(tags, StringUtils.join(getTypeNames(), ""), getConcatedTypeNameValues(typeName));
         }
         else {
-            Map<String, String> typeNameMap = JmxUtils.getTypeNameValueMap(result.getTypeName());
+            Map<String, String> typeNameMap = JmxUtils.getTypeNameValueMap(typeName);
             for ( String oneTypeName : getTypeNames() ) {
                 String value = typeNameMap.get(oneTypeName);
                 if ( value == null )
                     value = "";
-                retVal = addTag(retVal, oneTypeName, value);
+                addTag(tags, oneTypeName, value);
             }
         }
+    }
 
-        return  retVal;
+    /** Looked up once, it is in every datapoint. */
+    private String getLocalHostName() throws UnknownHostException {
+        if (localHostName == null) {
+            localHostName = java.net.InetAddress.getLocalHost().getHostName();
+        }
+        return localHostName;
     }
 
     @Override
     public void doWrite(Query query) throws Exception {
-        DataOutputStream out;
-        try {
-            out = new DataOutputStream(socket.getOutputStream());
-        } catch (IOException e) {
-            log.error("error getting the output stream", e);
-            throw e;
+        if (http) {
+            doWriteHttp(query);
+            return;
         }
 
+        LineBuffer lines = new LineBuffer(8192);
         for (Result result : query.getResults()) {
-            for(String resultString: resultParser(result)) {
+            for (Datapoint datapoint : datapoints(result)) {
                 if (isDebugEnabled())
-                    System.out.println(resultString);
-                try {
-                    out.writeBytes(resultString + "\n"); 
-                } catch (IOException e) {
-                    log.error("error writing result to the output stream", e);
+                    System.out.println(datapoint.toPutCommand());
+                datapoint.appendPutCommand(lines);
+                if (lines.size() >= MAX_WRITE_BYTES) {
+                    send(lines);
+                    lines.reset();
+                }
+            }
+        }
+        send(lines);
+    }
+
+    /**
+     * Writes the lines on a pooled connection. A connection that fails is
+     * thrown away and the lines are sent again on a new one, so that the
+     * writer gets going again once a TSD that went away is back.
+     */
+    private void send(LineBuffer lines) throws Exception {
+        if (lines.size() == 0) {
+            return;
+        }
+        for (int attempt = 1; ; attempt++) {
+            Socket socket = (Socket) pool.borrowObject(address);
+            boolean written = false;
+            boolean healthy = false;
+            try {
+                OutputStream out = socket.getOutputStream();
+                lines.writeTo(out);
+                out.flush();
+                written = true;
+                logAnswers(socket);
+                healthy = true;
+                return;
+            } catch (IOException e) {
+                if (written || attempt >= 2) {
+                    log.error("error writing to OpenTSDB at " + address, e);
                     throw e;
                 }
+                log.warn("connection to OpenTSDB at " + address + " lost, reconnecting", e);
+            } finally {
+                if (healthy) {
+                    pool.returnObject(address, socket);
+                } else {
+                    pool.invalidateObject(address, socket);
+                }
+            }
+        }
+    }
+
+    /** What OpenTSDB has to say so far, which is only ever an error. */
+    private static void logAnswers(Socket socket) throws IOException {
+        InputStream in = socket.getInputStream();
+        if (in.available() == 0) {
+            return;
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        String line;
+        while (reader.ready() && (line = reader.readLine()) != null) {
+            log.warn("OpenTSDB says: " + line);
+        }
+    }
+
+    /**
+     * POSTs the numeric datapoints of the query, batchSize at a time. The
+     * first request that fails is thrown once the others have been sent.
+     */
+    private void doWriteHttp(Query query) throws Exception {
+        List<Datapoint> batch = new ArrayList<Datapoint>(batchSize);
+        IOException error = null;
+        for (Result result : query.getResults()) {
+            for (Datapoint datapoint : datapoints(result)) {
+                if (!isNumber(datapoint.value)) {
+                    // OpenTSDB would reject it anyway.
+                    datapointsFailed.incrementAndGet();
+                    continue;
+                }
+                batch.add(datapoint);
+                if (batch.size() >= batchSize) {
+                    error = post(batch, error);
+                    batch.clear();
+                }
             }
         }
+        if (!batch.isEmpty()) {
+            error = post(batch, error);
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /** Whether a value can be written as a JSON number. */
+    private static boolean isNumber(Object value) {
+        if (value instanceof Double) {
+            return !((Double) value).isNaN() && !((Double) value).isInfinite();
+        }
+        if (value instanceof Float) {
+            return !((Float) value).isNaN() && !((Float) value).isInfinite();
+        }
+        return value instanceof Number || (value instanceof String && !((String) value).isEmpty() && JmxUtils.isNumeric(value));
+    }
+
+    /**
+     * Sends a batch, counting what OpenTSDB stored and what it didn't.
+     *
+     * @return the first error, the one given or this request's
+     */
+    private IOException post(List<Datapoint> batch, IOException firstError) {
+        HttpURLConnection connection = null;
         try {
-            out.flush();
+            byte[] body = encode(batch);
+
+            connection = (HttpURLConnection) putUrl.openConnection();
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setConnectTimeout(httpTimeoutMillis);
+            connection.setReadTimeout(httpTimeoutMillis);
+            connection.setRequestProperty("Content-Type", "application/json");
+            if (gzip) {
+                connection.setRequestProperty("Content-Encoding", "gzip");
+            }
+            connection.setFixedLengthStreamingMode(body.length);
+            OutputStream out = connection.getOutputStream();
+            out.write(body);
+            out.close();
+
+            int responseCode = connection.getResponseCode();
+            // The body has to be read for the connection to be reused.
+            InputStream in = (responseCode >= 400) ? connection.getErrorStream() : connection.getInputStream();
+            JsonNode response = null;
+            if (in != null) {
+                try {
+                    byte[] content = readFully(in);
+                    if (content.length > 0 && responseCode != 204) {
+                        response = mapper.readTree(new String(content, "UTF-8"));
+                    }
+                } catch (JsonProcessingException e) {
+                    log.debug("OpenTSDB didn't answer with JSON", e);
+                } finally {
+                    in.close();
+                }
+            }
+
+            countResponse(batch.size(), responseCode, response);
+            if (responseCode >= 400 && (response == null || response.get("success") == null)) {
+                throw new IOException("OpenTSDB answered " + responseCode + " " + connection.getResponseMessage());
+            }
+            return firstError;
+
         } catch (IOException e) {
-            log.error("flush failed");
-            throw e;
+            requestsFailed.incrementAndGet();
+            log.error("error sending " + batch.size() + " datapoints to " + putUrl, e);
+            if (connection != null) {
+                connection.disconnect();
+            }
+            return (firstError == null) ? e : firstError;
         }
-        InputStreamReader socketInputStream = new InputStreamReader(socket.getInputStream());
-        BufferedReader bufferedSocketInputStream = new BufferedReader(socketInputStream);
-        String line;
-        while (socketInputStream.ready() && (line = bufferedSocketInputStream.readLine()) != null) {
-            log.warn("OpenTSDB says: " + line); 
+    }
+
+    /**
+     * Counts the datapoints of a request. Without a summary (a 2xx without
+     * body) they were all stored.
+     */
+    private void countResponse(int batchSize, int responseCode, JsonNode response) {
+        if (response == null || response.get("success") == null) {
+            if (responseCode < 300) {
+                datapointsSent.addAndGet(batchSize);
+            }
+            return;
+        }
+        long success = response.get("success").getLongValue();
+        long failed = (response.get("failed") == null) ? 0 : response.get("failed").getLongValue();
+        datapointsSent.addAndGet(success);
+        datapointsFailed.addAndGet(failed);
+        if (failed > 0) {
+            JsonNode errors = response.get("errors");
+            if (errors != null && errors.size() > 0) {
+                log.warn("OpenTSDB failed to store {} of {} datapoints, the first because: {}",
+                        new Object[] { failed, batchSize, errors.get(0).get("error") });
+            } else {
+                log.warn("OpenTSDB failed to store {} of {} datapoints", failed, batchSize);
+            }
         }
     }
 
+    /** The JSON array of a batch, gzipped if need be. */
+    byte[] encode(List<Datapoint> batch) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128 * batch.size());
+        OutputStream out = gzip ? new GZIPOutputStream(bytes) : bytes;
+        JsonGenerator g = jsonFactory.createJsonGenerator(out, JsonEncoding.UTF8);
+        g.writeStartArray();
+        for (Datapoint datapoint : batch) {
+            g.writeStartObject();
+            g.writeStringField("metric", datapoint.metric);
+            g.writeNumberField("timestamp", datapoint.timestamp);
+            g.writeFieldName("value");
+            if (datapoint.value instanceof Number) {
+                g.writeNumber(datapoint.value.toString());
+            } else {
+                writeNumber(g, (String) datapoint.value);
+            }
+            g.writeObjectFieldStart("tags");
+            for (Map.Entry<String, String> tag : datapoint.getTags().entrySet()) {
+                g.writeStringField(tag.getKey(), tag.getValue());
+            }
+            g.writeEndObject();
+            g.writeEndObject();
+        }
+        g.writeEndArray();
+        g.close();
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    /** A numeric String, which may be "1." or ".5", as a JSON number. */
+    private static void writeNumber(JsonGenerator g, String value) throws IOException {
+        try {
+            g.writeNumber(Long.parseLong(value));
+        } catch (NumberFormatException e) {
+            g.writeNumber(Double.parseDouble(value));
+        }
+    }
+
+    /** */
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            content.write(buffer, 0, read);
+        }
+        return content.toByteArray();
+    }
+
+    /** The datapoints OpenTSDB stored. */
+    @JsonIgnore
+    public long getDatapointsSent() {
+        return datapointsSent.get();
+    }
+
+    /** The datapoints OpenTSDB refused, or that couldn't be sent as numbers. */
+    @JsonIgnore
+    public long getDatapointsFailed() {
+        return datapointsFailed.get();
+    }
+
+    /** The HTTP requests that didn't get an answer, or got an error. */
+    @JsonIgnore
+    public long getRequestsFailed() {
+        return requestsFailed.get();
+    }
+
     @Override
     public void validateSetup(Query query) throws ValidationException {
     }
 
+    /**
+     * Reads the settings and, for telnet, creates the socket pool. The pool of
+     * an earlier start is closed first: a reload starts the writers of the
+     * servers it keeps again.
+     */
     @Override
     public void start() throws LifecycleException {
+        closePool();
+
         host = (String) this.getSettings().get(HOST);
         port = (Integer) this.getSettings().get(PORT);
         tags = (Map<String, String>) this.getSettings().get("tags");
         tagName = this.getStringSetting("tagName", "type");
         mergeTypeNamesTags = this.getBooleanSetting("mergeTypeNamesTags", DEFAULT_MERGE_TYPE_NAMES_TAGS);
+        tagSets.clear();
 
+        String protocol = this.getStringSetting(PROTOCOL, PROTOCOL_TELNET);
+        if (PROTOCOL_HTTP.equals(protocol)) {
+            http = true;
+            batchSize = this.getIntSetting(BATCH_SIZE, DEFAULT_BATCH_SIZE);
+            gzip = this.getBooleanSetting(GZIP, false);
+            details = RESPONSE_DETAILS.equals(this.getStringSetting(RESPONSE, RESPONSE_SUMMARY));
+            httpTimeoutMillis = this.getIntSetting(HTTP_TIMEOUT_MILLIS, DEFAULT_HTTP_TIMEOUT_MILLIS);
+            if (batchSize < 1) {
+                throw new LifecycleException("batchSize must be greater than 0");
+            }
+            try {
+                putUrl = new URL("http", host, port, "/api/put?" + (details ? RESPONSE_DETAILS : RESPONSE_SUMMARY));
+            } catch (MalformedURLException e) {
+                throw new LifecycleException(e);
+            }
+            return;
+        } else if (!PROTOCOL_TELNET.equals(protocol)) {
+            throw new LifecycleException("Unknown protocol: " + protocol + ", expecting " + PROTOCOL_TELNET + " or " + PROTOCOL_HTTP);
+        }
+        http = false;
+
+        address = new InetSocketAddress(host, port);
+        pool = JmxUtils.getObjectPool(new SocketFactory());
         try {
-            socket = new Socket(host, port);
-        } catch(UnknownHostException e) {
-            log.error("error opening socket to OpenTSDB", e);
-            throw new LifecycleException(e);
-        } catch(IOException e) {
-            log.error("error opening socket to OpenTSDB", e);
+            mbean = new ManagedGenericKeyedObjectPool((GenericKeyedObjectPool) pool, Server.SOCKET_FACTORY_POOL);
+            mbean.setObjectName("com.googlecode.jmxtrans:Type=GenericKeyedObjectPool,PoolName=SocketFactory,Name=OpenTSDBWriter@"
+                    + Integer.toHexString(System.identityHashCode(this)));
+            JmxUtils.registerJMX(mbean);
+        } catch (Exception e) {
             throw new LifecycleException(e);
         }
     }
 
     @Override
     public void stop() throws LifecycleException {
+        closePool();
+    }
+
+    /** Unregisters the pool MBean and closes the pooled connections. */
+    private void closePool() throws LifecycleException {
         try {
-            socket.close();
-        } catch (IOException e) {
-            log.error("error closing socket to OpenTSDB");
+            if (mbean != null) {
+                JmxUtils.unregisterJMX(mbean);
+                mbean = null;
+            }
+            if (pool != null) {
+                pool.close();
+                pool = null;
+            }
+        } catch (Exception e) {
+            log.error("error closing the connections to OpenTSDB");
             throw new LifecycleException(e);
         }
     }
@@ -5,9 +5,12 @@ import java.io.File;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.TreeMap;
 
 import org.apache.commons.codec.digest.DigestUtils;
@@ -15,6 +18,7 @@ import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.WordUtils;
+import org.codehaus.jackson.annotate.JsonIgnore;
 import org.jrobin.core.ArcDef;
 import org.jrobin.core.DsDef;
 import org.jrobin.core.RrdDef;
@@ -26,6 +30,9 @@ import com.googlecode.jmxtrans.model.Query;
 import com.googlecode.jmxtrans.model.Result;
 import com.googlecode.jmxtrans.util.BaseOutputWriter;
 import com.googlecode.jmxtrans.util.JmxUtils;
+import com.googlecode.jmxtrans.util.LifecycleException;
+import com.googlecode.jmxtrans.util.RrdSampleBuffer;
+import com.googlecode.jmxtrans.util.RrdToolPipe;
 import com.googlecode.jmxtrans.util.ValidationException;
 
 /**
@@ -37,6 +44,15 @@ import com.googlecode.jmxtrans.util.ValidationException;
  * This method exec's out to use the command line version of rrdtool. You need
  * to specify the path to the directory where the binary rrdtool lives.
  * 
+ * With the pipe setting set to true, updates are streamed to a single
+ * 'rrdtool -' process the writer keeps running, instead of starting one
+ * rrdtool per update; see {@link RrdToolPipe}. The template is only parsed
+ * again when its file changes.
+ * 
+ * With batchSize set above 1, samples are kept in memory and written with a
+ * single update of batchSize timestamps, sooner if the oldest is
+ * batchMaxAgeSeconds old (whether or not more samples come), and on stop.
+ * 
  * @author jon
  */
 public class RRDToolWriter extends BaseOutputWriter {
@@ -47,8 +63,25 @@ public class RRDToolWriter extends BaseOutputWriter {
 	private File templateFile = null;
 	private File binaryPath = null;
 	public static final String GENERATE = "generate";
+	public static final String PIPE = "pipe";
+	public static final String BATCH_SIZE = "batchSize";
+	public static final String BATCH_MAX_AGE_SECONDS = "batchMaxAgeSeconds";
+	public static final int DEFAULT_BATCH_MAX_AGE_SECONDS = 300;
 	private static final char[] INITIALS = { ' ', '.' };
 
+	/** How long stop() waits for rrdtool to run the updates it was sent. */
+	private static final long PIPE_CLOSE_TIMEOUT_MILLIS = 5000;
+
+	private RrdToolPipe pipe = null;
+
+	/** The samples waiting to be written, null without batching. */
+	private volatile RrdSampleBuffer buffer = null;
+
+	/** The template as of templateLastModified. */
+	private RrdDef def = null;
+	private Set<String> dsNames = null;
+	private long templateLastModified = -1;
+
 	/** */
 	public RRDToolWriter() {
 	}
@@ -61,6 +94,67 @@ public class RRDToolWriter extends BaseOutputWriter {
 		if (outputFile == null || templateFile == null || binaryPath == null) {
 			throw new ValidationException("output, template and binary path file can't be null", query);
 		}
+
+		synchronized (this) {
+			// The template names the output file.
+			def = null;
+			if (this.getBooleanSetting(PIPE) && pipe == null) {
+				pipe = new RrdToolPipe(new File(binaryPath, "rrdtool"));
+			}
+		}
+
+		int batchSize = this.getIntSetting(BATCH_SIZE, 1);
+		int batchMaxAgeSeconds = this.getIntSetting(BATCH_MAX_AGE_SECONDS, DEFAULT_BATCH_MAX_AGE_SECONDS);
+		if (batchSize < 1) {
+			throw new ValidationException("batchSize must be at least 1", query);
+		}
+		if (batchSize > 1 && buffer == null) {
+			buffer = new RrdSampleBuffer(batchSize, batchMaxAgeSeconds * 1000L);
+		}
+		if (buffer != null) {
+			final RrdSampleBuffer flushed = buffer;
+			flushed.flushWhenDue(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						flush(flushed);
+					} catch (Exception e) {
+						log.error("Error writing the samples batched for " + outputFile, e);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Writes the buffered samples, and ends the rrdtool process once it has
+	 * run the updates it was sent.
+	 */
+	@Override
+	public synchronized void stop() throws LifecycleException {
+		if (buffer != null) {
+			buffer.cancel();
+			try {
+				flush(buffer);
+			} catch (Exception e) {
+				throw new LifecycleException(e);
+			}
+		}
+		if (pipe != null) {
+			pipe.close(PIPE_CLOSE_TIMEOUT_MILLIS);
+		}
+	}
+
+	/** The updates rrdtool ran, in pipe mode. */
+	@JsonIgnore
+	public synchronized long getUpdatesOk() {
+		return (pipe == null) ? 0 : pipe.getCommandsOk();
+	}
+
+	/** The updates rrdtool failed to run, in pipe mode. */
+	@JsonIgnore
+	public synchronized long getUpdatesFailed() {
+		return (pipe == null) ? 0 : pipe.getCommandsFailed();
 	}
 
 	/**
@@ -90,9 +184,7 @@ public class RRDToolWriter extends BaseOutputWriter {
 
 	/** */
 	public void doWrite(Query query) throws Exception {
-		RrdDef def = getDatabaseTemplateSpec();
-
-		List<String> dsNames = getDsNames(def.getDsDefs());
+		Set<String> dsNames = getDsNames(getDatabaseTemplateSpec());
 		List<Result> results = query.getResults();
 
 		Map<String, String> dataMap = new TreeMap<String, String>();
@@ -121,7 +213,15 @@ public class RRDToolWriter extends BaseOutputWriter {
 		doGenerate(results);
 
 		if (dataMap.keySet().size() > 0 && dataMap.values().size() > 0) {
-			rrdToolUpdate(StringUtils.join(dataMap.keySet(), ':'), StringUtils.join(dataMap.values(), ':'));
+			RrdSampleBuffer buffer = this.buffer;
+			if (buffer == null) {
+				rrdToolUpdate(StringUtils.join(dataMap.keySet(), ':'), StringUtils.join(dataMap.values(), ':'));
+			} else {
+				long now = System.currentTimeMillis();
+				if (buffer.add(now / 1000L, dataMap, now)) {
+					flush(buffer);
+				}
+			}
 		} else {
 			log.error("Nothing was logged for query: " + query);
 		}
@@ -156,16 +256,56 @@ public class RRDToolWriter extends BaseOutputWriter {
 	}
 
 	/**
-	 * Executes the rrdtool update command.
+	 * Writes the buffered samples, as few updates as there are changes in the
+	 * datasources they have values for. Flushes run one at a time, so that
+	 * the samples go in the order they were drained.
+	 */
+	private synchronized void flush(RrdSampleBuffer buffer) throws Exception {
+		String template = null;
+		List<String> data = new ArrayList<String>();
+		for (RrdSampleBuffer.Sample sample : buffer.drain()) {
+			String sampleTemplate = StringUtils.join(sample.getValues().keySet(), ':');
+			if (template != null && !template.equals(sampleTemplate)) {
+				rrdToolUpdate(template, data);
+				data.clear();
+			}
+			template = sampleTemplate;
+			data.add(sample.getTimestamp() + ":" + StringUtils.join(sample.getValues().values(), ':'));
+		}
+		if (!data.isEmpty()) {
+			rrdToolUpdate(template, data);
+		}
+	}
+
+	/**
+	 * Executes the rrdtool update command, or sends it to the rrdtool process
+	 * in pipe mode.
 	 */
 	protected void rrdToolUpdate(String template, String data) throws Exception {
+		rrdToolUpdate(template, Collections.singletonList("N:" + data));
+	}
+
+	/**
+	 * Updates the database with several samples at once, each of them
+	 * "timestamp:value:value...".
+	 */
+	protected void rrdToolUpdate(String template, List<String> samples) throws Exception {
 		List<String> commands = new ArrayList<String>();
 		commands.add(binaryPath + "/rrdtool");
 		commands.add("update");
 		commands.add(outputFile.getCanonicalPath());
 		commands.add("-t");
 		commands.add(template);
-		commands.add("N:" + data);
+		commands.addAll(samples);
+
+		RrdToolPipe pipe;
+		synchronized (this) {
+			pipe = this.pipe;
+		}
+		if (pipe != null) {
+			pipe.send(commands.subList(1, commands.size()));
+			return;
+		}
 
 		ProcessBuilder pb = new ProcessBuilder(commands);
 		Process process = pb.start();
@@ -175,11 +315,12 @@ public class RRDToolWriter extends BaseOutputWriter {
 	/**
 	 * If the database file doesn't exist, it'll get created, otherwise, it'll
 	 * be returned in r/w mode.
+	 *
+	 * The database is always created by a process of its own, in pipe mode as
+	 * well, so that it exists by the time the first update is sent.
 	 */
 	protected RrdDef getDatabaseTemplateSpec() throws Exception {
-		RrdDefTemplate t = new RrdDefTemplate(templateFile);
-		t.setVariable("database", this.outputFile.getCanonicalPath());
-		RrdDef def = t.getRrdDef();
+		RrdDef def = getTemplate();
 		if (!this.outputFile.exists()) {
 			FileUtils.forceMkdir(this.outputFile.getParentFile());
 			rrdToolCreateDatabase(def);
@@ -187,6 +328,31 @@ public class RRDToolWriter extends BaseOutputWriter {
 		return def;
 	}
 
+	/**
+	 * The parsed template, parsed again only when its file was modified.
+	 */
+	private synchronized RrdDef getTemplate() throws Exception {
+		long lastModified = templateFile.lastModified();
+		if (def == null || lastModified != templateLastModified) {
+			RrdDefTemplate t = new RrdDefTemplate(templateFile);
+			t.setVariable("database", this.outputFile.getCanonicalPath());
+			def = t.getRrdDef();
+			dsNames = new HashSet<String>();
+			for (DsDef dsDef : def.getDsDefs()) {
+				dsNames.add(dsDef.getDsName());
+			}
+			templateLastModified = lastModified;
+		}
+		return def;
+	}
+
+	/**
+	 * The names of the datasources of the template.
+	 */
+	private synchronized Set<String> getDsNames(RrdDef def) {
+		return (def == this.def) ? dsNames : getDsNames(def.getDsDefs());
+	}
+
 	/**
 	 * Calls out to the rrdtool binary with the 'create' command.
 	 */
@@ -256,8 +422,8 @@ public class RRDToolWriter extends BaseOutputWriter {
 	/**
 	 * Get a list of DsNames used to create the datasource.
 	 */
-	private List<String> getDsNames(DsDef[] defs) {
-		List<String> names = new ArrayList<String>();
+	private Set<String> getDsNames(DsDef[] defs) {
+		Set<String> names = new HashSet<String>();
 		for (DsDef def : defs) {
 			names.add(def.getDsName());
 		}
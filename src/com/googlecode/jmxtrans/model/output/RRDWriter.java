@@ -2,20 +2,27 @@ package com.googlecode.jmxtrans.model.output;
 
 import java.io.File;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
-import org.apache.commons.io.FileUtils;
 import org.jrobin.core.RrdDb;
-import org.jrobin.core.RrdDef;
-import org.jrobin.core.RrdDefTemplate;
+import org.jrobin.core.RrdNioBackendFactory;
 import org.jrobin.core.Sample;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.googlecode.jmxtrans.model.Query;
 import com.googlecode.jmxtrans.model.Result;
 import com.googlecode.jmxtrans.util.BaseOutputWriter;
 import com.googlecode.jmxtrans.util.JmxUtils;
+import com.googlecode.jmxtrans.util.LifecycleException;
+import com.googlecode.jmxtrans.util.RrdFilePool;
+import com.googlecode.jmxtrans.util.RrdSampleBuffer;
 import com.googlecode.jmxtrans.util.ValidationException;
 
 /**
@@ -27,12 +34,35 @@ import com.googlecode.jmxtrans.util.ValidationException;
  * This uses the JRobin rrd format and is incompatible with the C version of
  * rrd.
  * 
+ * The database is kept open between writes in the {@link RrdFilePool} the
+ * RRDWriters share, memory mapped, and synced to disk every syncPeriod
+ * seconds (300 by default) and on stop. The poolCapacity setting bounds the
+ * number of files the pool keeps open.
+ * 
+ * With batchSize set above 1, samples are kept in memory and written
+ * batchSize at a time, or once the oldest is batchMaxAgeSeconds old (whether
+ * or not more samples come), and on stop.
+ * 
  * @author jon
  */
 public class RRDWriter extends BaseOutputWriter {
 
+	public static final String SYNC_PERIOD = "syncPeriod";
+	public static final String POOL_CAPACITY = "poolCapacity";
+	public static final String BATCH_SIZE = "batchSize";
+	public static final String BATCH_MAX_AGE_SECONDS = "batchMaxAgeSeconds";
+
+	public static final int DEFAULT_BATCH_MAX_AGE_SECONDS = 300;
+
+	private static final Logger log = LoggerFactory.getLogger(RRDWriter.class);
+
 	private File outputFile = null;
 	private File templateFile = null;
+	private int syncPeriod = RrdNioBackendFactory.DEFAULT_SYNC_PERIOD;
+
+	/** The samples waiting to be written, null without batching. */
+	private volatile RrdSampleBuffer buffer = null;
+	private volatile Set<String> dsNames = null;
 
 	/** */
 	public RRDWriter() {
@@ -45,52 +75,164 @@ public class RRDWriter extends BaseOutputWriter {
 		if (outputFile == null || templateFile == null) {
 			throw new ValidationException("output file and template file can't be null", query);
 		}
+
+		syncPeriod = this.getIntSetting(SYNC_PERIOD, RrdNioBackendFactory.DEFAULT_SYNC_PERIOD);
+		if (syncPeriod < 1) {
+			throw new ValidationException("syncPeriod must be at least 1 second", query);
+		}
+		if (this.getSettings().containsKey(POOL_CAPACITY)) {
+			RrdFilePool.getInstance().setCapacity(this.getIntSetting(POOL_CAPACITY, RrdFilePool.DEFAULT_CAPACITY));
+		}
+
+		int batchSize = this.getIntSetting(BATCH_SIZE, 1);
+		int batchMaxAgeSeconds = this.getIntSetting(BATCH_MAX_AGE_SECONDS, DEFAULT_BATCH_MAX_AGE_SECONDS);
+		if (batchSize < 1) {
+			throw new ValidationException("batchSize must be at least 1", query);
+		}
+		dsNames = null;
+		if (batchSize > 1 && buffer == null) {
+			buffer = new RrdSampleBuffer(batchSize, batchMaxAgeSeconds * 1000L);
+		}
+		if (buffer != null) {
+			final RrdSampleBuffer flushed = buffer;
+			flushed.flushWhenDue(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						flush(flushed);
+					} catch (Exception e) {
+						log.error("Error writing the samples batched for " + outputFile, e);
+					}
+				}
+			});
+		}
 	}
 
 	/** */
 	public void doWrite(Query query) throws Exception {
+		RrdSampleBuffer buffer = this.buffer;
+		if (buffer != null) {
+			Map<String, String> values = getValues(query, getDsNames());
+			long now = System.currentTimeMillis();
+			if (buffer.add(now / 1000L, values, now)) {
+				flush(buffer);
+			}
+			return;
+		}
+
 		RrdDb db = null;
+		boolean healthy = false;
 		try {
 			db = createOrOpenDatabase();
 			Sample sample = db.createSample();
-			List<String> dsNames = Arrays.asList(db.getDsNames());
-			List<Result> results = query.getResults();
-
-			// go over all the results and look for datasource names that map to
-			// keys from the result values
-			for (Result res : results) {
-				Map<String, Object> values = res.getValues();
-				if (values != null) {
-					for (Entry<String, Object> entry : values.entrySet()) {
-						if (dsNames.contains(entry.getKey()) && JmxUtils.isNumeric(entry.getValue())) {
-							sample.setValue(entry.getKey(), Double.valueOf(entry.getValue().toString()));
-						}
+			for (Entry<String, String> value : getValues(query, Arrays.asList(db.getDsNames())).entrySet()) {
+				sample.setValue(value.getKey(), Double.valueOf(value.getValue()));
+			}
+			sample.update();
+			healthy = true;
+		} finally {
+			if (db != null) {
+				RrdFilePool.getInstance().release(db, healthy);
+			}
+		}
+	}
+
+	/**
+	 * Go over all the results and look for datasource names that map to keys
+	 * from the result values.
+	 */
+	private static Map<String, String> getValues(Query query, Collection<String> dsNames) {
+		Map<String, String> dsValues = new HashMap<String, String>();
+		for (Result res : query.getResults()) {
+			Map<String, Object> values = res.getValues();
+			if (values != null) {
+				for (Entry<String, Object> entry : values.entrySet()) {
+					if (dsNames.contains(entry.getKey()) && JmxUtils.isNumeric(entry.getValue())) {
+						dsValues.put(entry.getKey(), entry.getValue().toString());
 					}
 				}
 			}
-			sample.update();
+		}
+		return dsValues;
+	}
+
+	/**
+	 * The datasources of the database, read the first time they are needed.
+	 */
+	private Set<String> getDsNames() throws Exception {
+		Set<String> names = this.dsNames;
+		if (names == null) {
+			RrdDb db = createOrOpenDatabase();
+			try {
+				names = new HashSet<String>(Arrays.asList(db.getDsNames()));
+			} finally {
+				RrdFilePool.getInstance().release(db, true);
+			}
+			this.dsNames = names;
+		}
+		return names;
+	}
+
+	/**
+	 * Writes the buffered samples, in a single update of the database.
+	 * Samples older than its last update would be refused, they are dropped.
+	 * Flushes run one at a time, so that the samples go in the order they
+	 * were drained.
+	 */
+	private synchronized void flush(RrdSampleBuffer buffer) throws Exception {
+		List<RrdSampleBuffer.Sample> samples = buffer.drain();
+		if (samples.isEmpty()) {
+			return;
+		}
+		RrdDb db = null;
+		boolean healthy = false;
+		try {
+			db = createOrOpenDatabase();
+			long lastUpdate = db.getLastUpdateTime();
+			for (RrdSampleBuffer.Sample buffered : samples) {
+				if (buffered.getTimestamp() <= lastUpdate) {
+					log.warn("Dropping a sample at " + buffered.getTimestamp() + ", " + outputFile + " was updated at " + lastUpdate);
+					continue;
+				}
+				Sample sample = db.createSample(buffered.getTimestamp());
+				for (Entry<String, String> value : buffered.getValues().entrySet()) {
+					sample.setValue(value.getKey(), Double.valueOf(value.getValue()));
+				}
+				sample.update();
+			}
+			healthy = true;
 		} finally {
 			if (db != null) {
-				db.close();
+				RrdFilePool.getInstance().release(db, healthy);
 			}
 		}
 	}
 
 	/**
 	 * If the database file doesn't exist, it'll get created, otherwise, it'll
-	 * be returned in r/w mode.
+	 * be returned in r/w mode. It has to be given back to the pool.
 	 */
 	protected RrdDb createOrOpenDatabase() throws Exception {
-		RrdDb result = null;
-		if (!this.outputFile.exists()) {
-			FileUtils.forceMkdir(this.outputFile.getParentFile());
-			RrdDefTemplate t = new RrdDefTemplate(this.templateFile);
-			t.setVariable("database", this.outputFile.getCanonicalPath());
-			RrdDef def = t.getRrdDef();
-			result = new RrdDb(def);
-		} else {
-			result = new RrdDb(this.outputFile.getCanonicalPath());
+		return RrdFilePool.getInstance().request(this.outputFile, this.templateFile, this.syncPeriod);
+	}
+
+	/**
+	 * Writes the buffered samples and closes the database, which syncs it to
+	 * disk.
+	 */
+	@Override
+	public void stop() throws LifecycleException {
+		if (this.outputFile == null) {
+			return;
+		}
+		try {
+			if (this.buffer != null) {
+				this.buffer.cancel();
+				flush(this.buffer);
+			}
+			RrdFilePool.getInstance().close(this.outputFile);
+		} catch (Exception e) {
+			throw new LifecycleException(e);
 		}
-		return result;
 	}
 }
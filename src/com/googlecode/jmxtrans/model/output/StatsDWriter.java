@@ -1,210 +1,531 @@
-package com.googlecode.jmxtrans.model.output;
-
-import java.io.IOException;
-import java.net.InetSocketAddress;
-import java.net.SocketAddress;
-import java.nio.ByteBuffer;
-import java.nio.channels.DatagramChannel;
-import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
-
-import org.apache.commons.pool.KeyedObjectPool;
-import org.apache.commons.pool.impl.GenericKeyedObjectPool;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-import com.googlecode.jmxtrans.jmx.ManagedGenericKeyedObjectPool;
-import com.googlecode.jmxtrans.jmx.ManagedObject;
-import com.googlecode.jmxtrans.model.Query;
-import com.googlecode.jmxtrans.model.Result;
-import com.googlecode.jmxtrans.model.Server;
-import com.googlecode.jmxtrans.util.BaseOutputWriter;
-import com.googlecode.jmxtrans.util.DatagramSocketFactory;
-import com.googlecode.jmxtrans.util.JmxUtils;
-import com.googlecode.jmxtrans.util.LifecycleException;
-import com.googlecode.jmxtrans.util.ValidationException;
-
-/**
- * This output writer sends data to a host/port combination in the StatsD
- * format.
- *
- * @author neilh
- */
-public class StatsDWriter extends BaseOutputWriter {
-
-	private static final Logger log = LoggerFactory.getLogger(StatsDWriter.class);
-	public static final String ROOT_PREFIX = "rootPrefix";
-	private ByteBuffer sendBuffer;
-
-	private String host;
-	private Integer port;
-	/** bucketType defaults to c == counter */
-	private String bucketType = "c";
-	private String rootPrefix = "servers";
-	private SocketAddress address;
-	private final DatagramChannel channel;
-
-	private static final String BUCKET_TYPE = "bucketType";
-
-	private KeyedObjectPool pool;
-	private ManagedObject mbean;
-
-
-	/**
-	 * Uses JmxUtils.getDefaultPoolMap()
-	 * @throws IOException
-	 */
-	public StatsDWriter() throws IOException {
-		channel = DatagramChannel.open();
-        setBufferSize((short) 1500);
-	}
-	
-	public synchronized void setBufferSize(short packetBufferSize) {
-        if(sendBuffer != null) {
-                flush();
-        }
-        sendBuffer = ByteBuffer.allocate(packetBufferSize);
-	}
-
-
-	@Override
-	public void start() throws LifecycleException {
-		try {
-			this.pool = JmxUtils.getObjectPool(new DatagramSocketFactory());
-			this.mbean = new ManagedGenericKeyedObjectPool((GenericKeyedObjectPool) pool, Server.SOCKET_FACTORY_POOL);
-			JmxUtils.registerJMX(this.mbean);
-		} catch (Exception e) {
-			throw new LifecycleException(e);
-		}
-	}
-
-	@Override
-	public void stop() throws LifecycleException {
-		try {
-			if (this.mbean != null) {
-				JmxUtils.unregisterJMX(this.mbean);
-				this.mbean = null;
-			}
-			if (this.pool != null) {
-				pool.close();
-				this.pool = null;
-			}
-		} catch (Exception e) {
-			throw new LifecycleException(e);
-		}
-	}
-
-	/** */
-	public void validateSetup(Query query) throws ValidationException {
-		host = (String) this.getSettings().get(HOST);
-		Object portObj = this.getSettings().get(PORT);
-		if (portObj instanceof String) {
-			port = Integer.parseInt((String) portObj);
-		} else if (portObj instanceof Integer) {
-			port = (Integer) portObj;
-		}
-
-		if (host == null || port == null) {
-			throw new ValidationException("Host and port can't be null", query);
-		}
-
-		String rootPrefixTmp = (String) this.getSettings().get(ROOT_PREFIX);
-		if (rootPrefixTmp != null) {
-			rootPrefix = rootPrefixTmp;
-		}
-
-		this.address = new InetSocketAddress(host, port);
-
-		if (this.getSettings().containsKey(BUCKET_TYPE))
-			bucketType = (String) this.getSettings().get(BUCKET_TYPE);
-	}
-
-	public void doWrite(Query query) throws Exception {
-
-		List<String> typeNames = this.getTypeNames();
-
-		for (Result result : query.getResults()) {
-			if (isDebugEnabled()) {
-				log.debug(result.toString());
-			}
-
-			Map<String, Object> resultValues = result.getValues();
-			if (resultValues != null) {
-				for (Entry<String, Object> values : resultValues.entrySet()) {
-					if (JmxUtils.isNumeric(values.getValue())) {
-						StringBuilder sb = new StringBuilder();
-
-						sb.append(JmxUtils.getKeyString(query, result, values, typeNames, rootPrefix));
-
-						sb.append(":");
-						sb.append(values.getValue().toString());
-						sb.append("|");
-						sb.append(bucketType);
-						sb.append("\n");
-
-						String line = sb.toString();
-
-						if (isDebugEnabled()) {
-							log.debug("StatsD Message: " + line.trim());
-						}
-
-						doSend(line.trim());
-					}
-				}
-			}
-		}
-	}
-
-	private synchronized boolean doSend(String stat) {
-		try {
-			final byte[] data = stat.getBytes("utf-8");
-
-			// If we're going to go past the threshold of the buffer then flush.
-			// the +1 is for the potential '\n' in multi_metrics below
-			if (sendBuffer.remaining() < (data.length + 1)) {
-				flush();
-			}
-
-			if (sendBuffer.position() > 0) { // multiple metrics are separated
-												// by '\n'
-				sendBuffer.put((byte) '\n');
-			}
-
-			sendBuffer.put(data); // append the data
-
-			flush();
-			return true;
-
-		} catch (IOException e) {
-			e.printStackTrace();
-			return false;
-		}
-	}
-
-	public synchronized boolean flush() {
-		try {
-			final int sizeOfBuffer = sendBuffer.position();
-
-			if (sizeOfBuffer <= 0) {
-				return false;
-			} // empty buffer
-
-			// send and reset the buffer
-			sendBuffer.flip();
-			final int nbSentBytes = channel.send(sendBuffer, this.address);
-			sendBuffer.limit(sendBuffer.capacity());
-			sendBuffer.rewind();
-
-			if (sizeOfBuffer == nbSentBytes) {
-				return true;
-			} else {
-				return false;
-			}
-
-		} catch (IOException e) {
-			e.printStackTrace();
-			return false;
-		}
-	}
-}
+package com.googlecode.jmxtrans.model.output;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.codehaus.jackson.annotate.JsonIgnore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.googlecode.jmxtrans.ResultSink;
+import com.googlecode.jmxtrans.jmx.ManagedObject;
+import com.googlecode.jmxtrans.jmx.ManagedStatsDWriter;
+import com.googlecode.jmxtrans.model.MetricRef;
+import com.googlecode.jmxtrans.model.Query;
+import com.googlecode.jmxtrans.model.Result;
+import com.googlecode.jmxtrans.util.BaseOutputWriter;
+import com.googlecode.jmxtrans.util.JmxUtils;
+import com.googlecode.jmxtrans.util.LifecycleException;
+import com.googlecode.jmxtrans.util.MetricNameSanitizer;
+import com.googlecode.jmxtrans.util.ValidationException;
+
+/**
+ * This output writer sends data to a host/port combination in the StatsD
+ * format.
+ *
+ * Stats are packed into datagrams, separated by newlines, until the next one
+ * would make the payload larger than packetSize bytes (1432 by default, what
+ * fits in an Ethernet frame; 512 is the safe choice across the internet).
+ * Whatever is left is sent by the time the run of the query ends. A stat that
+ * doesn't fit in a packet on its own is sent alone, and may be fragmented.
+ *
+ * The writer is a {@link ResultSink}: the stats are packed as the MBeans are
+ * fetched, no Result is kept for it. doWrite(Query) still sends the Results
+ * of a query it is handed.
+ *
+ * Every run of a query (or doWrite) borrows a packet from a small pool, a
+ * direct buffer the stats are encoded into without going through Strings, and
+ * gives it back once sent. Queries running in parallel don't wait on each
+ * other and, once the key cache knows the names and the pool holds as many
+ * packets as there are concurrent runs, integral values are sent without
+ * allocating anything, however short lived the writing threads are. The
+ * packets are sent on a single channel.
+ *
+ * The number of packets, stats and bytes sent are exposed over JMX.
+ *
+ * @author neilh
+ */
+public class StatsDWriter extends BaseOutputWriter implements ResultSink {
+
+	private static final Logger log = LoggerFactory.getLogger(StatsDWriter.class);
+	public static final String ROOT_PREFIX = "rootPrefix";
+	public static final String PACKET_SIZE = "packetSize";
+
+	public static final int DEFAULT_PACKET_SIZE = 1432;
+
+	/** The largest payload of an IPv4 UDP datagram. */
+	public static final int MAX_PACKET_SIZE = 65507;
+
+	/** Beyond this many idle packets, the ones given back are dropped. */
+	private static final int MAX_POOLED_PACKETS = 16;
+
+	private volatile int packetSize = DEFAULT_PACKET_SIZE;
+
+	/** The idle packets, all empty. */
+	private final Queue<Packet> packets = new ConcurrentLinkedQueue<Packet>();
+	private final AtomicInteger pooledPackets = new AtomicInteger();
+
+	/** The packets of the queries being streamed, by query. */
+	private final ConcurrentMap<Query, Stream> streams = new ConcurrentHashMap<Query, Stream>();
+
+	private String host;
+	private Integer port;
+	/** bucketType defaults to c == counter */
+	private String bucketType = "c";
+	/** "|" followed by the bucketType, what ends every stat. */
+	private byte[] bucketSuffix = encodeSuffix(bucketType);
+	private String rootPrefix = "servers";
+	private SocketAddress address;
+	private final DatagramChannel channel;
+
+	private static final String BUCKET_TYPE = "bucketType";
+
+	private ManagedObject statsMBean;
+
+	private final AtomicLong packetsSent = new AtomicLong();
+	private final AtomicLong metricsSent = new AtomicLong();
+	private final AtomicLong bytesSent = new AtomicLong();
+	private final AtomicLong sendErrors = new AtomicLong();
+	private final AtomicLong packetsAllocated = new AtomicLong();
+
+	/** */
+	public StatsDWriter() throws IOException {
+		channel = DatagramChannel.open();
+	}
+
+	/**
+	 * @deprecated use the packetSize setting
+	 */
+	@Deprecated
+	public void setBufferSize(short packetBufferSize) {
+		setPacketSize(packetBufferSize);
+	}
+
+	/**
+	 * Changes the size of the packets, from the next doWrite on.
+	 */
+	public void setPacketSize(int packetSize) {
+		this.packetSize = packetSize;
+	}
+
+	/** */
+	@JsonIgnore
+	public int getPacketSize() {
+		return packetSize;
+	}
+
+	@Override
+	public void start() throws LifecycleException {
+		try {
+			this.statsMBean = new ManagedStatsDWriter(this);
+			JmxUtils.registerJMX(this.statsMBean);
+		} catch (Exception e) {
+			throw new LifecycleException(e);
+		}
+	}
+
+	@Override
+	public void stop() throws LifecycleException {
+		try {
+			if (this.statsMBean != null) {
+				JmxUtils.unregisterJMX(this.statsMBean);
+				this.statsMBean = null;
+			}
+		} catch (Exception e) {
+			throw new LifecycleException(e);
+		}
+	}
+
+	/** */
+	public void validateSetup(Query query) throws ValidationException {
+		host = (String) this.getSettings().get(HOST);
+		Object portObj = this.getSettings().get(PORT);
+		if (portObj instanceof String) {
+			port = Integer.parseInt((String) portObj);
+		} else if (portObj instanceof Integer) {
+			port = (Integer) portObj;
+		}
+
+		if (host == null || port == null) {
+			throw new ValidationException("Host and port can't be null", query);
+		}
+
+		String rootPrefixTmp = (String) this.getSettings().get(ROOT_PREFIX);
+		if (rootPrefixTmp != null) {
+			rootPrefix = rootPrefixTmp;
+		}
+
+		this.address = new InetSocketAddress(host, port);
+
+		if (this.getSettings().containsKey(BUCKET_TYPE))
+			bucketType = (String) this.getSettings().get(BUCKET_TYPE);
+		bucketSuffix = encodeSuffix(bucketType);
+
+		int packetSize = this.getIntSetting(PACKET_SIZE, DEFAULT_PACKET_SIZE);
+		if (packetSize < 1 || packetSize > MAX_PACKET_SIZE) {
+			throw new ValidationException("packetSize must be between 1 and " + MAX_PACKET_SIZE, query);
+		}
+		setPacketSize(packetSize);
+	}
+
+	public void doWrite(Query query) throws Exception {
+
+		List<String> typeNames = this.getTypeNames();
+		Packet packet = this.borrowPacket();
+		try {
+			this.write(query, typeNames, packet);
+			send(packet);
+		} finally {
+			this.returnPacket(packet);
+		}
+	}
+
+	/**
+	 * A run of the query begins, it gets a packet unless an earlier run that
+	 * hasn't ended yet has one.
+	 */
+	public void begin(Query query) {
+		Stream stream = streams.get(query);
+		if (stream == null) {
+			stream = new Stream(this.borrowPacket());
+			streams.put(query, stream);
+		}
+		stream.runs++;
+	}
+
+	/** Packs a numeric value, sending the packet once full. */
+	public void onValue(MetricRef metric, Object value, long epoch) throws Exception {
+		if (!JmxUtils.isNumeric(value)) {
+			return;
+		}
+		Stream stream = streams.get(metric.getQuery());
+		if (stream == null) {
+			throw new IllegalStateException("No run of the query began: " + metric.getQuery());
+		}
+		byte[] name = this.getMetricName(metric, this.getTypeNames(), rootPrefix).getUtf8();
+
+		if (isDebugEnabled()) {
+			log.debug("StatsD Message: " + new String(name, "UTF-8") + ":" + value + "|" + bucketType);
+		}
+
+		doSend(stream.packet, name, value);
+	}
+
+	/** Sends what is left in the packet of the query. */
+	public void end(Query query) {
+		Stream stream = streams.get(query);
+		if (stream == null) {
+			return;
+		}
+		send(stream.packet);
+		if (--stream.runs == 0) {
+			streams.remove(query);
+			this.returnPacket(stream.packet);
+		}
+	}
+
+	/** */
+	private void write(Query query, List<String> typeNames, Packet packet) throws Exception {
+		for (Result result : query.getResults()) {
+			if (isDebugEnabled()) {
+				log.debug(result.toString());
+			}
+
+			Map<String, Object> resultValues = result.getValues();
+			if (resultValues != null) {
+				for (Entry<String, Object> values : resultValues.entrySet()) {
+					Object value = values.getValue();
+					if (JmxUtils.isNumeric(value)) {
+						byte[] name = this.getMetricName(query, result, values, typeNames, rootPrefix).getUtf8();
+
+						if (isDebugEnabled()) {
+							log.debug("StatsD Message: " + new String(name, "UTF-8") + ":" + value + "|" + bucketType);
+						}
+
+						doSend(packet, name, value);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * The separators of the protocol can't be part of a name.
+	 */
+	@Override
+	public MetricNameSanitizer getSanitizer() {
+		return MetricNameSanitizer.STATSD;
+	}
+
+	/**
+	 * An idle packet of the current packetSize, a new one if there is none.
+	 */
+	private Packet borrowPacket() {
+		int size = packetSize;
+		Packet packet;
+		while ((packet = packets.poll()) != null) {
+			pooledPackets.decrementAndGet();
+			if (packet.buffer.capacity() == size) {
+				return packet;
+			}
+			// From before packetSize changed, left to the GC.
+		}
+		packetsAllocated.incrementAndGet();
+		return new Packet(size);
+	}
+
+	/**
+	 * Empties the packet and keeps it for the next doWrite, unless the pool
+	 * is full or packetSize changed.
+	 */
+	private void returnPacket(Packet packet) {
+		packet.clear();
+		if (packet.buffer.capacity() != packetSize) {
+			return;
+		}
+		if (pooledPackets.incrementAndGet() > MAX_POOLED_PACKETS) {
+			pooledPackets.decrementAndGet();
+			return;
+		}
+		packets.offer(packet);
+	}
+
+	/**
+	 * Adds a stat to the packet, sending the packet first if the stat doesn't
+	 * fit.
+	 */
+	private void doSend(Packet packet, byte[] name, Object value) {
+		if (packet.add(name, value, bucketSuffix)) {
+			return;
+		}
+		if (packet.metrics > 0) {
+			send(packet);
+			if (packet.add(name, value, bucketSuffix)) {
+				return;
+			}
+		}
+		// Too large for any packet.
+		Packet alone = new Packet(name.length + 1 + value.toString().length() + bucketSuffix.length);
+		alone.add(name, value, bucketSuffix);
+		log.warn("StatsD stat of {} bytes is larger than packetSize, sending it alone", alone.buffer.position());
+		send(alone);
+	}
+
+	/**
+	 * Nothing is left buffered once a doWrite returns or a run ends, each
+	 * sends what it packed.
+	 *
+	 * @return false, there is never anything to send
+	 */
+	public boolean flush() {
+		return false;
+	}
+
+	/**
+	 * Sends the packet, if it isn't empty, and empties it. What couldn't be
+	 * sent is dropped, like a lost datagram.
+	 */
+	private boolean send(Packet packet) {
+		ByteBuffer buffer = packet.buffer;
+		int metrics = packet.metrics;
+		if (metrics == 0) {
+			return false;
+		}
+		buffer.flip();
+		final int sizeOfPacket = buffer.remaining();
+		try {
+			final int nbSentBytes = channel.send(buffer, this.address);
+			if (nbSentBytes != sizeOfPacket) {
+				sendErrors.incrementAndGet();
+				return false;
+			}
+			packetsSent.incrementAndGet();
+			metricsSent.addAndGet(metrics);
+			bytesSent.addAndGet(nbSentBytes);
+			return true;
+
+		} catch (IOException e) {
+			sendErrors.incrementAndGet();
+			log.error("Error sending StatsD packet to " + this.address, e);
+			return false;
+		} finally {
+			packet.clear();
+		}
+	}
+
+	/** */
+	@JsonIgnore
+	public long getPacketsSent() {
+		return packetsSent.get();
+	}
+
+	/** */
+	@JsonIgnore
+	public long getMetricsSent() {
+		return metricsSent.get();
+	}
+
+	/** */
+	@JsonIgnore
+	public long getBytesSent() {
+		return bytesSent.get();
+	}
+
+	/** */
+	@JsonIgnore
+	public long getSendErrors() {
+		return sendErrors.get();
+	}
+
+	/**
+	 * The packets of packetSize allocated so far, as many as the writes that
+	 * ran at the same time once the pool holds them.
+	 */
+	@JsonIgnore
+	public long getPacketsAllocated() {
+		return packetsAllocated.get();
+	}
+
+	/** */
+	private static byte[] encodeSuffix(String bucketType) {
+		byte[] suffix = new byte[bucketType.length() + 1];
+		suffix[0] = '|';
+		for (int i = 0; i < bucketType.length(); i++) {
+			suffix[i + 1] = ascii(bucketType.charAt(i));
+		}
+		return suffix;
+	}
+
+	/** */
+	private static byte ascii(char c) {
+		return (c < 0x80) ? (byte) c : (byte) '?';
+	}
+
+	/**
+	 * The packet of a query being streamed, and the number of its runs that
+	 * began and haven't ended. Only the calls for the query touch it, and
+	 * those are never concurrent.
+	 */
+	private static class Stream {
+		private final Packet packet;
+		private int runs = 0;
+
+		private Stream(Packet packet) {
+			this.packet = packet;
+		}
+	}
+
+	/**
+	 * The stats a doWrite or run is putting together, "name:value|type"
+	 * separated by newlines.
+	 */
+	private static class Packet {
+		private final ByteBuffer buffer;
+		private int metrics = 0;
+
+		private Packet(int size) {
+			this.buffer = ByteBuffer.allocateDirect(size);
+		}
+
+		/**
+		 * Encodes a stat at the end of the packet, false if it doesn't fit, in
+		 * which case the packet is left as it was.
+		 */
+		private boolean add(byte[] name, Object value, byte[] suffix) {
+			int start = buffer.position();
+			boolean fits = (metrics == 0 || put((byte) '\n'))
+					&& put(name)
+					&& put((byte) ':')
+					&& putValue(value)
+					&& put(suffix);
+			if (!fits) {
+				buffer.position(start);
+				return false;
+			}
+			metrics++;
+			return true;
+		}
+
+		private void clear() {
+			buffer.clear();
+			metrics = 0;
+		}
+
+		private boolean put(byte b) {
+			if (!buffer.hasRemaining()) {
+				return false;
+			}
+			buffer.put(b);
+			return true;
+		}
+
+		private boolean put(byte[] bytes) {
+			if (buffer.remaining() < bytes.length) {
+				return false;
+			}
+			buffer.put(bytes);
+			return true;
+		}
+
+		/**
+		 * Integral values are written digit by digit, the others as their
+		 * toString(), which is ASCII for numbers.
+		 */
+		private boolean putValue(Object value) {
+			if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+				return putLong(((Number) value).longValue());
+			}
+			if (value instanceof CharSequence) {
+				return putAscii((CharSequence) value);
+			}
+			return putAscii(value.toString());
+		}
+
+		private boolean putLong(long value) {
+			if (value == Long.MIN_VALUE) {
+				return putAscii(Long.toString(value));
+			}
+			long abs = Math.abs(value);
+			int digits = 1;
+			for (long rest = abs / 10; rest > 0; rest /= 10) {
+				digits++;
+			}
+			if (buffer.remaining() < digits + ((value < 0) ? 1 : 0)) {
+				return false;
+			}
+			if (value < 0) {
+				buffer.put((byte) '-');
+			}
+			int end = buffer.position() + digits;
+			for (int i = end - 1; i >= end - digits; i--) {
+				buffer.put(i, (byte) ('0' + (abs % 10)));
+				abs /= 10;
+			}
+			buffer.position(end);
+			return true;
+		}
+
+		private boolean putAscii(CharSequence chars) {
+			int length = chars.length();
+			if (buffer.remaining() < length) {
+				return false;
+			}
+			for (int i = 0; i < length; i++) {
+				buffer.put(ascii(chars.charAt(i)));
+			}
+			return true;
+		}
+	}
+}
@@ -10,8 +10,13 @@ import ch.qos.logback.core.rolling.RollingPolicy;
 import ch.qos.logback.core.rolling.SizeAndTimeBasedFNATP;
 import ch.qos.logback.core.rolling.TimeBasedRollingPolicy;
 import java.io.IOException;
+import java.io.OutputStream;
 import org.slf4j.Logger;
 
+import com.googlecode.jmxtrans.model.Query;
+import com.googlecode.jmxtrans.util.SyncedGzipOutputStream;
+import com.googlecode.jmxtrans.util.ValidationException;
+
 /**
  * Extension of KeyOutWriter to use Logback for its logging.  This version supports outputting with a time and size
  * based rollover policy but with no file rename taking place.  The filename remains constant for the output file from
@@ -28,6 +33,12 @@ import org.slf4j.Logger;
  * In this case we have set the logging to roll over every day.  There is also a default max size as per the
  * KeyOutWriter.  If the file exceeds the default max the .%i integer is increments.  See the Logstash documentation
  * for more information.
+ * 
+ * The compression setting works as it does for KeyOutWriter, the pattern must
+ * not end with .gz or .zip then, or logback would compress the files again once
+ * rolled over. With compressRolled set to true, .gz is added to the pattern if
+ * it doesn't end with it already, and logback gzips the files it rolls over on
+ * a thread of its own.
  */
 public class TimeBasedRollingKeyOutWriter extends KeyOutWriter {
 	
@@ -35,10 +46,26 @@ public class TimeBasedRollingKeyOutWriter extends KeyOutWriter {
 	private static final String DEFAULT_OUTPUT_PATTERN = "%msg%n";
 	private static final String SETTING_OUTPUT_PATTERN = "outputPattern";
 
+	/**
+	 * Checks the file pattern goes with the compression settings.
+	 */
+	@Override
+	public void validateSetup(Query query) throws ValidationException {
+		String fileStr = (String) this.getSettings().get(OUTPUT_FILE);
+		if (fileStr != null && isCompressed() && isCompressedByLogback(fileStr)) {
+			throw new ValidationException("With compression, the outputFile must not end with .gz or .zip: " + fileStr, query);
+		}
+		super.validateSetup(query);
+	}
+
 	@Override
 	protected Logger initLogger(String fileStr) throws IOException {
-		RollingPolicy rollingPolicy = initRollingPolicy(fileStr, getSettingMaxFileHistory(), getSettingMaxFileSize());
-		RollingFileAppender appender = buildAppender(buildEncoder(), rollingPolicy);
+		String fileNamePattern = fileStr;
+		if (!isCompressed() && getBooleanSetting(SETTING_COMPRESS_ROLLED) && !isCompressedByLogback(fileStr)) {
+			fileNamePattern = fileStr + ".gz";
+		}
+		RollingPolicy rollingPolicy = initRollingPolicy(fileNamePattern, getSettingMaxFileHistory(), getSettingMaxFileSize());
+		RollingFileAppender appender = buildAppender(isCompressed() ? buildCompressingEncoder(fileStr) : buildEncoder(), rollingPolicy);
 		
 		rollingPolicy.start();
 		appender.start();
@@ -74,6 +101,44 @@ public class TimeBasedRollingKeyOutWriter extends KeyOutWriter {
 		
 		return logEncoder;
 	}
+
+	/**
+	 * An encoder writing through a {@link SyncedGzipOutputStream}, which it
+	 * syncs when the appender closes the file, so that rolled over files are
+	 * complete.
+	 */
+	protected Encoder buildCompressingEncoder(final String fileStr) {
+		final long syncIntervalMillis = getCompressionSyncIntervalMillis();
+		PatternLayoutEncoder logEncoder = new PatternLayoutEncoder() {
+			private SyncedGzipOutputStream compressed;
+
+			@Override
+			public void init(OutputStream os) throws IOException {
+				compressed = (SyncedGzipOutputStream) compressedStream(fileStr, os, syncIntervalMillis);
+				super.init(compressed);
+			}
+
+			@Override
+			public void close() throws IOException {
+				super.close();
+				if (compressed != null) {
+					compressed.sync();
+				}
+			}
+		};
+		logEncoder.setContext(loggerContext);
+		logEncoder.setPattern(getSettingOutputPattern());
+		logEncoder.start();
+
+		return logEncoder;
+	}
+
+	/**
+	 * Whether logback compresses the files it rolls over to this pattern.
+	 */
+	private static boolean isCompressedByLogback(String fileNamePattern) {
+		return fileNamePattern.endsWith(".gz") || fileNamePattern.endsWith(".zip");
+	}
 				
 	protected RollingPolicy initRollingPolicy(String fileName, int maxBackupFiles, String maxFileSize) {
 		SizeAndTimeBasedFNATP sizeTimeBasedPolicy = new SizeAndTimeBasedFNATP();
@@ -92,6 +157,14 @@ public class TimeBasedRollingKeyOutWriter extends KeyOutWriter {
 		return policy;
 	}
 	
+	/**
+	 * Only the default pattern leaves the lines as they are.
+	 */
+	@Override
+	protected boolean canJoinLines() {
+		return DEFAULT_OUTPUT_PATTERN.equals(getSettingOutputPattern());
+	}
+
 	protected String getSettingOutputPattern() {
 		String outputPattern = (String) this.getSettings().get(SETTING_OUTPUT_PATTERN);
 		if (outputPattern == null) {
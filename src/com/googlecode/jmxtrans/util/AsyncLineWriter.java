@@ -0,0 +1,226 @@
+package com.googlecode.jmxtrans.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+
+/**
+ * Hands the lines of a writer to a thread of its own, which logs them to the
+ * file logger the writer would have logged them to. The threads collecting
+ * the lines only wait for the disk if the queue is full and the overflow
+ * policy is to block.
+ *
+ * When the layout of the logger is the message alone, the lines are joined
+ * and logged flushSize bytes at a time, or once the first of them has waited
+ * flushIntervalMillis, so that the appender writes and flushes a whole batch
+ * at once instead of each line.
+ *
+ * Lines written once stop() was called are dropped, and counted, rather than
+ * queued for a thread that is gone. Those that made it into the queue as the
+ * thread exited are logged by stop().
+ */
+public class AsyncLineWriter implements Runnable {
+
+	/**
+	 * What happens to a line when the queue is full.
+	 */
+	public enum Overflow {
+		/** The writer waits for room in the queue. */
+		BLOCK,
+		/** The line is dropped, and counted. */
+		DROP
+	}
+
+	/** Queued by stop() so the thread doesn't wait for the next line, never logged. */
+	private static final String WAKE_UP = new String("");
+
+	/** How long a blocked write waits before checking whether the writer stopped. */
+	private static final long STOP_CHECK_MILLIS = 100;
+
+	/** What %n ends the lines with, in log4j and logback. */
+	private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+	private final Logger out;
+	private final boolean joinLines;
+	private final BlockingQueue<String> queue;
+	private final Overflow overflow;
+	private final int flushSize;
+	private final long flushIntervalMillis;
+
+	private final AtomicLong linesWritten = new AtomicLong();
+	private final AtomicLong linesDropped = new AtomicLong();
+
+	private Thread thread;
+	private volatile boolean stopping = false;
+
+	/**
+	 * @param joinLines
+	 *            whether lines can be logged several at a time, which is only
+	 *            the case if the logger's pattern is "%m%n"
+	 */
+	public AsyncLineWriter(Logger out, boolean joinLines, int queueSize, Overflow overflow, int flushSize, long flushIntervalMillis) {
+		this.out = out;
+		this.joinLines = joinLines;
+		this.queue = new ArrayBlockingQueue<String>(queueSize);
+		this.overflow = overflow;
+		this.flushSize = flushSize;
+		this.flushIntervalMillis = flushIntervalMillis;
+	}
+
+	/** */
+	public synchronized void start() {
+		if (this.thread != null) {
+			return;
+		}
+		this.stopping = false;
+		this.thread = new Thread(this, "AsyncLineWriter-" + this.out.getName());
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Queues a line, or drops it if the queue is full and the policy says so,
+	 * or if the writer is stopping.
+	 */
+	public void write(String line) throws InterruptedException {
+		if (this.stopping) {
+			this.linesDropped.incrementAndGet();
+			return;
+		}
+		if (this.overflow == Overflow.BLOCK) {
+			// Waiting a bit at a time, the thread may stop while the queue is full.
+			while (!this.queue.offer(line, STOP_CHECK_MILLIS, TimeUnit.MILLISECONDS)) {
+				if (this.stopping) {
+					this.linesDropped.incrementAndGet();
+					return;
+				}
+			}
+		} else if (!this.queue.offer(line)) {
+			this.linesDropped.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Logs what is queued and stops the thread, waiting up to timeoutMillis
+	 * for it. The lines queued after the thread exited are logged here.
+	 */
+	public void stop(long timeoutMillis) throws InterruptedException {
+		Thread stopped;
+		synchronized (this) {
+			stopped = this.thread;
+			this.thread = null;
+			this.stopping = true;
+		}
+		if (stopped != null) {
+			this.queue.offer(WAKE_UP);
+			stopped.join(timeoutMillis);
+			if (!stopped.isAlive()) {
+				this.logRemaining();
+			}
+		}
+	}
+
+	/**
+	 * Logs the lines left in the queue, on the calling thread.
+	 */
+	private void logRemaining() {
+		List<String> lines = new ArrayList<String>();
+		this.queue.drainTo(lines);
+		StringBuilder batch = new StringBuilder();
+		int batched = 0;
+		for (String line : lines) {
+			if (line == WAKE_UP) {
+				continue;
+			}
+			if (!this.joinLines) {
+				this.log(line, 1);
+				continue;
+			}
+			if (batched > 0) {
+				batch.append(LINE_SEPARATOR);
+			}
+			batch.append(line);
+			batched++;
+		}
+		if (batched > 0) {
+			this.log(batch.toString(), batched);
+		}
+	}
+
+	/** */
+	@Override
+	public void run() {
+		StringBuilder batch = new StringBuilder(this.flushSize);
+		int batched = 0;
+		long firstQueuedAt = 0;
+		List<String> lines = new ArrayList<String>();
+		try {
+			while (true) {
+				long wait = (batched == 0) ? this.flushIntervalMillis : firstQueuedAt + this.flushIntervalMillis - System.currentTimeMillis();
+				if (this.stopping) {
+					wait = 0;
+				}
+				String line = this.queue.poll(Math.max(wait, 1), TimeUnit.MILLISECONDS);
+				if (line != null) {
+					lines.add(line);
+					this.queue.drainTo(lines);
+					for (String l : lines) {
+						if (l == WAKE_UP) {
+							continue;
+						}
+						if (!this.joinLines) {
+							this.log(l, 1);
+							continue;
+						}
+						if (batched == 0) {
+							firstQueuedAt = System.currentTimeMillis();
+						} else {
+							batch.append(LINE_SEPARATOR);
+						}
+						batch.append(l);
+						batched++;
+						if (batch.length() >= this.flushSize) {
+							this.log(batch.toString(), batched);
+							batch.setLength(0);
+							batched = 0;
+						}
+					}
+					lines.clear();
+				}
+				if (batched > 0 && (this.stopping || System.currentTimeMillis() - firstQueuedAt >= this.flushIntervalMillis)) {
+					this.log(batch.toString(), batched);
+					batch.setLength(0);
+					batched = 0;
+				}
+				if (this.stopping && this.queue.isEmpty() && batched == 0) {
+					return;
+				}
+			}
+		} catch (InterruptedException e) {
+			if (batched > 0) {
+				this.log(batch.toString(), batched);
+			}
+		}
+	}
+
+	/** The lines logged so far. */
+	public long getLinesWritten() {
+		return this.linesWritten.get();
+	}
+
+	/** The lines dropped because the queue was full or the writer stopping. */
+	public long getLinesDropped() {
+		return this.linesDropped.get();
+	}
+
+	/** */
+	private void log(String lines, int count) {
+		this.out.info(lines);
+		this.linesWritten.addAndGet(count);
+	}
+}
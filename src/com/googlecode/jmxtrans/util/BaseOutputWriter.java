@@ -3,12 +3,17 @@ package com.googlecode.jmxtrans.util;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.TreeMap;
 
 import org.apache.commons.pool.KeyedObjectPool;
 import org.codehaus.jackson.annotate.JsonIgnore;
 
 import com.googlecode.jmxtrans.OutputWriter;
+import com.googlecode.jmxtrans.model.MetricRef;
+import com.googlecode.jmxtrans.model.Query;
+import com.googlecode.jmxtrans.model.Result;
+import com.googlecode.jmxtrans.util.MetricKeyCache.MetricName;
 
 /**
  * Implements the common code for output filters.
@@ -24,9 +29,11 @@ public abstract class BaseOutputWriter implements OutputWriter {
 	public static final String BINARY_PATH = "binaryPath";
 	public static final String DEBUG = "debug";
 	public static final String TYPE_NAMES = "typeNames";
+	public static final String KEY_CACHE_SIZE = "keyCacheSize";
 
 	private Boolean debugEnabled = null;
 	private Map<String, Object> settings;
+	private volatile MetricKeyCache keyCache;
 
 	/** */
 	public void addSetting(String key, Object value) {
@@ -192,6 +199,80 @@ public abstract class BaseOutputWriter implements OutputWriter {
 		return JmxUtils.getConcatedTypeNameValues(this.getTypeNames(), typeNameStr);
 	}
 
+	/**
+	 * The rules used to clean up the metric names this writer builds. Writers
+	 * whose protocol can't carry some characters override it.
+	 */
+	@JsonIgnore
+	public MetricNameSanitizer getSanitizer() {
+		return MetricNameSanitizer.DEFAULT;
+	}
+
+	/**
+	 * The key strings this writer built so far, null if keyCacheSize is 0.
+	 * The cache is created on first use, with keyCacheSize entries
+	 * ({@link MetricKeyCache#DEFAULT_MAX_SIZE} by default).
+	 */
+	@JsonIgnore
+	public MetricKeyCache getKeyCache() {
+		MetricKeyCache cache = this.keyCache;
+		if (cache == null) {
+			int size = this.getIntegerSetting(KEY_CACHE_SIZE, MetricKeyCache.DEFAULT_MAX_SIZE);
+			if (size <= 0) {
+				return null;
+			}
+			synchronized (this) {
+				if (this.keyCache == null) {
+					this.keyCache = new MetricKeyCache(size);
+				}
+				cache = this.keyCache;
+			}
+		}
+		return cache;
+	}
+
+	/**
+	 * The name {@link JmxUtils#getKeyString(Query, Result, Entry, List, String, MetricNameSanitizer)}
+	 * gives with the sanitizer of this writer, from the key cache.
+	 */
+	protected MetricName getMetricName(Query query, Result result, Entry<String, Object> values, List<String> typeNames, String rootPrefix) {
+		return this.getMetricName(query, result, values, typeNames, rootPrefix, true);
+	}
+
+	/**
+	 * The name {@link JmxUtils#getKeyString2(Query, Result, Entry, List, String, MetricNameSanitizer)}
+	 * gives with the sanitizer of this writer, from the key cache.
+	 */
+	protected MetricName getMetricName2(Query query, Result result, Entry<String, Object> values, List<String> typeNames) {
+		return this.getMetricName(query, result, values, typeNames, null, false);
+	}
+
+	/**
+	 * The name {@link JmxUtils#getKeyString(MetricRef, List, String, MetricNameSanitizer)}
+	 * gives with the sanitizer of this writer, from the key cache.
+	 */
+	protected MetricName getMetricName(MetricRef metric, List<String> typeNames, String rootPrefix) {
+		return this.getMetricName(metric.getQuery(), metric.getClassName(), metric.getTypeName(), metric.getAttributeName(), metric.getKey(),
+				typeNames, rootPrefix, true);
+	}
+
+	/** */
+	private MetricName getMetricName(Query query, Result result, Entry<String, Object> values, List<String> typeNames, String rootPrefix,
+			boolean withServer) {
+		return this.getMetricName(query, result.getClassName(), result.getTypeName(), result.getAttributeName(), values.getKey(), typeNames,
+				rootPrefix, withServer);
+	}
+
+	/** */
+	private MetricName getMetricName(Query query, String className, String typeName, String attributeName, String key,
+			List<String> typeNames, String rootPrefix, boolean withServer) {
+		MetricKeyCache cache = this.getKeyCache();
+		if (cache == null) {
+			return MetricKeyCache.build(query, className, typeName, attributeName, key, typeNames, rootPrefix, this.getSanitizer(), withServer);
+		}
+		return cache.get(query, className, typeName, attributeName, key, typeNames, rootPrefix, this.getSanitizer(), withServer);
+	}
+
 	/**
 	 * Replaces all . with _ and removes all spaces and double/single quotes.
 	 */
@@ -0,0 +1,153 @@
+package com.googlecode.jmxtrans.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A map holding at most about maxSize entries, the least recently used going
+ * first once there are more.
+ *
+ * Lookups don't lock anything: a hit only stamps its entry with the clock,
+ * which moves on every put. Once a put goes over maxSize, the thread that
+ * gets to evict sorts the entries by stamp and drops the oldest tenth, so the
+ * cost of a sort is shared by the puts of the entries that replace them.
+ * Entries used since the last put can't be told apart, which is why the
+ * order is only approximately LRU, and puts racing an eviction may briefly
+ * take the cache over maxSize.
+ */
+public class BoundedCache<K, V> {
+
+	private final int maxSize;
+	private final ConcurrentMap<K, Node<V>> map = new ConcurrentHashMap<K, Node<V>>();
+	private final AtomicLong clock = new AtomicLong();
+	private final ReentrantLock evicting = new ReentrantLock();
+
+	/** */
+	public BoundedCache(int maxSize) {
+		if (maxSize < 1) {
+			throw new IllegalArgumentException("maxSize must be positive: " + maxSize);
+		}
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * The value of the key, null if there is none.
+	 */
+	public V get(K key) {
+		Node<V> node = this.map.get(key);
+		if (node == null) {
+			return null;
+		}
+		long now = this.clock.get();
+		if (node.used != now) {
+			node.used = now;
+		}
+		return node.value;
+	}
+
+	/**
+	 * Adds the value unless the key already has one.
+	 *
+	 * @return the value of the key, the one already there if another thread
+	 *         was first
+	 */
+	public V putIfAbsent(K key, V value) {
+		Node<V> node = new Node<V>(value, this.clock.getAndIncrement());
+		Node<V> previous = this.map.putIfAbsent(key, node);
+		if (previous != null) {
+			return previous.value;
+		}
+		if (this.map.size() > this.maxSize) {
+			this.evict();
+		}
+		return value;
+	}
+
+	/** */
+	public void remove(K key) {
+		this.map.remove(key);
+	}
+
+	/** */
+	public void clear() {
+		this.map.clear();
+	}
+
+	/** */
+	public int getMaxSize() {
+		return this.maxSize;
+	}
+
+	/** */
+	public int size() {
+		return this.map.size();
+	}
+
+	/**
+	 * Drops the least recently used tenth of the entries, unless another
+	 * thread is already at it.
+	 */
+	private void evict() {
+		if (!this.evicting.tryLock()) {
+			return;
+		}
+		try {
+			int target = this.maxSize - this.maxSize / 10;
+			int excess = this.map.size() - target;
+			if (excess <= 0) {
+				return;
+			}
+			// The stamps are read once, hits go on moving them during the sort.
+			List<Candidate<K, V>> candidates = new ArrayList<Candidate<K, V>>(this.map.size());
+			for (Map.Entry<K, Node<V>> entry : this.map.entrySet()) {
+				candidates.add(new Candidate<K, V>(entry.getKey(), entry.getValue()));
+			}
+			Collections.sort(candidates);
+			for (int i = 0; i < excess && i < candidates.size(); i++) {
+				Candidate<K, V> candidate = candidates.get(i);
+				this.map.remove(candidate.key, candidate.node);
+			}
+		} finally {
+			this.evicting.unlock();
+		}
+	}
+
+	/**
+	 * A value and when it was last used.
+	 */
+	private static class Node<V> {
+		private final V value;
+		private volatile long used;
+
+		private Node(V value, long used) {
+			this.value = value;
+			this.used = used;
+		}
+	}
+
+	/**
+	 * An entry considered for eviction, with its stamp at the time.
+	 */
+	private static class Candidate<K, V> implements Comparable<Candidate<K, V>> {
+		private final K key;
+		private final Node<V> node;
+		private final long used;
+
+		private Candidate(K key, Node<V> node) {
+			this.key = key;
+			this.node = node;
+			this.used = node.used;
+		}
+
+		@Override
+		public int compareTo(Candidate<K, V> other) {
+			return (this.used < other.used) ? -1 : ((this.used == other.used) ? 0 : 1);
+		}
+	}
+}
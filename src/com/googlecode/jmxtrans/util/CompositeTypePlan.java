@@ -0,0 +1,216 @@
+package com.googlecode.jmxtrans.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.TabularType;
+
+/**
+ * How to flatten the CompositeData of a given CompositeType into a Result: the
+ * item keys in the order they are visited, and for each one whether it holds
+ * a nested CompositeData, a TabularData or a plain value.
+ *
+ * Types like MemoryUsage or GcInfo never change shape, so plans are worked
+ * out once per type and shared by every server.
+ */
+public class CompositeTypePlan {
+
+	/** Past this many, names are built every time instead of being kept. */
+	static final int MAX_CACHED_NAMES = 1024;
+
+	private static final ConcurrentMap<CompositeType, CompositeTypePlan> plans = new ConcurrentHashMap<CompositeType, CompositeTypePlan>();
+
+	private final CompositeType type;
+	private final String[] keys;
+	private final Item[] items;
+
+	private CompositeTypePlan(CompositeType type) {
+		this.type = type;
+		this.keys = type.keySet().toArray(new String[type.keySet().size()]);
+		this.items = new Item[this.keys.length];
+		for (int i = 0; i < this.keys.length; i++) {
+			this.items[i] = new Item(this.keys[i], type.getType(this.keys[i]));
+		}
+	}
+
+	/**
+	 * The plan of a type, computed on first use.
+	 */
+	public static CompositeTypePlan forType(CompositeType type) {
+		CompositeTypePlan plan = plans.get(type);
+		if (plan == null) {
+			plan = new CompositeTypePlan(type);
+			CompositeTypePlan existing = plans.putIfAbsent(type, plan);
+			if (existing != null) {
+				plan = existing;
+			}
+		}
+		return plan;
+	}
+
+	/**
+	 * The plan of a value whose type was declared as this item's. Values can
+	 * be of a subtype with more items, then the plan of their own type is
+	 * used.
+	 */
+	private static CompositeTypePlan forType(CompositeType actual, CompositeTypePlan declared) {
+		if ((declared != null) && (actual == declared.type)) {
+			return declared;
+		}
+		return forType(actual);
+	}
+
+	/**
+	 * The keys of the type, in keySet order, ready for getAll(). Don't modify
+	 * the returned array.
+	 */
+	public String[] getKeys() {
+		return this.keys;
+	}
+
+	/** The items of the type, in keySet order. */
+	public Item[] getItems() {
+		return this.items;
+	}
+
+	/** The number of types planned so far. */
+	public static int getPlanCount() {
+		return plans.size();
+	}
+
+	/**
+	 * One item of a CompositeType.
+	 */
+	public static class Item {
+		private final String key;
+		private final String suffix;
+		private final CompositeTypePlan compositePlan;
+		private final TabularTypePlan tabularPlan;
+		private final ConcurrentMap<String, String> names = new ConcurrentHashMap<String, String>();
+
+		private Item(String key, OpenType<?> itemType) {
+			this.key = key;
+			this.suffix = "." + key;
+			this.compositePlan = (itemType instanceof CompositeType) ? forType((CompositeType) itemType) : null;
+			this.tabularPlan = (itemType instanceof TabularType) ? TabularTypePlan.forType((TabularType) itemType) : null;
+		}
+
+		/** */
+		public String getKey() {
+			return this.key;
+		}
+
+		/** Whether the item is declared as a CompositeData. */
+		public boolean isComposite() {
+			return this.compositePlan != null;
+		}
+
+		/** Whether the item is declared as a TabularData. */
+		public boolean isTabular() {
+			return this.tabularPlan != null;
+		}
+
+		/**
+		 * The plan of a CompositeData held by this item.
+		 */
+		public CompositeTypePlan getCompositePlan(CompositeType actual) {
+			return CompositeTypePlan.forType(actual, this.compositePlan);
+		}
+
+		/**
+		 * The plan of the TabularData held by this item, null if it isn't
+		 * declared as one.
+		 */
+		public TabularTypePlan getTabularPlan() {
+			return this.tabularPlan;
+		}
+
+		/**
+		 * The attribute name of what is nested under this item: prefix.key
+		 */
+		public String getName(String prefix) {
+			String name = this.names.get(prefix);
+			if (name == null) {
+				name = prefix + this.suffix;
+				if (this.names.size() < MAX_CACHED_NAMES) {
+					this.names.put(prefix, name);
+				}
+			}
+			return name;
+		}
+	}
+
+	/**
+	 * How to flatten the TabularData of a given TabularType: the plan of its
+	 * rows, and the attribute names already built for the row indexes seen.
+	 */
+	public static class TabularTypePlan {
+
+		private static final ConcurrentMap<TabularType, TabularTypePlan> plans = new ConcurrentHashMap<TabularType, TabularTypePlan>();
+
+		private final CompositeTypePlan rowPlan;
+		private final ConcurrentMap<String, ConcurrentMap<Object, String>> names = new ConcurrentHashMap<String, ConcurrentMap<Object, String>>();
+
+		private TabularTypePlan(TabularType type) {
+			this.rowPlan = CompositeTypePlan.forType(type.getRowType());
+		}
+
+		/**
+		 * The plan of a type, computed on first use.
+		 */
+		public static TabularTypePlan forType(TabularType type) {
+			TabularTypePlan plan = plans.get(type);
+			if (plan == null) {
+				plan = new TabularTypePlan(type);
+				TabularTypePlan existing = plans.putIfAbsent(type, plan);
+				if (existing != null) {
+					plan = existing;
+				}
+			}
+			return plan;
+		}
+
+		/**
+		 * The plan of a row.
+		 */
+		public CompositeTypePlan getRowPlan(CompositeType actual) {
+			return CompositeTypePlan.forType(actual, this.rowPlan);
+		}
+
+		/**
+		 * The attribute name of a row: the prefix followed by each value of
+		 * the row index, ie: LastGcInfo.memoryUsageAfterGc.Par Survivor Space
+		 */
+		public String getRowName(String prefix, Iterable<?> index) {
+			ConcurrentMap<Object, String> rows = this.names.get(prefix);
+			if ((rows == null) && (this.names.size() < MAX_CACHED_NAMES)) {
+				rows = new ConcurrentHashMap<Object, String>();
+				ConcurrentMap<Object, String> existing = this.names.putIfAbsent(prefix, rows);
+				if (existing != null) {
+					rows = existing;
+				}
+			}
+
+			String name = (rows != null) ? rows.get(index) : null;
+			if (name == null) {
+				name = buildRowName(prefix, index);
+				if ((rows != null) && (rows.size() < MAX_CACHED_NAMES)) {
+					rows.put(index, name);
+				}
+			}
+			return name;
+		}
+
+		/** */
+		private static String buildRowName(String prefix, Iterable<?> index) {
+			StringBuilder sb = new StringBuilder(prefix);
+			for (Object entryKey : index) {
+				sb.append(".");
+				sb.append(entryKey);
+			}
+			return sb.toString();
+		}
+	}
+}
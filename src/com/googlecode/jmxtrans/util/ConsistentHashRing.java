@@ -0,0 +1,167 @@
+package com.googlecode.jmxtrans.util;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The consistent hash ring of carbon-relay (carbon_ch), so that metrics are
+ * sent to the same carbon-cache a relay configured with the same destinations
+ * would pick.
+ *
+ * Every node is put on the ring replicaCount times, at the first two bytes of
+ * the MD5 of "ringKey:i", and a metric goes to the first node at or after the
+ * position of its path. The ringKey of a node is what Python prints for the
+ * (server, instance) tuple of the relay's destination, see
+ * {@link #carbonKey(String, String)}.
+ *
+ * The ring is built once and then only read, it is thread safe once built.
+ */
+public class ConsistentHashRing<N> {
+
+	/** What carbon uses. */
+	public static final int DEFAULT_REPLICA_COUNT = 100;
+
+	private final int replicaCount;
+	private final List<N> nodes = new ArrayList<N>();
+
+	private int[] positions = new int[0];
+	private Object[] owners = new Object[0];
+
+	/** */
+	public ConsistentHashRing() {
+		this(DEFAULT_REPLICA_COUNT);
+	}
+
+	/** */
+	public ConsistentHashRing(int replicaCount) {
+		this.replicaCount = replicaCount;
+	}
+
+	/**
+	 * The key carbon-relay hashes for a destination: the Python repr of its
+	 * (server, instance) tuple.
+	 *
+	 * @param instance
+	 *            null if the destination doesn't name one
+	 */
+	public static String carbonKey(String server, String instance) {
+		return "('" + server + "', " + ((instance == null) ? "None" : "'" + instance + "'") + ")";
+	}
+
+	/**
+	 * Puts a node on the ring.
+	 */
+	public synchronized void addNode(String ringKey, N node) {
+		this.nodes.add(node);
+
+		int size = this.positions.length;
+		int[] newPositions = Arrays.copyOf(this.positions, size + this.replicaCount);
+		Object[] newOwners = Arrays.copyOf(this.owners, size + this.replicaCount);
+		for (int i = 0; i < this.replicaCount; i++) {
+			int position = position(ringKey + ":" + i);
+			// Like carbon, a taken position moves the replica to the next one.
+			while (indexOf(newPositions, size, position) >= 0) {
+				position++;
+			}
+
+			// Insert, keeping the ring sorted.
+			int insertAt = -(indexOf(newPositions, size, position) + 1);
+			System.arraycopy(newPositions, insertAt, newPositions, insertAt + 1, size - insertAt);
+			System.arraycopy(newOwners, insertAt, newOwners, insertAt + 1, size - insertAt);
+			newPositions[insertAt] = position;
+			newOwners[insertAt] = node;
+			size++;
+		}
+		this.positions = newPositions;
+		this.owners = newOwners;
+	}
+
+	/**
+	 * The number of distinct nodes on the ring.
+	 */
+	public int size() {
+		return this.nodes.size();
+	}
+
+	/**
+	 * The node a key goes to.
+	 */
+	@SuppressWarnings("unchecked")
+	public N getNode(String key) {
+		if (this.nodes.size() == 1) {
+			return this.nodes.get(0);
+		}
+		return (N) this.owners[this.firstIndex(key)];
+	}
+
+	/**
+	 * Fills nodes with the count distinct nodes a key goes to, walking the
+	 * ring from its position like carbon does for replication. Fewer nodes are
+	 * returned if the ring doesn't have that many.
+	 */
+	@SuppressWarnings("unchecked")
+	public void getNodes(String key, int count, List<N> nodes) {
+		nodes.clear();
+		int wanted = Math.min(count, this.nodes.size());
+		if (wanted == 1) {
+			nodes.add(this.getNode(key));
+			return;
+		}
+		int length = this.positions.length;
+		int index = this.firstIndex(key);
+		for (int seen = 0; (nodes.size() < wanted) && (seen < length); seen++) {
+			N node = (N) this.owners[(index + seen) % length];
+			if (!nodes.contains(node)) {
+				nodes.add(node);
+			}
+		}
+	}
+
+	/** */
+	private int firstIndex(String key) {
+		int index = indexOf(this.positions, this.positions.length, position(key));
+		if (index < 0) {
+			index = -(index + 1);
+		}
+		return index % this.positions.length;
+	}
+
+	/**
+	 * Where a key is on the ring: the first 4 hex digits of its MD5.
+	 */
+	static int position(String key) {
+		try {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes("UTF-8"));
+			return ((digest[0] & 0xff) << 8) | (digest[1] & 0xff);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Arrays.binarySearch, but returns the first of equal positions, as
+	 * bisect_left does.
+	 */
+	private static int indexOf(int[] positions, int size, int position) {
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (positions[middle] < position) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		if ((low < size) && (positions[low] == position)) {
+			return low;
+		}
+		return -(low + 1);
+	}
+}
@@ -0,0 +1,358 @@
+package com.googlecode.jmxtrans.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+
+import javax.management.Attribute;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.googlecode.jmxtrans.ResultSink;
+import com.googlecode.jmxtrans.model.CollectionSnapshot;
+import com.googlecode.jmxtrans.model.Query;
+import com.googlecode.jmxtrans.model.Result;
+import com.googlecode.jmxtrans.model.Server;
+import com.googlecode.jmxtrans.util.MBeanMetadataCache.MBeanMetadata;
+
+/**
+ * What has to be fetched from a server in one run: the MBeans matched by its
+ * queries, each with the queries that matched it.
+ *
+ * An MBean is fetched once for all of its queries. The Results of a query are
+ * collected from all of its MBeans and handed to its writers once, in the
+ * order the MBeans were matched, whatever the order the fetches completed in.
+ * Writers that are ResultSinks get the values as each MBean comes in instead,
+ * and nothing is collected for a query if all of its writers are.
+ */
+public class FetchPlan {
+
+	private static final Logger log = LoggerFactory.getLogger(FetchPlan.class);
+
+	private final List<Fetch> fetches;
+	private final Map<Query, Integer> mbeanCounts;
+	private final Exception planningError;
+
+	private FetchPlan(List<Fetch> fetches, Map<Query, Integer> mbeanCounts, Exception planningError) {
+		this.fetches = Collections.unmodifiableList(fetches);
+		this.mbeanCounts = mbeanCounts;
+		this.planningError = planningError;
+	}
+
+	/**
+	 * Groups the queries by the MBeans they match. The ObjectNames must have
+	 * been resolved already, in the order the queries were configured.
+	 */
+	public static FetchPlan plan(Map<Query, ? extends Iterable<ObjectName>> resolved) {
+		return plan(resolved, null);
+	}
+
+	/**
+	 * Groups the queries by the MBeans they match.
+	 *
+	 * @param planningError
+	 *            the first error resolving the queries left out of the plan,
+	 *            which every run starts with as its first error
+	 */
+	public static FetchPlan plan(Map<Query, ? extends Iterable<ObjectName>> resolved, Exception planningError) {
+		Map<ObjectName, Fetch> byName = new LinkedHashMap<ObjectName, Fetch>();
+		Map<Query, Integer> mbeanCounts = new IdentityHashMap<Query, Integer>();
+		for (Map.Entry<Query, ? extends Iterable<ObjectName>> entry : resolved.entrySet()) {
+			Query query = entry.getKey();
+			int position = 0;
+			for (ObjectName name : entry.getValue()) {
+				Fetch fetch = byName.get(name);
+				if (fetch == null) {
+					fetch = new Fetch(name);
+					byName.put(name, fetch);
+				}
+				fetch.add(query, position++);
+			}
+			mbeanCounts.put(query, position);
+		}
+		return new FetchPlan(new ArrayList<Fetch>(byName.values()), mbeanCounts, planningError);
+	}
+
+	/**
+	 * One Fetch per MBean, in the order they were first matched.
+	 */
+	public List<Fetch> getFetches() {
+		return this.fetches;
+	}
+
+	/**
+	 * Starts a run of this plan.
+	 *
+	 * @param server
+	 *            the server the queries are run on, null for queries run on
+	 *            their own
+	 * @param multiThreaded
+	 *            whether the server runs its queries multithreaded, in which
+	 *            case queries without a fetchParallelism aren't limited.
+	 * @param keepResults
+	 *            whether to keep the Results of every query for
+	 *            {@link Run#getResults(Query)}, even those only streamed.
+	 */
+	public Run newRun(Server server, boolean multiThreaded, boolean keepResults) {
+		return new Run(server, multiThreaded, keepResults);
+	}
+
+	/**
+	 * An MBean and the queries matching it.
+	 */
+	public static class Fetch {
+		private final ObjectName name;
+		private final List<Query> queries = new ArrayList<Query>(1);
+		private final List<Integer> positions = new ArrayList<Integer>(1);
+
+		private Fetch(ObjectName name) {
+			this.name = name;
+		}
+
+		private void add(Query query, int position) {
+			this.queries.add(query);
+			this.positions.add(position);
+		}
+
+		/** */
+		public ObjectName getName() {
+			return this.name;
+		}
+
+		/** The queries matching this MBean, in configuration order. */
+		public List<Query> getQueries() {
+			return Collections.unmodifiableList(this.queries);
+		}
+	}
+
+	/**
+	 * The state of one execution of the plan: the Results collected so far for
+	 * each query and the fetchParallelism permits.
+	 */
+	public class Run {
+		private final Server server;
+		private final long epoch = System.currentTimeMillis();
+		private final Map<Query, Collector> collectors = new IdentityHashMap<Query, Collector>();
+		private final Map<Query, Semaphore> limits = new IdentityHashMap<Query, Semaphore>();
+		private final Map<Query, List<Result>> kept;
+		private volatile Exception firstError;
+
+		private Run(Server server, boolean multiThreaded, boolean keepResults) {
+			this.server = server;
+			this.firstError = FetchPlan.this.planningError;
+			this.kept = keepResults ? Collections.synchronizedMap(new IdentityHashMap<Query, List<Result>>()) : null;
+			for (Map.Entry<Query, Integer> entry : FetchPlan.this.mbeanCounts.entrySet()) {
+				Query query = entry.getKey();
+				this.collectors.put(query, new Collector(entry.getValue(), keepResults || query.getPlan().hasListWriters()));
+
+				int parallelism = query.getPlan().getFetchParallelism();
+				if (parallelism > 0) {
+					this.limits.put(query, new Semaphore(parallelism));
+				} else if (!multiThreaded) {
+					this.limits.put(query, new Semaphore(1));
+				}
+			}
+		}
+
+		/**
+		 * Waits until every query of the fetch allows one more concurrent
+		 * fetch. The permits are always taken in configuration order, so two
+		 * fetches can't wait on each other.
+		 */
+		public void acquire(Fetch fetch) throws InterruptedException {
+			int acquired = 0;
+			try {
+				for (Query query : fetch.queries) {
+					Semaphore limit = this.limits.get(query);
+					if (limit != null) {
+						limit.acquire();
+					}
+					acquired++;
+				}
+			} catch (InterruptedException ex) {
+				this.release(fetch, acquired);
+				throw ex;
+			}
+		}
+
+		/** */
+		public void release(Fetch fetch) {
+			this.release(fetch, fetch.queries.size());
+		}
+
+		private void release(Fetch fetch, int count) {
+			for (int i = 0; i < count; i++) {
+				Semaphore limit = this.limits.get(fetch.queries.get(i));
+				if (limit != null) {
+					limit.release();
+				}
+			}
+		}
+
+		/**
+		 * Flattens the attributes the index-th query of the fetch asked for,
+		 * streaming them to its ResultSinks and keeping the Results for its
+		 * other writers. Once all the MBeans of the query are in, the other
+		 * writers get a snapshot of the run and the sinks are told it is over.
+		 * Errors are logged and kept, see {@link #getFirstError()}.
+		 *
+		 * @param attributes
+		 *            null if the MBean couldn't be fetched
+		 */
+		public void complete(Fetch fetch, int index, MBeanMetadata metadata, List<Attribute> attributes) {
+			Query query = fetch.queries.get(index);
+			Collector collector = this.collectors.get(query);
+			List<ResultSink> sinks = query.getPlan().getSinks();
+
+			List<Result> results = null;
+			if (attributes != null) {
+				results = collector.keepsResults() ? new ArrayList<Result>() : null;
+				try {
+					ResultEmitter emitter = new ResultEmitter(query, metadata, results, sinks);
+					if (sinks == null) {
+						JmxUtils.flatten(emitter, attributes);
+					} else {
+						Lock lock = query.getWriteLock();
+						lock.lock();
+						try {
+							if (!collector.begun) {
+								for (ResultSink sink : sinks) {
+									sink.begin(query);
+								}
+								collector.begun = true;
+							}
+							JmxUtils.flatten(emitter, attributes);
+						} finally {
+							lock.unlock();
+						}
+					}
+				} catch (Exception ex) {
+					log.error("Error processing the results of " + fetch.name + " for query: " + query, ex);
+					this.failed(ex);
+					results = null;
+				}
+			}
+
+			List<Result> all = collector.complete(fetch.positions.get(index), results);
+			if (all == null) {
+				return;
+			}
+
+			if (this.kept != null) {
+				this.kept.put(query, all);
+			}
+
+			try {
+				// An earlier run of the same server might still be writing,
+				// and writers aren't expected to handle a query concurrently.
+				Lock lock = query.getWriteLock();
+				lock.lock();
+				try {
+					if (!all.isEmpty()) {
+						Server snapshotServer = (this.server != null) ? this.server : query.getServer();
+						CollectionSnapshot snapshot = new CollectionSnapshot(snapshotServer, query, all, this.epoch);
+
+						// Now run the OutputWriters.
+						JmxUtils.runOutputWriters(snapshot);
+					}
+				} finally {
+					try {
+						if (collector.begun) {
+							for (ResultSink sink : sinks) {
+								sink.end(query);
+							}
+						}
+					} finally {
+						lock.unlock();
+					}
+				}
+
+				if (log.isDebugEnabled()) {
+					log.debug("Finished running outputWriters for query: " + query);
+				}
+			} catch (Exception ex) {
+				log.error("Error running outputWriters for query: " + query, ex);
+				this.failed(ex);
+			}
+		}
+
+		/**
+		 * Remembers an error, only the first one is kept.
+		 */
+		public void failed(Exception ex) {
+			if (this.firstError == null) {
+				this.firstError = ex;
+			}
+		}
+
+		/**
+		 * All the Results of a query, if the run was asked to keep them and the
+		 * query is done.
+		 */
+		public List<Result> getResults(Query query) {
+			return (this.kept != null) ? this.kept.get(query) : null;
+		}
+
+		/**
+		 * The first error that happened during this run, if any.
+		 */
+		public Exception getFirstError() {
+			return this.firstError;
+		}
+	}
+
+	/**
+	 * The Results of one query, one slot per MBean. Nothing is kept if all the
+	 * writers of the query are ResultSinks.
+	 */
+	private static class Collector {
+		private final List<List<Result>> slots;
+		private final AtomicInteger remaining;
+
+		/** Whether the sinks were told the run began, guarded by the query. */
+		private boolean begun = false;
+
+		private Collector(int mbeanCount, boolean keepResults) {
+			this.slots = keepResults ? new ArrayList<List<Result>>(Collections.<List<Result>> nCopies(mbeanCount, null)) : null;
+			this.remaining = new AtomicInteger(mbeanCount);
+		}
+
+		private boolean keepsResults() {
+			return this.slots != null;
+		}
+
+		/**
+		 * Returns all the Results in order when the last slot is filled, null
+		 * before that. The list is empty if no Results are kept.
+		 */
+		private List<Result> complete(int position, List<Result> results) {
+			if (this.slots == null) {
+				return (this.remaining.decrementAndGet() != 0) ? null : Collections.<Result> emptyList();
+			}
+			synchronized (this.slots) {
+				this.slots.set(position, results);
+			}
+			if (this.remaining.decrementAndGet() != 0) {
+				return null;
+			}
+
+			List<Result> all = new ArrayList<Result>();
+			synchronized (this.slots) {
+				for (List<Result> slot : this.slots) {
+					if (slot != null) {
+						all.addAll(slot);
+					}
+				}
+			}
+			return all;
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package com.googlecode.jmxtrans.util;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import info.ganglia.gmetric4j.gmetric.GMetric.UDPAddressingMode;
+
+/**
+ * A UDP socket to a gmond, shared by every writer sending to the same host,
+ * port and addressing mode (and TTL, for multicast), instead of a socket per
+ * announced value.
+ *
+ * The senders live as long as the process, there is one per destination.
+ */
+public class GangliaSender {
+
+	private static final ConcurrentMap<String, GangliaSender> senders = new ConcurrentHashMap<String, GangliaSender>();
+
+	private final InetAddress address;
+	private final int port;
+	private final DatagramSocket socket;
+
+	/** */
+	private GangliaSender(String host, int port, UDPAddressingMode addressingMode, int ttl) throws IOException {
+		this.address = InetAddress.getByName(host);
+		this.port = port;
+		if (addressingMode == UDPAddressingMode.MULTICAST) {
+			MulticastSocket multicastSocket = new MulticastSocket();
+			multicastSocket.setTimeToLive(ttl);
+			this.socket = multicastSocket;
+		} else {
+			this.socket = new DatagramSocket();
+		}
+	}
+
+	/**
+	 * The sender for a destination, created on first use.
+	 */
+	public static GangliaSender get(String host, int port, UDPAddressingMode addressingMode, int ttl) throws IOException {
+		String key = host + ":" + port + ":" + addressingMode + ((addressingMode == UDPAddressingMode.MULTICAST) ? ":" + ttl : "");
+		GangliaSender sender = senders.get(key);
+		if (sender == null) {
+			GangliaSender created = new GangliaSender(host, port, addressingMode, ttl);
+			sender = senders.putIfAbsent(key, created);
+			if (sender == null) {
+				sender = created;
+			} else {
+				created.socket.close();
+			}
+		}
+		return sender;
+	}
+
+	/**
+	 * Sends length bytes of packet as one datagram.
+	 */
+	public void send(byte[] packet, int length) throws IOException {
+		this.socket.send(new DatagramPacket(packet, length, this.address, this.port));
+	}
+}
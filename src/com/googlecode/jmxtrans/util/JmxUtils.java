@@ -6,7 +6,11 @@ import java.lang.management.ManagementFactory;
 import java.lang.reflect.Array;
 import java.rmi.UnmarshalException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -18,15 +22,11 @@ import java.util.concurrent.TimeUnit;
 
 import javax.management.Attribute;
 import javax.management.AttributeList;
-import javax.management.MBeanAttributeInfo;
-import javax.management.MBeanInfo;
 import javax.management.MBeanServer;
 import javax.management.MBeanServerConnection;
-import javax.management.ObjectInstance;
 import javax.management.ObjectName;
 import javax.management.openmbean.CompositeData;
 import javax.management.openmbean.CompositeDataSupport;
-import javax.management.openmbean.CompositeType;
 import javax.management.openmbean.TabularDataSupport;
 import javax.management.remote.JMXConnector;
 import javax.management.remote.JMXConnectorFactory;
@@ -46,11 +46,18 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.googlecode.jmxtrans.OutputWriter;
+import com.googlecode.jmxtrans.ResultSink;
+import com.googlecode.jmxtrans.SnapshotWriter;
 import com.googlecode.jmxtrans.jmx.ManagedObject;
+import com.googlecode.jmxtrans.model.CollectionSnapshot;
 import com.googlecode.jmxtrans.model.JmxProcess;
+import com.googlecode.jmxtrans.model.MetricRef;
 import com.googlecode.jmxtrans.model.Query;
 import com.googlecode.jmxtrans.model.Result;
 import com.googlecode.jmxtrans.model.Server;
+import com.googlecode.jmxtrans.util.CompositeTypePlan.TabularTypePlan;
+import com.googlecode.jmxtrans.util.FetchPlan.Fetch;
+import com.googlecode.jmxtrans.util.MBeanMetadataCache.MBeanMetadata;
 
 /**
  * The worker code.
@@ -61,6 +68,12 @@ public class JmxUtils {
 
 	private static final Logger log = LoggerFactory.getLogger(JmxUtils.class);
 
+	/**
+	 * What the StringBuilder of a key string starts with, enough for most
+	 * without growing. The key cache has them built once per name.
+	 */
+	private static final int KEY_BUILDER_CAPACITY = 128;
+
 	/**
 	 * Merges two lists of servers (and their queries). Based on the equality of
 	 * both sets of objects. Public for testing purposes.
@@ -69,6 +82,8 @@ public class JmxUtils {
 		for (Server server : adding) {
 			if (existing.contains(server)) {
 				Server found = existing.get(existing.indexOf(server));
+				// Not part of what identifies a server, the last one wins.
+				found.setNumQueryThreads(server.getNumQueryThreads());
 
 				List<Query> queries = server.getQueries();
 				for (Query q : queries) {
@@ -91,22 +106,71 @@ public class JmxUtils {
 	/**
 	 * Either invokes the queries multithreaded (max threads ==
 	 * server.getMultiThreaded()) or invokes them one at a time.
+	 *
+	 * The queries are first grouped by the MBeans they match, so that an MBean
+	 * queried by several queries is only asked once for the union of their
+	 * attributes. The unit of work is then an MBean with its queries. Queries
+	 * with a fetchParallelism may have their MBeans fetched in parallel even if
+	 * the server isn't multithreaded.
 	 */
 	public static void processQueriesForServer(MBeanServerConnection mbeanServer, Server server) throws Exception {
+		FetchPlan plan = planFetches(mbeanServer, server.getQueries());
+		FetchPlan.Run run = plan.newRun(server, server.isQueriesMultiThreaded(), false);
 
-		if (server.isQueriesMultiThreaded()) {
-			ExecutorService service = null;
+		executeFetchPlan(mbeanServer, plan, run, server.getQueryThreadCount(), server.getQueryExecutor());
+	}
+
+	/**
+	 * Resolves the ObjectName of every query and groups the queries by the
+	 * MBeans they match, in the order the queries were configured. A query
+	 * that can't be resolved is logged and left out, the others still run; the
+	 * run then reports the first of these errors.
+	 */
+	public static FetchPlan planFetches(MBeanServerConnection mbeanServer, List<Query> queries) throws Exception {
+		Map<Query, Set<ObjectName>> resolved = new LinkedHashMap<Query, Set<ObjectName>>();
+		Exception firstError = null;
+		for (Query query : queries) {
 			try {
-				service = Executors.newFixedThreadPool(server.getNumQueryThreads());
-				if (log.isDebugEnabled()) {
-					log.debug("----- Creating " + server.getQueries().size() + " query threads");
+				resolved.put(query, queryNames(mbeanServer, query, query.getPlan().getObjectName()));
+			} catch (Exception e) {
+				log.error("Error resolving the MBeans of query: " + query + ", skipping it", e);
+				if (firstError == null) {
+					firstError = e;
 				}
+			}
+		}
+		return FetchPlan.plan(resolved, firstError);
+	}
+
+	/**
+	 * Runs the fetches of a plan, in the calling thread if only one thread is
+	 * needed. The given executor is used if there is one, otherwise threads
+	 * are created for this run only.
+	 *
+	 * @throws Exception
+	 *             the first error of the run, once every query that could be
+	 *             written has been, when running in the calling thread.
+	 */
+	private static void executeFetchPlan(MBeanServerConnection mbeanServer, FetchPlan plan, FetchPlan.Run run, int numThreads,
+			ExecutorService executor) throws Exception {
+		List<Fetch> fetches = plan.getFetches();
+
+		if (numThreads > 1 && fetches.size() > 1) {
+			List<Callable<Object>> threads = new ArrayList<Callable<Object>>(fetches.size());
+			for (Fetch fetch : fetches) {
+				threads.add(Executors.callable(new ProcessMBeanThread(mbeanServer, fetch, run)));
+			}
+
+			if (executor != null) {
+				executor.invokeAll(threads);
+				return;
+			}
 
-				List<Callable<Object>> threads = new ArrayList<Callable<Object>>(server.getQueries().size());
-				for (Query query : server.getQueries()) {
-					query.setServer(server);
-					ProcessQueryThread pqt = new ProcessQueryThread(mbeanServer, query);
-					threads.add(Executors.callable(pqt));
+			ExecutorService service = null;
+			try {
+				service = Executors.newFixedThreadPool(Math.min(numThreads, fetches.size()));
+				if (log.isDebugEnabled()) {
+					log.debug("----- Creating " + fetches.size() + " query threads");
 				}
 
 				service.invokeAll(threads);
@@ -115,9 +179,11 @@ public class JmxUtils {
 				shutdownAndAwaitTermination(service);
 			}
 		} else {
-			for (Query query : server.getQueries()) {
-				query.setServer(server);
-				processQuery(mbeanServer, query);
+			for (Fetch fetch : fetches) {
+				processMBean(mbeanServer, fetch, run);
+			}
+			if (run.getFirstError() != null) {
+				throw run.getFirstError();
 			}
 		}
 	}
@@ -167,89 +233,229 @@ public class JmxUtils {
 	}
 
 	/**
-	 * Responsible for processing individual Queries.
+	 * Executes the queries of a single MBean.
 	 */
-	public static void processQuery(MBeanServerConnection mbeanServer, Query query) throws Exception {
-
-		ObjectName oName = new ObjectName(query.getObj());
+	public static class ProcessMBeanThread implements Runnable {
+		private MBeanServerConnection mbeanServer;
+		private Fetch fetch;
+		private FetchPlan.Run run;
 
-		Set<ObjectName> queryNames = mbeanServer.queryNames(oName, null);
-		for (ObjectName queryName : queryNames) {
+		public ProcessMBeanThread(MBeanServerConnection mbeanServer, Fetch fetch, FetchPlan.Run run) {
+			this.mbeanServer = mbeanServer;
+			this.fetch = fetch;
+			this.run = run;
+		}
 
-			List<Result> resList = new ArrayList<Result>();
+		public void run() {
+			try {
+				this.run.acquire(this.fetch);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			}
+			try {
+				processMBean(this.mbeanServer, this.fetch, this.run);
+			} finally {
+				this.run.release(this.fetch);
+			}
+		}
+	}
 
-			MBeanInfo info = mbeanServer.getMBeanInfo(queryName);
-			ObjectInstance oi = mbeanServer.getObjectInstance(queryName);
+	/**
+	 * Responsible for processing individual Queries.
+	 *
+	 * @return the Results the writers of the query got, null if no MBean
+	 *         matched the query
+	 */
+	public static List<Result> processQuery(MBeanServerConnection mbeanServer, Query query) throws Exception {
+		FetchPlan plan = planFetches(mbeanServer, Collections.singletonList(query));
+		FetchPlan.Run run = plan.newRun(query.getServer(), false, true);
+		executeFetchPlan(mbeanServer, plan, run, 1, null);
+		return run.getResults(query);
+	}
 
-			List<String> queryAttributes = query.getAttr();
-			if ((queryAttributes == null) || (queryAttributes.size() == 0)) {
-				MBeanAttributeInfo[] attrs = info.getAttributes();
-				for (MBeanAttributeInfo attrInfo : attrs) {
-					query.addAttr(attrInfo.getName());
-				}
+	/**
+	 * Runs all the queries matching one MBean with a single getAttributes()
+	 * call asking for the union of their attributes, then hands each query
+	 * the attributes it asked for. Errors are logged and kept in the run, the
+	 * queries of an MBean that couldn't be fetched get nothing from it.
+	 */
+	public static void processMBean(MBeanServerConnection mbeanServer, Fetch fetch, FetchPlan.Run run) {
+		List<Query> queries = fetch.getQueries();
+		List<List<Attribute>> attributes = new ArrayList<List<Attribute>>(Collections.<List<Attribute>> nCopies(queries.size(), null));
+		MBeanMetadata metadata = null;
+		try {
+			metadata = getMBeanMetadata(mbeanServer, queries.get(0), fetch.getName());
+			fetchMBean(mbeanServer, fetch.getName(), metadata, queries, attributes);
+		} catch (Exception e) {
+			log.error("Error executing queries: " + queries + " on: " + fetch.getName(), e);
+			run.failed(e);
+		} finally {
+			for (int i = 0; i < queries.size(); i++) {
+				run.complete(fetch, i, metadata, attributes.get(i));
 			}
+		}
+	}
 
-			try {
-				if ((query.getAttr() != null) && (query.getAttr().size() > 0)) {
-					if (log.isDebugEnabled()) {
-						log.debug("Executing queryName: " + queryName.getCanonicalName() + " from query: " + query);
-					}
+	/**
+	 * Fetches one MBean for all of its queries, the attributes are split back
+	 * into one list per query.
+	 */
+	private static void fetchMBean(MBeanServerConnection mbeanServer, ObjectName queryName, MBeanMetadata metadata, List<Query> queries,
+			List<List<Attribute>> attributes) throws Exception {
 
-					AttributeList al = mbeanServer.getAttributes(queryName, query.getAttr().toArray(new String[query.getAttr().size()]));
-					for (Attribute attribute : al.asList()) {
-						getResult(resList, info, oi, attribute, query);
-					}
+		if (queries.size() == 1) {
+			attributes.set(0, fetchMBean(mbeanServer, queryName, metadata, queries.get(0)));
+			return;
+		}
 
-					query.setResults(resList);
+		Set<String> union = new LinkedHashSet<String>();
+		for (Query query : queries) {
+			union.addAll(Arrays.asList(query.getPlan().getAttributes(metadata)));
+		}
+		if (union.isEmpty()) {
+			return;
+		}
 
-					// Now run the OutputWriters.
-					runOutputWritersForQuery(query);
+		if (log.isDebugEnabled()) {
+			log.debug("Executing queryName: " + queryName.getCanonicalName() + " for " + queries.size() + " queries: " + queries);
+		}
 
-					if (log.isDebugEnabled()) {
-						log.debug("Finished running outputWriters for query: " + query);
-					}
+		AttributeList al;
+		try {
+			al = mbeanServer.getAttributes(queryName, union.toArray(new String[union.size()]));
+		} catch (UnmarshalException ue) {
+			// One of the attributes can't be read on this side, don't let it
+			// spoil the queries which didn't ask for it.
+			log.debug("Bad unmarshall for merged queries, running them one at a time: " + ue.getMessage());
+			for (int i = 0; i < queries.size(); i++) {
+				attributes.set(i, fetchMBean(mbeanServer, queryName, metadata, queries.get(i)));
+			}
+			return;
+		}
+
+		Map<String, Attribute> attributesByName = new HashMap<String, Attribute>();
+		for (Attribute attribute : al.asList()) {
+			attributesByName.put(attribute.getName(), attribute);
+		}
+
+		for (int i = 0; i < queries.size(); i++) {
+			Query query = queries.get(i);
+			List<Attribute> queryAttributes = new ArrayList<Attribute>();
+			for (String attributeName : query.getPlan().getAttributes(metadata)) {
+				Attribute attribute = attributesByName.get(attributeName);
+				if (attribute != null) {
+					queryAttributes.add(attribute);
 				}
-			} catch (UnmarshalException ue) {
-				if ((ue.getCause() != null) && (ue.getCause() instanceof ClassNotFoundException)) {
-					log.debug("Bad unmarshall, continuing. This is probably ok and due to something like this: "
-							+ "http://ehcache.org/xref/net/sf/ehcache/distribution/RMICacheManagerPeerListener.html#52", ue.getMessage());
+			}
+			attributes.set(i, queryAttributes);
+		}
+	}
+
+	/**
+	 * Fetches a single MBean for a single query.
+	 *
+	 * @return null if there is nothing to fetch or the attributes couldn't be
+	 *         unmarshalled
+	 */
+	private static List<Attribute> fetchMBean(MBeanServerConnection mbeanServer, ObjectName queryName, MBeanMetadata metadata, Query query)
+			throws Exception {
+		String[] attributes = query.getPlan().getAttributes(metadata);
+
+		try {
+			if (attributes.length > 0) {
+				if (log.isDebugEnabled()) {
+					log.debug("Executing queryName: " + queryName.getCanonicalName() + " from query: " + query);
 				}
+
+				return mbeanServer.getAttributes(queryName, attributes).asList();
 			}
+		} catch (UnmarshalException ue) {
+			if ((ue.getCause() != null) && (ue.getCause() instanceof ClassNotFoundException)) {
+				log.debug("Bad unmarshall, continuing. This is probably ok and due to something like this: "
+						+ "http://ehcache.org/xref/net/sf/ehcache/distribution/RMICacheManagerPeerListener.html#52", ue.getMessage());
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Resolves the ObjectName of a query through the Server's cache when there
+	 * is one, straight from the MBeanServer otherwise.
+	 */
+	private static Set<ObjectName> queryNames(MBeanServerConnection mbeanServer, Query query, ObjectName oName) throws Exception {
+		Server server = query.getServer();
+		if (server != null) {
+			return server.getMetadataCache().queryNames(mbeanServer, oName);
 		}
+		return mbeanServer.queryNames(oName, null);
+	}
 
+	/**
+	 * Gets the metadata of an MBean through the Server's cache when there is
+	 * one, straight from the MBeanServer otherwise.
+	 */
+	private static MBeanMetadata getMBeanMetadata(MBeanServerConnection mbeanServer, Query query, ObjectName queryName) throws Exception {
+		Server server = query.getServer();
+		if (server != null) {
+			return server.getMetadataCache().get(mbeanServer, queryName);
+		}
+		return MBeanMetadataCache.load(mbeanServer, queryName);
 	}
 
 	/**
-	 * Populates the Result objects. This is a recursive function. Query
-	 * contains the keys that we want to get the values of.
+	 * Flattens the attributes of an MBean into Results and/or streamed values.
 	 */
-	private static void getResult(List<Result> resList, MBeanInfo info, ObjectInstance oi, String attributeName, CompositeData cds, Query query) {
-		CompositeType t = cds.getCompositeType();
+	static void flatten(ResultEmitter emitter, List<Attribute> attributes) throws Exception {
+		for (Attribute attribute : attributes) {
+			getResult(emitter, attribute);
+		}
+	}
 
-		Result r = getNewResultObject(info, oi, attributeName, query);
+	/**
+	 * Populates the Result objects. Query contains the keys that we want to
+	 * get the values of.
+	 */
+	private static void getResult(ResultEmitter emitter, String attributeName, CompositeData cds) throws Exception {
+		getResult(emitter, attributeName, cds, CompositeTypePlan.forType(cds.getCompositeType()));
+	}
 
-		Set<String> keys = t.keySet();
-		for (String key : keys) {
-			Object value = cds.get(key);
-			if (value instanceof TabularDataSupport) {
-				TabularDataSupport tds = (TabularDataSupport) value;
-				processTabularDataSupport(resList, info, oi, r, attributeName + "." + key, tds, query);
-				r.addValue(key, value);
-			} else if (value instanceof CompositeDataSupport) {
-				// now recursively go through everything.
-				CompositeDataSupport cds2 = (CompositeDataSupport) value;
-				getResult(resList, info, oi, attributeName, cds2, query);
-				return; // because we don't want to add to the list yet.
-			} else {
-				r.addValue(key, value);
+	/**
+	 * Flattens a CompositeData, following the plan of its type. TabularData
+	 * items get a Result per row, which come before the Result of the
+	 * CompositeData itself. If an item holds a nested CompositeData, only that
+	 * one makes it into a Result.
+	 */
+	private static void getResult(ResultEmitter emitter, String attributeName, CompositeData cds, CompositeTypePlan plan) throws Exception {
+		nested: while (true) {
+			CompositeTypePlan.Item[] items = plan.getItems();
+			Object[] values = cds.getAll(plan.getKeys());
+
+			for (int i = 0; i < items.length; i++) {
+				CompositeTypePlan.Item item = items[i];
+				Object value = values[i];
+				if (item.isTabular() && (value instanceof TabularDataSupport)) {
+					processTabularDataSupport(emitter, item.getName(attributeName), (TabularDataSupport) value, item.getTabularPlan());
+				} else if (item.isComposite() && (value instanceof CompositeDataSupport)) {
+					// now go through the nested one instead.
+					cds = (CompositeDataSupport) value;
+					plan = item.getCompositePlan(cds.getCompositeType());
+					continue nested;
+				}
+			}
+
+			emitter.begin(attributeName);
+			for (int i = 0; i < items.length; i++) {
+				emitter.value(items[i].getKey(), values[i]);
 			}
+			emitter.end();
+			return;
 		}
-		resList.add(r);
 	}
 
 	/** */
-	private static void processTabularDataSupport(List<Result> resList, MBeanInfo info, ObjectInstance oi, Result r, String attributeName,
-			TabularDataSupport tds, Query query) {
+	private static void processTabularDataSupport(ResultEmitter emitter, String attributeName, TabularDataSupport tds, TabularTypePlan plan)
+			throws Exception {
 		Set<Entry<Object, Object>> entries = tds.entrySet();
 		for (Entry<Object, Object> entry : entries) {
 			Object entryKeys = entry.getKey();
@@ -257,15 +463,11 @@ public class JmxUtils {
 				// ie: attributeName=LastGcInfo.Par Survivor Space
 				// i haven't seen this be smaller or larger than List<1>, but
 				// might as well loop it.
-				StringBuilder sb = new StringBuilder();
-				for (Object entryKey : (List<?>) entryKeys) {
-					sb.append(".");
-					sb.append(entryKey);
-				}
-				String attributeName2 = sb.toString();
+				String attributeName2 = plan.getRowName(attributeName, (List<?>) entryKeys);
 				Object entryValue = entry.getValue();
 				if (entryValue instanceof CompositeDataSupport) {
-					getResult(resList, info, oi, attributeName + attributeName2, (CompositeDataSupport) entryValue, query);
+					CompositeDataSupport row = (CompositeDataSupport) entryValue;
+					getResult(emitter, attributeName2, row, plan.getRowPlan(row.getCompositeType()));
 				} else {
 					throw new RuntimeException("!!!!!!!!!! Please file a bug: https://github.com/jmxtrans/jmxtrans/issues entryValue is: "
 							+ entryValue.getClass().getCanonicalName());
@@ -277,63 +479,63 @@ public class JmxUtils {
 		}
 	}
 
-	/**
-	 * Builds up the base Result object
-	 */
-	private static Result getNewResultObject(MBeanInfo info, ObjectInstance oi, String attributeName, Query query) {
-		Result r = new Result(attributeName);
-		r.setQuery(query);
-		r.setClassName(info.getClassName());
-		r.setTypeName(oi.getObjectName().getCanonicalKeyPropertyListString());
-		return r;
-	}
-
 	/**
 	 * Used when the object is effectively a java type
 	 */
-	private static void getResult(List<Result> resList, MBeanInfo info, ObjectInstance oi, Attribute attribute, Query query) {
+	private static void getResult(ResultEmitter emitter, Attribute attribute) throws Exception {
 		Object value = attribute.getValue();
 		if (value != null) {
 			if (value instanceof CompositeData) {
-				getResult(resList, info, oi, attribute.getName(), (CompositeData) value, query);
+				getResult(emitter, attribute.getName(), (CompositeData) value);
 			} else if (value instanceof CompositeData[]) {
 				for (CompositeData cd : (CompositeData[]) value) {
-					getResult(resList, info, oi, attribute.getName(), cd, query);
+					getResult(emitter, attribute.getName(), cd);
 				}
 			} else if (value instanceof ObjectName[]) {
-				Result r = getNewResultObject(info, oi, attribute.getName(), query);
+				emitter.begin(attribute.getName());
 				for (ObjectName obj : (ObjectName[]) value) {
-					r.addValue(obj.getCanonicalName(), obj.getKeyPropertyListString());
+					emitter.value(obj.getCanonicalName(), obj.getKeyPropertyListString());
 				}
-				resList.add(r);
+				emitter.end();
 			} else if (value.getClass().isArray()) {
 				// OMFG: this is nutty. some of the items in the array can be
 				// primitive! great interview question!
-				Result r = getNewResultObject(info, oi, attribute.getName(), query);
+				emitter.begin(attribute.getName());
 				for (int i = 0; i < Array.getLength(value); i++) {
 					Object val = Array.get(value, i);
-					r.addValue(attribute.getName() + "." + i, val);
+					emitter.value(attribute.getName() + "." + i, val);
 				}
-				resList.add(r);
+				emitter.end();
 			} else if (value instanceof TabularDataSupport) {
 				TabularDataSupport tds = (TabularDataSupport) value;
-				Result r = getNewResultObject(info, oi, attribute.getName(), query);
-				processTabularDataSupport(resList, info, oi, r, attribute.getName(), tds, query);
-				resList.add(r);
+				processTabularDataSupport(emitter, attribute.getName(), tds, TabularTypePlan.forType(tds.getTabularType()));
+				emitter.begin(attribute.getName());
+				emitter.end();
 			} else {
-				Result r = getNewResultObject(info, oi, attribute.getName(), query);
-				r.addValue(attribute.getName(), value);
-				resList.add(r);
+				emitter.begin(attribute.getName());
+				emitter.value(attribute.getName(), value);
+				emitter.end();
 			}
 		}
 	}
 
-	/** */
-	private static void runOutputWritersForQuery(Query query) throws Exception {
-		List<OutputWriter> writers = query.getOutputWriters();
+	/**
+	 * Runs the writers taking the Results of the query as a list, the
+	 * ResultSinks got them already. SnapshotWriters get the snapshot, the
+	 * others a read-only copy of the query holding the Results.
+	 */
+	static void runOutputWriters(CollectionSnapshot snapshot) throws Exception {
+		List<OutputWriter> writers = snapshot.getQuery().getOutputWriters();
 		if (writers != null) {
 			for (OutputWriter writer : writers) {
-				writer.doWrite(query);
+				if (writer instanceof ResultSink) {
+					continue;
+				}
+				if (writer instanceof SnapshotWriter) {
+					((SnapshotWriter) writer).doWrite(snapshot);
+				} else {
+					writer.doWrite(snapshot.toQuery());
+				}
 			}
 		}
 	}
@@ -467,6 +669,8 @@ public class JmxUtils {
 		else
 			mbeanServer = conn.getMBeanServerConnection();
 
+		server.getMetadataCache().bind(conn, mbeanServer);
+
 		JmxUtils.processQueriesForServer(mbeanServer, server);
 	}
 
@@ -637,75 +841,122 @@ public class JmxUtils {
 	 * @return the key string
 	 */
 	public static String getKeyString(Query query, Result result, Entry<String, Object> values, List<String> typeNames, String rootPrefix) {
-		String keyStr = null;
-		if (values.getKey().startsWith(result.getAttributeName())) {
-			keyStr = values.getKey();
-		} else {
-			keyStr = result.getAttributeName() + "." + values.getKey();
-		}
+		return getKeyString(query, result, values, typeNames, rootPrefix, MetricNameSanitizer.DEFAULT);
+	}
 
-		String alias = null;
-		if (query.getServer().getAlias() != null) {
-			alias = query.getServer().getAlias();
-		} else {
-			alias = query.getServer().getHost() + "_" + query.getServer().getPort();
-			alias = cleanupStr(alias);
-		}
+	/**
+	 * Gets the key string, cleaned up with the rules of a writer.
+	 *
+	 * @see BaseOutputWriter#getSanitizer()
+	 */
+	public static String getKeyString(Query query, Result result, Entry<String, Object> values, List<String> typeNames, String rootPrefix,
+			MetricNameSanitizer sanitizer) {
+		return getKeyString(query, result.getAttributeName(), values.getKey(), result.getClassName(), result.getClassNameAlias(),
+				result.getTypeName(), typeNames, rootPrefix, sanitizer);
+	}
 
-		StringBuilder sb = new StringBuilder();
+	/**
+	 * Gets the key string of a streamed value, the same one
+	 * {@link #getKeyString(Query, Result, Entry, List, String)} gives for the
+	 * value in a Result.
+	 *
+	 * @param metric
+	 *            what the value is
+	 * @param typeNames
+	 *            the type names
+	 * @param rootPrefix
+	 *            the root prefix
+	 * @return the key string
+	 */
+	public static String getKeyString(MetricRef metric, List<String> typeNames, String rootPrefix) {
+		return getKeyString(metric, typeNames, rootPrefix, MetricNameSanitizer.DEFAULT);
+	}
+
+	/**
+	 * Gets the key string of a streamed value, cleaned up with the rules of a
+	 * writer.
+	 */
+	public static String getKeyString(MetricRef metric, List<String> typeNames, String rootPrefix, MetricNameSanitizer sanitizer) {
+		return getKeyString(metric.getQuery(), metric.getAttributeName(), metric.getKey(), metric.getClassName(),
+				metric.getClassNameAlias(), metric.getTypeName(), typeNames, rootPrefix, sanitizer);
+	}
+
+	/** */
+	static String getKeyString(Query query, String attributeName, String key, String className, String classNameAlias,
+			String resultTypeName, List<String> typeNames, String rootPrefix, MetricNameSanitizer sanitizer) {
+		StringBuilder sb = new StringBuilder(KEY_BUILDER_CAPACITY);
 		if (rootPrefix != null) {
-			sb.append(rootPrefix);
-			sb.append(".");
+			sanitizer.appendVerbatim(sb, rootPrefix);
+			sb.append('.');
 		}
-		sb.append(alias);
-		sb.append(".");
 
-		// Allow people to use something other than the classname as the output.
-		if (result.getClassNameAlias() != null) {
-			sb.append(result.getClassNameAlias());
+		Server server = query.getServer();
+		if (server.getAlias() != null) {
+			sanitizer.appendVerbatim(sb, server.getAlias());
 		} else {
-			sb.append(cleanupStr(result.getClassName()));
-		}
-
-		sb.append(".");
-
-		String typeName = cleanupStr(getConcatedTypeNameValues(query, typeNames, result.getTypeName()));
-		if (typeName != null && typeName.length() > 0) {
-			sb.append(typeName);
-			sb.append(".");
+			sanitizer.appendComponent(sb, server.getHost());
+			sb.append('_');
+			sanitizer.appendComponent(sb, server.getPort());
 		}
-		sb.append(cleanupStr(keyStr));
+		sb.append('.');
 
+		appendClassTypeAndKey(sb, query, attributeName, key, className, classNameAlias, resultTypeName, typeNames, sanitizer);
 		return sb.toString();
 	}
 
 	public static String getKeyString2(Query query, Result result, Entry<String, Object> values, List<String> typeNames, String rootPrefix) {
-		String keyStr = null;
-		if (values.getKey().startsWith(result.getAttributeName())) {
-			keyStr = values.getKey();
-		} else {
-			keyStr = result.getAttributeName() + "." + values.getKey();
-		}
+		return getKeyString2(query, result, values, typeNames, rootPrefix, MetricNameSanitizer.DEFAULT);
+	}
 
-		StringBuilder sb = new StringBuilder();
+	/**
+	 * Like {@link #getKeyString(Query, Result, Entry, List, String, MetricNameSanitizer)}
+	 * without the root prefix and the server.
+	 */
+	public static String getKeyString2(Query query, Result result, Entry<String, Object> values, List<String> typeNames, String rootPrefix,
+			MetricNameSanitizer sanitizer) {
+		return getKeyString2(query, result.getAttributeName(), values.getKey(), result.getClassName(), result.getClassNameAlias(),
+				result.getTypeName(), typeNames, sanitizer);
+	}
+
+	/** */
+	static String getKeyString2(Query query, String attributeName, String key, String className, String classNameAlias,
+			String resultTypeName, List<String> typeNames, MetricNameSanitizer sanitizer) {
+		StringBuilder sb = new StringBuilder(KEY_BUILDER_CAPACITY);
+		appendClassTypeAndKey(sb, query, attributeName, key, className, classNameAlias, resultTypeName, typeNames, sanitizer);
+		return sb.toString();
+	}
 
+	/**
+	 * The end of the key strings: class (or alias), typeName values and
+	 * attribute key.
+	 */
+	private static void appendClassTypeAndKey(StringBuilder sb, Query query, String attributeName, String key, String className,
+			String classNameAlias, String resultTypeName, List<String> typeNames, MetricNameSanitizer sanitizer) {
 		// Allow people to use something other than the classname as the output.
-		if (result.getClassNameAlias() != null) {
-			sb.append(result.getClassNameAlias());
+		if (classNameAlias != null) {
+			sanitizer.appendVerbatim(sb, classNameAlias);
 		} else {
-			sb.append(cleanupStr(result.getClassName()));
+			sanitizer.appendComponent(sb, String.valueOf(className));
 		}
+		sb.append('.');
 
-		sb.append(".");
-
-		String typeName = cleanupStr(getConcatedTypeNameValues(query, typeNames, result.getTypeName()));
+		String typeName = getConcatedTypeNameValues(query, typeNames, resultTypeName);
 		if (typeName != null && typeName.length() > 0) {
-			sb.append(typeName);
-			sb.append(".");
+			int before = sb.length();
+			sanitizer.appendComponent(sb, typeName);
+			if (sb.length() > before) {
+				sb.append('.');
+			}
 		}
-		sb.append(cleanupStr(keyStr));
 
-		return sb.toString();
+		if (key.startsWith(attributeName)) {
+			sanitizer.appendComponent(sb, key);
+		} else {
+			sanitizer.appendComponent(sb, attributeName);
+			// The . between them is cleaned up like the rest.
+			sanitizer.appendComponent(sb, ".");
+			sanitizer.appendComponent(sb, key);
+		}
 	}
 
 	/**
@@ -716,15 +967,7 @@ public class JmxUtils {
 	 * @return the string
 	 */
 	public static String cleanupStr(String name) {
-		if (name == null) {
-			return null;
-		}
-		String clean = name.replace(".", "_");
-		clean = clean.replace(" ", "");
-		clean = clean.replace("\"", "");
-		clean = clean.replace("'", "");
-		clean = clean.replace("/", "_");
-		return clean;
+		return MetricNameSanitizer.DEFAULT.sanitize(name);
 	}
 
 	/**
@@ -808,18 +1051,7 @@ public class JmxUtils {
 	 * @return the concated type name values
 	 */
 	public static String getConcatedTypeNameValues(Query query, List<String> typeNames, String typeName) {
-		Set<String> queryTypeNames = query.getTypeNames();
-		if (queryTypeNames != null && queryTypeNames.size() > 0) {
-			List<String> allNames = new ArrayList<String>(queryTypeNames);
-			for (String name : typeNames) {
-				if (!allNames.contains(name)) {
-					allNames.add(name);
-				}
-			}
-			return getConcatedTypeNameValues(allNames, typeName);
-		} else {
-			return getConcatedTypeNameValues(typeNames, typeName);
-		}
+		return query.getPlan().getConcatedTypeNameValues(typeNames, typeName);
 	}
 
 	/**
@@ -0,0 +1,149 @@
+package com.googlecode.jmxtrans.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * A growable byte buffer for line based protocols, encoding what is appended
+ * to it as UTF-8 so that a batch of lines can be written to a stream in one
+ * call. The buffer is meant to be reset and reused, it is not thread safe.
+ */
+public class LineBuffer {
+
+	private byte[] bytes;
+	private int size = 0;
+	private int lines = 0;
+
+	/** */
+	public LineBuffer(int initialCapacity) {
+		this.bytes = new byte[Math.max(initialCapacity, 16)];
+	}
+
+	/**
+	 * Appends the characters, encoded as UTF-8.
+	 */
+	public LineBuffer append(CharSequence chars) {
+		int length = chars.length();
+		this.ensureCapacity(length);
+		for (int i = 0; i < length; i++) {
+			char c = chars.charAt(i);
+			if (c < 0x80) {
+				this.bytes[this.size++] = (byte) c;
+			} else {
+				this.appendNonAscii(chars, i, c);
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Appends bytes that are already encoded.
+	 */
+	public LineBuffer append(byte[] utf8) {
+		this.ensureCapacity(utf8.length);
+		System.arraycopy(utf8, 0, this.bytes, this.size, utf8.length);
+		this.size += utf8.length;
+		return this;
+	}
+
+	/** */
+	public LineBuffer append(char c) {
+		if (c < 0x80) {
+			this.ensureCapacity(1);
+			this.bytes[this.size++] = (byte) c;
+			return this;
+		}
+		return this.append(String.valueOf(c));
+	}
+
+	/** */
+	public LineBuffer append(long value) {
+		return this.append(Long.toString(value));
+	}
+
+	/**
+	 * Ends the current line with a '\n'.
+	 */
+	public LineBuffer endLine() {
+		this.append('\n');
+		this.lines++;
+		return this;
+	}
+
+	/**
+	 * The number of bytes in the buffer.
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * The number of lines ended since the last reset.
+	 */
+	public int lines() {
+		return this.lines;
+	}
+
+	/**
+	 * Drops everything, keeping the memory for the next batch.
+	 */
+	public void reset() {
+		this.size = 0;
+		this.lines = 0;
+	}
+
+	/**
+	 * Writes the content of the buffer in a single call.
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		if (this.size > 0) {
+			out.write(this.bytes, 0, this.size);
+		}
+	}
+
+	/** */
+	@Override
+	public String toString() {
+		try {
+			return new String(this.bytes, 0, this.size, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/** Encodes one char at index, surrogate pairs are taken care of on the high half. */
+	private void appendNonAscii(CharSequence chars, int index, char c) {
+		this.ensureCapacity(4);
+		if (c < 0x800) {
+			this.bytes[this.size++] = (byte) (0xc0 | (c >> 6));
+			this.bytes[this.size++] = (byte) (0x80 | (c & 0x3f));
+		} else if (Character.isHighSurrogate(c) && (index + 1 < chars.length()) && Character.isLowSurrogate(chars.charAt(index + 1))) {
+			int codePoint = Character.toCodePoint(c, chars.charAt(index + 1));
+			this.bytes[this.size++] = (byte) (0xf0 | (codePoint >> 18));
+			this.bytes[this.size++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+			this.bytes[this.size++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+			this.bytes[this.size++] = (byte) (0x80 | (codePoint & 0x3f));
+		} else if ((c >= Character.MIN_SURROGATE) && (c <= Character.MAX_SURROGATE)) {
+			// The low half of a pair we already wrote, or a lone surrogate.
+			if (Character.isLowSurrogate(c) && (index > 0) && Character.isHighSurrogate(chars.charAt(index - 1))) {
+				return;
+			}
+			this.bytes[this.size++] = (byte) '?';
+		} else {
+			this.bytes[this.size++] = (byte) (0xe0 | (c >> 12));
+			this.bytes[this.size++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+			this.bytes[this.size++] = (byte) (0x80 | (c & 0x3f));
+		}
+	}
+
+	/** */
+	private void ensureCapacity(int more) {
+		int needed = this.size + more;
+		if (needed > this.bytes.length) {
+			byte[] grown = new byte[Math.max(needed, this.bytes.length * 2)];
+			System.arraycopy(this.bytes, 0, grown, 0, this.size);
+			this.bytes = grown;
+		}
+	}
+}
@@ -0,0 +1,361 @@
+package com.googlecode.jmxtrans.util;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.relation.MBeanServerNotificationFilter;
+import javax.management.remote.JMXConnectionNotification;
+import javax.management.remote.JMXConnector;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Caches the metadata of remote MBeans (class name, canonical key property
+ * list and attribute names) and the ObjectNames matched by query patterns, so
+ * that a steady-state run only needs the getAttributes() round trip.
+ *
+ * There is one cache per Server. It subscribes to the MBeanServerDelegate of
+ * the connection it is bound to, drops metadata as MBeans go away and keeps
+ * the pattern resolutions up to date as MBeans come and go. Resolutions are
+ * also reloaded every refreshInterval, in case a notification got lost
+ * without us being told. If the subscription can't be made, nothing is cached
+ * and every lookup goes to the MBeanServer, like it used to.
+ */
+public class MBeanMetadataCache implements NotificationListener {
+
+	private static final Logger log = LoggerFactory.getLogger(MBeanMetadataCache.class);
+
+	/** Five minutes. */
+	public static final long DEFAULT_REFRESH_INTERVAL = 1000 * 60 * 5;
+
+	private final ConcurrentMap<ObjectName, MBeanMetadata> entries = new ConcurrentHashMap<ObjectName, MBeanMetadata>();
+	private final ConcurrentMap<ObjectName, Resolution> resolutions = new ConcurrentHashMap<ObjectName, Resolution>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong resolutionHits = new AtomicLong();
+	private final AtomicLong resolutionMisses = new AtomicLong();
+
+	/**
+	 * Bumped on every notification, so that a lookup racing with one doesn't
+	 * store what it loaded.
+	 */
+	private final AtomicLong generation = new AtomicLong();
+
+	private volatile long refreshInterval = DEFAULT_REFRESH_INTERVAL;
+
+	/** The JMXConnector (or local MBeanServer) we are subscribed to. */
+	private Object boundTo;
+	private JMXConnector boundConnector;
+	private MBeanServerConnection boundConnection;
+	private volatile boolean subscribed = false;
+
+	/**
+	 * Makes sure the cache listens to the MBeanServerDelegate of the given
+	 * connection. If the connection changed since the last call (the pool
+	 * handed us a new one), everything we know is thrown away since we may
+	 * have missed notifications in the meantime.
+	 *
+	 * @param connector
+	 *            the connector, null for the local MBeanServer
+	 * @param connection
+	 *            the connection to query
+	 */
+	public synchronized void bind(JMXConnector connector, MBeanServerConnection connection) {
+		Object source = (connector != null) ? connector : connection;
+		if (source == this.boundTo) {
+			return;
+		}
+
+		this.unbind();
+
+		this.boundTo = source;
+		this.boundConnector = connector;
+		this.boundConnection = connection;
+		try {
+			MBeanServerNotificationFilter filter = new MBeanServerNotificationFilter();
+			filter.enableAllObjectNames();
+			connection.addNotificationListener(MBeanServerDelegate.DELEGATE_NAME, this, filter, null);
+			if (connector != null) {
+				connector.addConnectionNotificationListener(this, null, null);
+			}
+			this.subscribed = true;
+		} catch (Exception ex) {
+			log.warn("Unable to subscribe to MBeanServerDelegate notifications, MBean metadata will not be cached: " + ex.getMessage());
+			this.subscribed = false;
+		}
+	}
+
+	/**
+	 * Removes our listeners from the currently bound connection, if any.
+	 */
+	public synchronized void unbind() {
+		if (this.subscribed) {
+			try {
+				this.boundConnection.removeNotificationListener(MBeanServerDelegate.DELEGATE_NAME, this);
+			} catch (Exception ex) {
+				// The connection is most likely gone already.
+				log.debug("Error removing MBeanServerDelegate listener: " + ex.getMessage());
+			}
+			if (this.boundConnector != null) {
+				try {
+					this.boundConnector.removeConnectionNotificationListener(this);
+				} catch (Exception ex) {
+					log.debug("Error removing connection listener: " + ex.getMessage());
+				}
+			}
+		}
+		this.subscribed = false;
+		this.boundTo = null;
+		this.boundConnector = null;
+		this.boundConnection = null;
+		this.clear();
+	}
+
+	/**
+	 * Returns the ObjectNames matching a pattern (or the name itself if it
+	 * isn't a pattern and is registered), going to the MBeanServer only if we
+	 * haven't resolved it yet or the resolution is older than the refresh
+	 * interval.
+	 *
+	 * The returned Set is kept up to date by the notifications, don't modify
+	 * it.
+	 */
+	public Set<ObjectName> queryNames(MBeanServerConnection connection, ObjectName pattern) throws Exception {
+		Resolution resolution = this.resolutions.get(pattern);
+		if ((resolution != null) && !resolution.isOlderThan(this.refreshInterval)) {
+			this.resolutionHits.incrementAndGet();
+			return resolution.names;
+		}
+
+		this.resolutionMisses.incrementAndGet();
+		long gen = this.generation.get();
+		Set<ObjectName> names = connection.queryNames(pattern, null);
+		if (!this.subscribed) {
+			return names;
+		}
+
+		resolution = new Resolution(names);
+		this.resolutions.put(pattern, resolution);
+		if (gen != this.generation.get()) {
+			// Something was (un)registered while we were asking, maybe after
+			// the put too: the notifications bump the generation first. The
+			// next run will have to ask again.
+			this.resolutions.remove(pattern, resolution);
+		}
+		return resolution.names;
+	}
+
+	/**
+	 * Returns the metadata of an MBean, going to the MBeanServer only if we
+	 * don't know about it yet.
+	 */
+	public MBeanMetadata get(MBeanServerConnection connection, ObjectName name) throws Exception {
+		MBeanMetadata metadata = this.entries.get(name);
+		if (metadata != null) {
+			this.hits.incrementAndGet();
+			return metadata;
+		}
+
+		this.misses.incrementAndGet();
+		long gen = this.generation.get();
+		metadata = load(connection, name);
+		if (this.subscribed) {
+			this.entries.put(name, metadata);
+			// Checked once cached, see queryNames.
+			if (gen != this.generation.get()) {
+				this.entries.remove(name, metadata);
+			}
+		}
+		return metadata;
+	}
+
+	/**
+	 * Fetches the metadata of a single MBean, without any caching.
+	 */
+	public static MBeanMetadata load(MBeanServerConnection connection, ObjectName name) throws Exception {
+		MBeanInfo info = connection.getMBeanInfo(name);
+		return new MBeanMetadata(info, name);
+	}
+
+	/**
+	 * Removes a single MBean from the cache.
+	 */
+	public void invalidate(ObjectName name) {
+		this.entries.remove(name);
+	}
+
+	/**
+	 * Removes everything from the cache.
+	 */
+	public void clear() {
+		this.generation.incrementAndGet();
+		this.entries.clear();
+		this.resolutions.clear();
+	}
+
+	/**
+	 * Handles the MBeanServerDelegate and JMXConnector notifications.
+	 */
+	@Override
+	public void handleNotification(Notification notification, Object handback) {
+		if (notification instanceof MBeanServerNotification) {
+			this.generation.incrementAndGet();
+
+			// Registration invalidates the metadata as well, in case the same
+			// name came back with a different class before we saw the
+			// unregistration.
+			ObjectName name = ((MBeanServerNotification) notification).getMBeanName();
+			this.entries.remove(name);
+
+			boolean registered = MBeanServerNotification.REGISTRATION_NOTIFICATION.equals(notification.getType());
+			for (Entry<ObjectName, Resolution> entry : this.resolutions.entrySet()) {
+				if (registered) {
+					if (entry.getKey().apply(name)) {
+						entry.getValue().names.add(name);
+					}
+				} else {
+					entry.getValue().names.remove(name);
+				}
+			}
+			if (log.isDebugEnabled()) {
+				log.debug("Updated MBean cache for " + name + " (" + notification.getType() + ")");
+			}
+		} else if (notification instanceof JMXConnectionNotification) {
+			String type = notification.getType();
+			if (JMXConnectionNotification.NOTIFS_LOST.equals(type) || JMXConnectionNotification.FAILED.equals(type)
+					|| JMXConnectionNotification.CLOSED.equals(type)) {
+				log.debug("Clearing MBean metadata cache, connection notification: " + type);
+				this.clear();
+			}
+		}
+	}
+
+	/** */
+	public boolean isSubscribed() {
+		return this.subscribed;
+	}
+
+	/** */
+	public long getHits() {
+		return this.hits.get();
+	}
+
+	/** */
+	public long getMisses() {
+		return this.misses.get();
+	}
+
+	/** */
+	public int getSize() {
+		return this.entries.size();
+	}
+
+	/** */
+	public long getResolutionHits() {
+		return this.resolutionHits.get();
+	}
+
+	/** */
+	public long getResolutionMisses() {
+		return this.resolutionMisses.get();
+	}
+
+	/** */
+	public int getResolutionSize() {
+		return this.resolutions.size();
+	}
+
+	/**
+	 * How long, in milliseconds, a pattern resolution is trusted before it is
+	 * loaded again from the MBeanServer.
+	 */
+	public long getRefreshInterval() {
+		return this.refreshInterval;
+	}
+
+	/**
+	 * How long, in milliseconds, a pattern resolution is trusted before it is
+	 * loaded again from the MBeanServer.
+	 */
+	public void setRefreshInterval(long refreshInterval) {
+		this.refreshInterval = refreshInterval;
+	}
+
+	/**
+	 * The names matched by a pattern, and when we asked.
+	 */
+	private static class Resolution {
+		private final Set<ObjectName> names = Collections.newSetFromMap(new ConcurrentHashMap<ObjectName, Boolean>());
+		private final long loadedAt = System.currentTimeMillis();
+
+		private Resolution(Set<ObjectName> names) {
+			this.names.addAll(names);
+		}
+
+		private boolean isOlderThan(long interval) {
+			return (System.currentTimeMillis() - this.loadedAt) > interval;
+		}
+	}
+
+	/**
+	 * The part of an MBean's metadata that the query engine uses.
+	 */
+	public static class MBeanMetadata {
+		private final String className;
+		private final String typeName;
+		private final String[] attributeNameArray;
+		private final List<String> attributeNames;
+
+		public MBeanMetadata(MBeanInfo info, ObjectName name) {
+			this.className = info.getClassName();
+			this.typeName = name.getCanonicalKeyPropertyListString();
+
+			MBeanAttributeInfo[] attrs = info.getAttributes();
+			String[] names = new String[attrs.length];
+			for (int i = 0; i < attrs.length; i++) {
+				names[i] = attrs[i].getName();
+			}
+			this.attributeNameArray = names;
+			this.attributeNames = Collections.unmodifiableList(Arrays.asList(names));
+		}
+
+		/** The class name as reported by the MBeanInfo. */
+		public String getClassName() {
+			return className;
+		}
+
+		/** The canonical key property list of the ObjectName. */
+		public String getTypeName() {
+			return typeName;
+		}
+
+		/** The names of all the attributes the MBean exposes. */
+		public List<String> getAttributeNames() {
+			return attributeNames;
+		}
+
+		/**
+		 * The names of all the attributes the MBean exposes, ready for
+		 * getAttributes(). Don't modify the returned array.
+		 */
+		public String[] getAttributeNameArray() {
+			return attributeNameArray;
+		}
+	}
+}
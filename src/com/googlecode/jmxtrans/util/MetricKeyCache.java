@@ -0,0 +1,207 @@
+package com.googlecode.jmxtrans.util;
+
+import java.io.UnsupportedEncodingException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.googlecode.jmxtrans.model.Query;
+import com.googlecode.jmxtrans.model.QueryPlan;
+import com.googlecode.jmxtrans.model.Server;
+
+/**
+ * Remembers the key strings of a writer, which are the same from one run to
+ * the next for a given server, query, MBean, attribute and value key.
+ *
+ * A datapoint is identified by the QueryPlan of its query (the same for the
+ * per-run copies of the query writers are handed, a new one when the
+ * configuration changes), its server, class name, typeName, attribute name
+ * and value key, plus the typeNames, root prefix and sanitizer the writer
+ * builds the name with. The least recently used names are dropped once there
+ * are more than maxSize of them, so MBeans coming and going under a pattern
+ * can't fill the heap.
+ *
+ * Hits don't lock anything, see {@link BoundedCache}. A lookup allocates its
+ * key, a few references short lived enough to die young, which a miss then
+ * keeps; one per thread would be no cheaper with a thread per query.
+ */
+public class MetricKeyCache {
+
+	public static final int DEFAULT_MAX_SIZE = 10000;
+
+	private final BoundedCache<Key, MetricName> names;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/** */
+	public MetricKeyCache(int maxSize) {
+		this.names = new BoundedCache<Key, MetricName>(maxSize);
+	}
+
+	/**
+	 * The name {@link JmxUtils#getKeyString(Query, com.googlecode.jmxtrans.model.Result, java.util.Map.Entry, List, String, MetricNameSanitizer)}
+	 * gives, or {@link JmxUtils#getKeyString2(Query, com.googlecode.jmxtrans.model.Result, java.util.Map.Entry, List, String, MetricNameSanitizer)}
+	 * if withServer is false.
+	 */
+	public MetricName get(Query query, String className, String typeName, String attributeName, String valueKey, List<String> typeNames,
+			String rootPrefix, MetricNameSanitizer sanitizer, boolean withServer) {
+		Key key = new Key(query.getPlan(), query.getServer(), className, typeName, attributeName, valueKey, typeNames, rootPrefix, sanitizer,
+				withServer);
+
+		MetricName name = this.names.get(key);
+		if (name != null) {
+			this.hits.incrementAndGet();
+			return name;
+		}
+
+		this.misses.incrementAndGet();
+		name = build(query, className, typeName, attributeName, valueKey, typeNames, rootPrefix, sanitizer, withServer);
+		return this.names.putIfAbsent(key, name);
+	}
+
+	/**
+	 * Builds a name without caching it.
+	 */
+	public static MetricName build(Query query, String className, String typeName, String attributeName, String valueKey,
+			List<String> typeNames, String rootPrefix, MetricNameSanitizer sanitizer, boolean withServer) {
+		String built;
+		if (withServer) {
+			built = JmxUtils.getKeyString(query, attributeName, valueKey, className, query.getResultAlias(), typeName, typeNames, rootPrefix,
+					sanitizer);
+		} else {
+			built = JmxUtils.getKeyString2(query, attributeName, valueKey, className, query.getResultAlias(), typeName, typeNames, sanitizer);
+		}
+		return new MetricName(built);
+	}
+
+	/** */
+	public void clear() {
+		this.names.clear();
+	}
+
+	/** */
+	public int getMaxSize() {
+		return this.names.getMaxSize();
+	}
+
+	/** */
+	public int getSize() {
+		return this.names.size();
+	}
+
+	/** */
+	public long getHits() {
+		return this.hits.get();
+	}
+
+	/** */
+	public long getMisses() {
+		return this.misses.get();
+	}
+
+	/**
+	 * A metric name, and its UTF-8 encoding once someone asked for it.
+	 */
+	public static class MetricName {
+		private final String name;
+		private volatile byte[] utf8;
+
+		private MetricName(String name) {
+			this.name = name;
+		}
+
+		/** */
+		public String getName() {
+			return this.name;
+		}
+
+		/**
+		 * The name encoded as UTF-8, don't modify the returned array.
+		 */
+		public byte[] getUtf8() {
+			byte[] encoded = this.utf8;
+			if (encoded == null) {
+				try {
+					encoded = this.name.getBytes("UTF-8");
+				} catch (UnsupportedEncodingException e) {
+					throw new IllegalStateException(e);
+				}
+				this.utf8 = encoded;
+			}
+			return encoded;
+		}
+
+		/** */
+		@Override
+		public String toString() {
+			return this.name;
+		}
+	}
+
+	/**
+	 * What identifies a datapoint. The plan, server, typeNames and sanitizer
+	 * are compared by identity, the rest by value.
+	 */
+	private static class Key {
+		private final QueryPlan plan;
+		private final Server server;
+		private final String className;
+		private final String typeName;
+		private final String attributeName;
+		private final String valueKey;
+		private final List<String> typeNames;
+		private final String rootPrefix;
+		private final MetricNameSanitizer sanitizer;
+		private final boolean withServer;
+		private final int hash;
+
+		private Key(QueryPlan plan, Server server, String className, String typeName, String attributeName, String valueKey,
+				List<String> typeNames, String rootPrefix, MetricNameSanitizer sanitizer, boolean withServer) {
+			this.plan = plan;
+			this.server = server;
+			this.className = className;
+			this.typeName = typeName;
+			this.attributeName = attributeName;
+			this.valueKey = valueKey;
+			this.typeNames = typeNames;
+			this.rootPrefix = rootPrefix;
+			this.sanitizer = sanitizer;
+			this.withServer = withServer;
+
+			int h = System.identityHashCode(plan);
+			h = 31 * h + System.identityHashCode(server);
+			h = 31 * h + hashCode(className);
+			h = 31 * h + hashCode(typeName);
+			h = 31 * h + hashCode(attributeName);
+			h = 31 * h + hashCode(valueKey);
+			h = 31 * h + hashCode(rootPrefix);
+			this.hash = h;
+		}
+
+		@Override
+		public int hashCode() {
+			return this.hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return (this.hash == other.hash) && (this.plan == other.plan) && (this.server == other.server)
+					&& (this.typeNames == other.typeNames) && (this.sanitizer == other.sanitizer) && (this.withServer == other.withServer)
+					&& equal(this.attributeName, other.attributeName) && equal(this.valueKey, other.valueKey)
+					&& equal(this.typeName, other.typeName) && equal(this.className, other.className)
+					&& equal(this.rootPrefix, other.rootPrefix);
+		}
+
+		private static int hashCode(String s) {
+			return (s == null) ? 0 : s.hashCode();
+		}
+
+		private static boolean equal(String a, String b) {
+			return (a == null) ? (b == null) : a.equals(b);
+		}
+	}
+}
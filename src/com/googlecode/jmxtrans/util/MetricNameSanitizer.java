@@ -0,0 +1,215 @@
+package com.googlecode.jmxtrans.util;
+
+/**
+ * Cleans up the parts of metric names in a single pass, driven by a
+ * character translation table, instead of a chain of String.replace() calls.
+ *
+ * There are two sets of rules. Components (host names, class names, type
+ * name values, attribute names) are cleaned up like
+ * {@link JmxUtils#cleanupStr(String)} always did. On top of that a writer can
+ * have characters its protocol can't carry replaced everywhere, including in
+ * the parts of the name that are used verbatim (the root prefix and the
+ * aliases). Each writer picks its rules with
+ * {@link BaseOutputWriter#getSanitizer()}.
+ *
+ * Sanitizers are immutable, the methods building new rules return a copy.
+ */
+public class MetricNameSanitizer {
+
+	/** Marks a character to be removed. */
+	private static final char DROP = '\uffff';
+
+	/** The rules of cleanupStr(). */
+	public static final MetricNameSanitizer DEFAULT = new MetricNameSanitizer().replacing("./", '_').dropping(" \"'");
+
+	/** Graphite treats parentheses specially, they become _. */
+	public static final MetricNameSanitizer GRAPHITE = DEFAULT.replacingEverywhere("()", '_');
+
+	/** : | and @ are separators in the StatsD protocol. */
+	public static final MetricNameSanitizer STATSD = DEFAULT.replacingEverywhere(":|@", '_');
+
+	/** The names of Ganglia metrics only go through the usual cleanup. */
+	public static final MetricNameSanitizer GANGLIA = DEFAULT;
+
+	/**
+	 * OpenTSDB only takes letters, digits, -, _, . and / in metric names and
+	 * tag values.
+	 */
+	public static final MetricNameSanitizer OPENTSDB = new MetricNameSanitizer().allowingOnlyEverywhere("-_./", '_');
+
+	/** The rules applied to components, ASCII only. */
+	private final char[] components;
+
+	/** The rules applied everywhere, ASCII only. */
+	private final char[] everywhere;
+
+	/**
+	 * What non ASCII characters that aren't letters or digits become, DROP if
+	 * they are to be removed, 0 to keep them.
+	 */
+	private final char otherChars;
+
+	/**
+	 * A sanitizer that doesn't change anything.
+	 */
+	public MetricNameSanitizer() {
+		this.components = new char[128];
+		this.everywhere = new char[128];
+		for (char c = 0; c < 128; c++) {
+			this.components[c] = c;
+			this.everywhere[c] = c;
+		}
+		this.otherChars = 0;
+	}
+
+	private MetricNameSanitizer(char[] components, char[] everywhere, char otherChars) {
+		this.components = components;
+		this.everywhere = everywhere;
+		this.otherChars = otherChars;
+	}
+
+	/**
+	 * A copy that also replaces the given characters in components.
+	 */
+	public MetricNameSanitizer replacing(String chars, char with) {
+		char[] newComponents = this.components.clone();
+		for (int i = 0; i < chars.length(); i++) {
+			newComponents[ascii(chars.charAt(i))] = this.everywhere[ascii(with)];
+		}
+		return new MetricNameSanitizer(newComponents, this.everywhere, this.otherChars);
+	}
+
+	/**
+	 * A copy that also removes the given characters from components.
+	 */
+	public MetricNameSanitizer dropping(String chars) {
+		char[] newComponents = this.components.clone();
+		for (int i = 0; i < chars.length(); i++) {
+			newComponents[ascii(chars.charAt(i))] = DROP;
+		}
+		return new MetricNameSanitizer(newComponents, this.everywhere, this.otherChars);
+	}
+
+	/**
+	 * A copy that also replaces the given characters everywhere in the name.
+	 */
+	public MetricNameSanitizer replacingEverywhere(String chars, char with) {
+		char[] newEverywhere = this.everywhere.clone();
+		for (int i = 0; i < chars.length(); i++) {
+			newEverywhere[ascii(chars.charAt(i))] = with;
+		}
+		return new MetricNameSanitizer(this.compose(newEverywhere), newEverywhere, this.otherChars);
+	}
+
+	/**
+	 * A copy that replaces everything that isn't a letter, a digit or one of
+	 * the given characters, everywhere in the name.
+	 */
+	public MetricNameSanitizer allowingOnlyEverywhere(String allowed, char with) {
+		char[] newEverywhere = this.everywhere.clone();
+		for (char c = 0; c < 128; c++) {
+			if (!Character.isLetterOrDigit(c) && allowed.indexOf(c) < 0) {
+				newEverywhere[c] = with;
+			}
+		}
+		return new MetricNameSanitizer(this.compose(newEverywhere), newEverywhere, with);
+	}
+
+	/**
+	 * The component rules followed by the given rules for everywhere.
+	 */
+	private char[] compose(char[] newEverywhere) {
+		char[] composed = new char[128];
+		for (char c = 0; c < 128; c++) {
+			char cleaned = this.components[c];
+			composed[c] = (cleaned == DROP) ? DROP : newEverywhere[cleaned];
+		}
+		return composed;
+	}
+
+	/**
+	 * Cleans up a component, null stays null.
+	 */
+	public String sanitize(String component) {
+		return this.sanitize(component, this.components);
+	}
+
+	/**
+	 * Applies the rules for everywhere to a part of a name that is otherwise
+	 * used as is, null stays null.
+	 */
+	public String sanitizeVerbatim(String part) {
+		return this.sanitize(part, this.everywhere);
+	}
+
+	/** */
+	private String sanitize(String s, char[] table) {
+		if (s == null) {
+			return null;
+		}
+		int length = s.length();
+		for (int i = 0; i < length; i++) {
+			char c = s.charAt(i);
+			if ((c < 128) ? (table[c] != c) : this.changes(c)) {
+				// Something changes, only then do we copy.
+				StringBuilder sb = new StringBuilder(length);
+				sb.append(s, 0, i);
+				append(sb, s, i, table);
+				return sb.toString();
+			}
+		}
+		return s;
+	}
+
+	/**
+	 * Appends a cleaned up component.
+	 */
+	public StringBuilder appendComponent(StringBuilder sb, String component) {
+		if (component != null) {
+			append(sb, component, 0, this.components);
+		}
+		return sb;
+	}
+
+	/**
+	 * Appends a part of the name that is used as is, only the rules for
+	 * everywhere apply.
+	 */
+	public StringBuilder appendVerbatim(StringBuilder sb, String part) {
+		if (part != null) {
+			append(sb, part, 0, this.everywhere);
+		}
+		return sb;
+	}
+
+	/** */
+	private void append(StringBuilder sb, String s, int from, char[] table) {
+		int length = s.length();
+		for (int i = from; i < length; i++) {
+			char c = s.charAt(i);
+			if (c < 128) {
+				char translated = table[c];
+				if (translated != DROP) {
+					sb.append(translated);
+				}
+			} else if (!this.changes(c)) {
+				sb.append(c);
+			} else if (this.otherChars != DROP) {
+				sb.append(this.otherChars);
+			}
+		}
+	}
+
+	/** Whether a non ASCII character is replaced or removed. */
+	private boolean changes(char c) {
+		return (this.otherChars != 0) && !Character.isLetterOrDigit(c);
+	}
+
+	/** */
+	private static int ascii(char c) {
+		if (c >= 128) {
+			throw new IllegalArgumentException("Only ASCII characters can be translated: " + c);
+		}
+		return c;
+	}
+}
@@ -0,0 +1,30 @@
+package com.googlecode.jmxtrans.util;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates daemon threads named after what they are used for, so that they can
+ * be told apart in a thread dump.
+ */
+public class NamedThreadFactory implements ThreadFactory {
+
+	private final String prefix;
+	private final AtomicInteger count = new AtomicInteger();
+
+	/**
+	 * @param prefix
+	 *            the threads are named prefix-1, prefix-2...
+	 */
+	public NamedThreadFactory(String prefix) {
+		this.prefix = prefix;
+	}
+
+	/** */
+	@Override
+	public Thread newThread(Runnable r) {
+		Thread thread = new Thread(r, this.prefix + "-" + this.count.incrementAndGet());
+		thread.setDaemon(true);
+		return thread;
+	}
+}
@@ -0,0 +1,157 @@
+package com.googlecode.jmxtrans.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Encodes datapoints for carbon's pickle receiver: a list of
+ * (path, (timestamp, value)) tuples, pickled with protocol 2 and prefixed with
+ * its length as a 4 byte big endian integer.
+ *
+ * Datapoints are added to the current frame, which is written out and reset
+ * by the caller. The buffer is reused from one frame to the next, it is not
+ * thread safe.
+ *
+ * @see <a href="http://graphite.readthedocs.org/en/latest/feeding-carbon.html#the-pickle-protocol">The pickle protocol</a>
+ */
+public class PickleEncoder {
+
+	private static final int HEADER_SIZE = 4;
+
+	private static final byte PROTO = (byte) 0x80;
+	private static final byte EMPTY_LIST = ']';
+	private static final byte MARK = '(';
+	private static final byte APPENDS = 'e';
+	private static final byte BINUNICODE = 'X';
+	private static final byte BININT = 'J';
+	private static final byte LONG1 = (byte) 0x8a;
+	private static final byte BINFLOAT = 'G';
+	private static final byte TUPLE2 = (byte) 0x86;
+	private static final byte STOP = '.';
+
+	private byte[] bytes;
+	private int size;
+	private int count;
+
+	/** */
+	public PickleEncoder(int initialCapacity) {
+		this.bytes = new byte[Math.max(initialCapacity, 64)];
+		this.reset();
+	}
+
+	/**
+	 * Adds a datapoint to the current frame.
+	 *
+	 * @param timestamp
+	 *            in seconds
+	 */
+	public void add(String path, long timestamp, double value) {
+		try {
+			this.add(path.getBytes("UTF-8"), timestamp, value);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Adds a datapoint whose path is already encoded as UTF-8.
+	 *
+	 * @param timestamp
+	 *            in seconds
+	 */
+	public void add(byte[] utf8, long timestamp, double value) {
+		this.ensureCapacity(utf8.length + 32);
+		this.bytes[this.size++] = BINUNICODE;
+		this.putIntLittleEndian(utf8.length);
+		System.arraycopy(utf8, 0, this.bytes, this.size, utf8.length);
+		this.size += utf8.length;
+
+		if ((timestamp >= Integer.MIN_VALUE) && (timestamp <= Integer.MAX_VALUE)) {
+			this.bytes[this.size++] = BININT;
+			this.putIntLittleEndian((int) timestamp);
+		} else {
+			this.bytes[this.size++] = LONG1;
+			this.bytes[this.size++] = 8;
+			for (int i = 0; i < 8; i++) {
+				this.bytes[this.size++] = (byte) (timestamp >>> (8 * i));
+			}
+		}
+
+		this.bytes[this.size++] = BINFLOAT;
+		long bits = Double.doubleToLongBits(value);
+		for (int i = 7; i >= 0; i--) {
+			this.bytes[this.size++] = (byte) (bits >>> (8 * i));
+		}
+
+		this.bytes[this.size++] = TUPLE2;
+		this.bytes[this.size++] = TUPLE2;
+		this.count++;
+	}
+
+	/**
+	 * The number of datapoints in the current frame.
+	 */
+	public int count() {
+		return this.count;
+	}
+
+	/**
+	 * The size of the current frame so far, in bytes.
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * Writes the current frame, if it has any datapoint, in a single call.
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		if (this.count == 0) {
+			return;
+		}
+		this.ensureCapacity(2);
+		this.bytes[this.size++] = APPENDS;
+		this.bytes[this.size++] = STOP;
+
+		int length = this.size - HEADER_SIZE;
+		this.bytes[0] = (byte) (length >>> 24);
+		this.bytes[1] = (byte) (length >>> 16);
+		this.bytes[2] = (byte) (length >>> 8);
+		this.bytes[3] = (byte) length;
+		out.write(this.bytes, 0, this.size);
+
+		// Don't leave the frame half closed if the caller doesn't reset.
+		this.size -= 2;
+	}
+
+	/**
+	 * Starts a new, empty, frame.
+	 */
+	public void reset() {
+		this.size = HEADER_SIZE;
+		this.count = 0;
+		this.bytes[this.size++] = PROTO;
+		this.bytes[this.size++] = 2;
+		this.bytes[this.size++] = EMPTY_LIST;
+		this.bytes[this.size++] = MARK;
+	}
+
+	/** */
+	private void putIntLittleEndian(int value) {
+		this.bytes[this.size++] = (byte) value;
+		this.bytes[this.size++] = (byte) (value >>> 8);
+		this.bytes[this.size++] = (byte) (value >>> 16);
+		this.bytes[this.size++] = (byte) (value >>> 24);
+	}
+
+	/** */
+	private void ensureCapacity(int more) {
+		int needed = this.size + more;
+		if (needed > this.bytes.length) {
+			byte[] grown = new byte[Math.max(needed, this.bytes.length * 2)];
+			System.arraycopy(this.bytes, 0, grown, 0, this.size);
+			this.bytes = grown;
+		}
+	}
+}
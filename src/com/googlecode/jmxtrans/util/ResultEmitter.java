@@ -0,0 +1,78 @@
+package com.googlecode.jmxtrans.util;
+
+import java.util.List;
+
+import com.googlecode.jmxtrans.ResultSink;
+import com.googlecode.jmxtrans.model.MetricRef;
+import com.googlecode.jmxtrans.model.Query;
+import com.googlecode.jmxtrans.model.Result;
+import com.googlecode.jmxtrans.util.MBeanMetadataCache.MBeanMetadata;
+
+/**
+ * Where the flattening of the attributes of one MBean for one query goes.
+ * Values come in groups, one per Result. They are made into Results for the
+ * writers that want a list and handed straight over to the ResultSinks.
+ */
+class ResultEmitter {
+	private final Query query;
+	private final MBeanMetadata metadata;
+	private final List<Result> results;
+	private final List<ResultSink> sinks;
+	private final MetricRef metric;
+	private final long epoch = System.currentTimeMillis();
+	private Result current;
+
+	/**
+	 * @param results
+	 *            where to add the Results, null if nobody wants them
+	 * @param sinks
+	 *            who to stream the values to, null if nobody
+	 */
+	ResultEmitter(Query query, MBeanMetadata metadata, List<Result> results, List<ResultSink> sinks) {
+		this.query = query;
+		this.metadata = metadata;
+		this.results = results;
+		this.sinks = sinks;
+		this.metric = (sinks != null) ? new MetricRef(query, metadata.getClassName(), metadata.getTypeName()) : null;
+	}
+
+	/**
+	 * Starts the values of a Result.
+	 */
+	void begin(String attributeName) {
+		if (this.results != null) {
+			Result r = new Result(attributeName);
+			r.setQuery(this.query);
+			r.setClassName(this.metadata.getClassName());
+			r.setTypeName(this.metadata.getTypeName());
+			r.setEpoch(this.epoch);
+			this.current = r;
+		}
+		if (this.metric != null) {
+			this.metric.setAttributeName(attributeName);
+		}
+	}
+
+	/** */
+	void value(String key, Object value) throws Exception {
+		if (this.current != null) {
+			this.current.addValue(key, value);
+		}
+		if ((this.metric != null) && this.query.getPlan().acceptsKey(key)) {
+			this.metric.setKey(key);
+			for (ResultSink sink : this.sinks) {
+				sink.onValue(this.metric, value, this.epoch);
+			}
+		}
+	}
+
+	/**
+	 * Ends the values of a Result.
+	 */
+	void end() {
+		if (this.current != null) {
+			this.results.add(this.current);
+			this.current = null;
+		}
+	}
+}
@@ -0,0 +1,88 @@
+package com.googlecode.jmxtrans.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Gzips the files the writers are done with, one at a time on a daemon thread
+ * of its own, so that rolling a file over doesn't hold up the lines waiting
+ * to go in the next one.
+ */
+public class RolledFileCompressor {
+
+	private static final Logger log = LoggerFactory.getLogger(RolledFileCompressor.class);
+
+	public static final String SUFFIX = ".gz";
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final ExecutorService executor = Executors.newSingleThreadExecutor(new NamedThreadFactory("jmxtrans-compressor"));
+
+	private RolledFileCompressor() {
+	}
+
+	/**
+	 * Queues the file to be compressed to file.gz, which replaces it once
+	 * complete.
+	 */
+	public static Future<?> compress(final File file) {
+		return executor.submit(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					gzip(file);
+				} catch (IOException e) {
+					log.error("Failed to compress " + file, e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Compresses the file to file.gz, through a temporary file so that a
+	 * half written file.gz is never mistaken for a complete one.
+	 */
+	public static void gzip(File file) throws IOException {
+		if (!file.exists()) {
+			return;
+		}
+		File compressed = new File(file.getPath() + SUFFIX);
+		File tmp = new File(file.getPath() + SUFFIX + ".tmp");
+		InputStream in = null;
+		OutputStream out = null;
+		try {
+			in = new FileInputStream(file);
+			out = new GZIPOutputStream(new FileOutputStream(tmp), BUFFER_SIZE);
+			IOUtils.copy(in, out);
+			out.close();
+			out = null;
+		} finally {
+			IOUtils.closeQuietly(in);
+			if (out != null) {
+				IOUtils.closeQuietly(out);
+				tmp.delete();
+			}
+		}
+		if (compressed.exists() && !compressed.delete()) {
+			throw new IOException("Could not replace " + compressed);
+		}
+		if (!tmp.renameTo(compressed)) {
+			throw new IOException("Could not rename " + tmp + " to " + compressed);
+		}
+		if (!file.delete()) {
+			log.warn("Could not delete " + file + " once compressed");
+		}
+	}
+}
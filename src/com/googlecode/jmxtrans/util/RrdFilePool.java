@@ -0,0 +1,184 @@
+package com.googlecode.jmxtrans.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.jrobin.core.RrdBackendFactory;
+import org.jrobin.core.RrdDb;
+import org.jrobin.core.RrdDef;
+import org.jrobin.core.RrdDefTemplate;
+import org.jrobin.core.RrdException;
+import org.jrobin.core.RrdNioBackendFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps JRobin databases open from one write to the next, so that an update
+ * is a write to the memory mapped file instead of opening the file and
+ * parsing its header every time.
+ *
+ * Databases are shared by canonical path and opened with the NIO backend,
+ * which syncs the mapped file to disk every syncPeriod seconds and when the
+ * file is closed. A database is requested before an update and released
+ * right after; once more than capacity of them are open, the least recently
+ * used ones that aren't in use are closed.
+ *
+ * JRobin's own RrdDbPool closes a file as soon as it is released and blocks
+ * requests once it is full, which is why it isn't used here.
+ */
+public class RrdFilePool {
+
+	private static final Logger log = LoggerFactory.getLogger(RrdFilePool.class);
+
+	public static final int DEFAULT_CAPACITY = 200;
+
+	private static final RrdFilePool instance = new RrdFilePool(DEFAULT_CAPACITY);
+
+	private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private int capacity;
+
+	/** */
+	RrdFilePool(int capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * The pool the writers share.
+	 */
+	public static RrdFilePool getInstance() {
+		return instance;
+	}
+
+	/**
+	 * The database of the given file, created from the template if the file
+	 * doesn't exist. It must be released once the update is done.
+	 *
+	 * @param syncPeriod
+	 *            seconds between syncs of the file, if it has to be opened
+	 */
+	public synchronized RrdDb request(File file, File templateFile, int syncPeriod) throws IOException, RrdException {
+		String path = file.getCanonicalPath();
+		Entry entry = this.entries.get(path);
+		if (entry == null) {
+			entry = new Entry(open(file, path, templateFile, syncPeriod));
+			this.entries.put(path, entry);
+		}
+		entry.users++;
+		this.closeIdle();
+		return entry.db;
+	}
+
+	/**
+	 * Gives a database back. One that failed is closed, it is opened again by
+	 * the next request.
+	 */
+	public synchronized void release(RrdDb db, boolean healthy) {
+		Entry entry = this.entries.get(db.getPath());
+		if (entry == null || entry.db != db) {
+			return;
+		}
+		entry.users--;
+		if (!healthy || entry.closeOnRelease) {
+			this.close(db.getPath(), entry);
+		} else {
+			this.closeIdle();
+		}
+	}
+
+	/**
+	 * Closes the database of the file, or once it is released if it is in use.
+	 */
+	public synchronized void close(File file) throws IOException {
+		String path = file.getCanonicalPath();
+		Entry entry = this.entries.get(path);
+		if (entry != null) {
+			this.close(path, entry);
+		}
+	}
+
+	/** */
+	public synchronized int getCapacity() {
+		return this.capacity;
+	}
+
+	/** */
+	public synchronized void setCapacity(int capacity) {
+		this.capacity = capacity;
+		this.closeIdle();
+	}
+
+	/** */
+	public synchronized int getOpenFileCount() {
+		return this.entries.size();
+	}
+
+	/**
+	 * Closes the least recently used databases nobody is using, until there
+	 * are no more than capacity open.
+	 */
+	private void closeIdle() {
+		Iterator<Map.Entry<String, Entry>> it = this.entries.entrySet().iterator();
+		while (this.entries.size() > this.capacity && it.hasNext()) {
+			Map.Entry<String, Entry> eldest = it.next();
+			if (eldest.getValue().users == 0) {
+				it.remove();
+				closeQuietly(eldest.getKey(), eldest.getValue().db);
+			}
+		}
+	}
+
+	/** */
+	private void close(String path, Entry entry) {
+		if (entry.users > 0) {
+			entry.closeOnRelease = true;
+			return;
+		}
+		this.entries.remove(path);
+		closeQuietly(path, entry.db);
+	}
+
+	/**
+	 * The NIO factory reads its sync period when it opens a file, which only
+	 * happens here.
+	 */
+	private static RrdDb open(File file, String path, File templateFile, int syncPeriod) throws IOException, RrdException {
+		RrdNioBackendFactory.setSyncPeriod(syncPeriod);
+		RrdBackendFactory factory = RrdBackendFactory.getFactory(RrdNioBackendFactory.NAME);
+		if (file.exists()) {
+			return new RrdDb(path, factory);
+		}
+		FileUtils.forceMkdir(file.getParentFile());
+		RrdDefTemplate template = new RrdDefTemplate(templateFile);
+		template.setVariable("database", path);
+		RrdDef def = template.getRrdDef();
+		return new RrdDb(def, factory);
+	}
+
+	/** */
+	private static void closeQuietly(String path, RrdDb db) {
+		try {
+			db.close();
+		} catch (IOException e) {
+			log.error("Error closing " + path, e);
+		} catch (LinkageError e) {
+			// JRobin unmaps the file through JVM internals newer JVMs hide,
+			// it was synced and closed already, the mapping goes with the GC.
+			log.debug("Couldn't unmap " + path, e);
+		}
+	}
+
+	/** An open database and the number of updates going on. */
+	private static class Entry {
+		private final RrdDb db;
+		private int users = 0;
+		private boolean closeOnRelease = false;
+
+		private Entry(RrdDb db) {
+			this.db = db;
+		}
+	}
+}
@@ -0,0 +1,140 @@
+package com.googlecode.jmxtrans.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The samples of an RRD file waiting to be written together, in a single
+ * update with several timestamps.
+ *
+ * The buffer is due once it holds maxSamples samples or its oldest sample is
+ * maxAgeMillis old. Timestamps are in seconds, the resolution of RRD files:
+ * a sample taken in the same second as the previous one replaces it, as the
+ * file would refuse the second one.
+ *
+ * The writers check whether the buffer is due as they add samples, and a
+ * timer checks its age every second in case no sample comes, see
+ * {@link #flushWhenDue(Runnable)}.
+ */
+public class RrdSampleBuffer {
+
+	/** How often the timer checks the age of the samples. */
+	private static final long CHECK_PERIOD_MILLIS = 1000;
+
+	private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory(
+			"jmxtrans-rrd-batch"));
+
+	private final int maxSamples;
+	private final long maxAgeMillis;
+
+	private List<Sample> samples = new ArrayList<Sample>();
+	private long oldestMillis = 0;
+	private ScheduledFuture<?> check = null;
+
+	/** */
+	public RrdSampleBuffer(int maxSamples, long maxAgeMillis) {
+		this.maxSamples = maxSamples;
+		this.maxAgeMillis = maxAgeMillis;
+	}
+
+	/**
+	 * Adds the values of the datasources at the given time.
+	 *
+	 * @return whether the buffer is due, see {@link #drain()}
+	 */
+	public synchronized boolean add(long timestamp, Map<String, String> values, long nowMillis) {
+		if (this.samples.isEmpty()) {
+			this.oldestMillis = nowMillis;
+		}
+		int last = this.samples.size() - 1;
+		if (last >= 0 && this.samples.get(last).getTimestamp() >= timestamp) {
+			this.samples.set(last, new Sample(this.samples.get(last).getTimestamp(), values));
+		} else {
+			this.samples.add(new Sample(timestamp, values));
+		}
+		return this.isDue(nowMillis);
+	}
+
+	/** */
+	public synchronized boolean isDue(long nowMillis) {
+		return !this.samples.isEmpty() && (this.samples.size() >= this.maxSamples || nowMillis - this.oldestMillis >= this.maxAgeMillis);
+	}
+
+	/**
+	 * Has the timer run flush whenever the buffer is due, so that samples
+	 * don't wait past maxAgeMillis for the next one to be added. Flush is to
+	 * drain the buffer, and catch what it throws. Does nothing if the timer
+	 * already checks this buffer.
+	 */
+	public synchronized void flushWhenDue(final Runnable flush) {
+		if (this.check != null) {
+			return;
+		}
+		long period = Math.max(1, Math.min(CHECK_PERIOD_MILLIS, this.maxAgeMillis));
+		this.check = timer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				if (RrdSampleBuffer.this.isDue(System.currentTimeMillis())) {
+					flush.run();
+				}
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops the timer checks, the samples are left in the buffer.
+	 */
+	public synchronized void cancel() {
+		if (this.check != null) {
+			this.check.cancel(false);
+			this.check = null;
+		}
+	}
+
+	/**
+	 * Takes the samples out of the buffer, oldest first.
+	 */
+	public synchronized List<Sample> drain() {
+		if (this.samples.isEmpty()) {
+			return Collections.emptyList();
+		}
+		List<Sample> drained = this.samples;
+		this.samples = new ArrayList<Sample>(this.maxSamples);
+		return drained;
+	}
+
+	/** */
+	public synchronized int size() {
+		return this.samples.size();
+	}
+
+	/**
+	 * The values of the datasources of an RRD file at a point in time.
+	 */
+	public static class Sample {
+		private final long timestamp;
+		private final Map<String, String> values;
+
+		/** */
+		public Sample(long timestamp, Map<String, String> values) {
+			this.timestamp = timestamp;
+			this.values = values;
+		}
+
+		/** In seconds. */
+		public long getTimestamp() {
+			return this.timestamp;
+		}
+
+		/** The values, by datasource name. */
+		public Map<String, String> getValues() {
+			return this.values;
+		}
+	}
+}
@@ -0,0 +1,199 @@
+package com.googlecode.jmxtrans.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A long lived 'rrdtool -' process, fed commands on its standard input.
+ *
+ * rrdtool answers each command with a line starting with OK or ERROR, which
+ * a daemon thread reads as they come so that sending never waits for the
+ * command to be run. Errors are logged along with the command they are about
+ * and counted.
+ *
+ * The process is started on the first command, and again on the next one if
+ * it died.
+ */
+public class RrdToolPipe {
+
+	private static final Logger log = LoggerFactory.getLogger(RrdToolPipe.class);
+
+	/** Beyond this many commands without an answer, rrdtool is deemed stuck. */
+	private static final int MAX_PENDING = 1000;
+
+	private final File binary;
+
+	private Process process;
+	private Writer in;
+	private Thread reader;
+	/** The commands of the current process still waiting for an answer. */
+	private Queue<String> pending = new ConcurrentLinkedQueue<String>();
+
+	private final AtomicLong processesStarted = new AtomicLong();
+	private final AtomicLong commandsOk = new AtomicLong();
+	private final AtomicLong commandsFailed = new AtomicLong();
+
+	/** */
+	public RrdToolPipe(File binary) {
+		this.binary = binary;
+	}
+
+	/**
+	 * Sends a command, made of the given arguments, without waiting for its
+	 * answer.
+	 */
+	public synchronized void send(List<String> args) throws IOException {
+		String command = toCommandLine(args);
+		if (this.process != null && this.pending.size() >= MAX_PENDING) {
+			log.error("rrdtool didn't answer the last " + MAX_PENDING + " commands, restarting it");
+			this.kill();
+		}
+		for (int attempt = 1; ; attempt++) {
+			if (this.process == null) {
+				this.start();
+			}
+			try {
+				this.pending.add(command);
+				this.in.write(command);
+				this.in.write('\n');
+				this.in.flush();
+				return;
+			} catch (IOException e) {
+				this.pending.remove(command);
+				this.kill();
+				if (attempt >= 2) {
+					throw e;
+				}
+				log.warn("rrdtool went away, restarting it", e);
+			}
+		}
+	}
+
+	/**
+	 * Ends the process once it has run the commands it was sent, waiting up
+	 * to timeoutMillis for it.
+	 */
+	public synchronized void close(long timeoutMillis) {
+		if (this.process == null) {
+			return;
+		}
+		try {
+			this.in.write("quit\n");
+			this.in.flush();
+		} catch (IOException e) {
+			// Gone already.
+		}
+		IOUtils.closeQuietly(this.in);
+		// The answers end when the process does.
+		try {
+			this.reader.join(timeoutMillis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		this.kill();
+	}
+
+	/** Commands rrdtool said OK to. */
+	public long getCommandsOk() {
+		return this.commandsOk.get();
+	}
+
+	/** Commands rrdtool gave an ERROR for. */
+	public long getCommandsFailed() {
+		return this.commandsFailed.get();
+	}
+
+	/** */
+	public long getProcessesStarted() {
+		return this.processesStarted.get();
+	}
+
+	/** */
+	private void start() throws IOException {
+		ProcessBuilder pb = new ProcessBuilder(this.binary.getPath(), "-");
+		pb.redirectErrorStream(true);
+		final Process started = pb.start();
+		this.process = started;
+		this.in = new OutputStreamWriter(started.getOutputStream(), "UTF-8");
+		final Queue<String> commands = new ConcurrentLinkedQueue<String>();
+		this.pending = commands;
+		this.processesStarted.incrementAndGet();
+
+		this.reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				readAnswers(started, commands);
+			}
+		}, "rrdtool-" + this.binary.getPath());
+		this.reader.setDaemon(true);
+		this.reader.start();
+	}
+
+	/** Pairs the answers of the process with the commands sent to it. */
+	private void readAnswers(Process from, Queue<String> commands) {
+		BufferedReader out = null;
+		try {
+			out = new BufferedReader(new InputStreamReader(from.getInputStream(), "UTF-8"));
+			String line;
+			while ((line = out.readLine()) != null) {
+				if (line.startsWith("OK")) {
+					commands.poll();
+					this.commandsOk.incrementAndGet();
+				} else if (line.startsWith("ERROR")) {
+					String command = commands.poll();
+					this.commandsFailed.incrementAndGet();
+					log.error("rrdtool: " + line + " for: " + command);
+				} else {
+					log.debug("rrdtool: " + line);
+				}
+			}
+		} catch (IOException e) {
+			log.debug("rrdtool output closed", e);
+		} finally {
+			IOUtils.closeQuietly(out);
+		}
+	}
+
+	/** Kills the process, the next command starts another. */
+	private void kill() {
+		if (this.process == null) {
+			return;
+		}
+		IOUtils.closeQuietly(this.in);
+		this.process.destroy();
+		this.process = null;
+		this.in = null;
+		this.reader = null;
+	}
+
+	/**
+	 * rrdtool splits the lines it is sent on spaces, arguments with spaces
+	 * are quoted.
+	 */
+	static String toCommandLine(List<String> args) {
+		StringBuilder sb = new StringBuilder();
+		for (String arg : args) {
+			if (sb.length() > 0) {
+				sb.append(' ');
+			}
+			if (arg.indexOf(' ') >= 0 || arg.indexOf('\t') >= 0) {
+				sb.append('"').append(arg).append('"');
+			} else {
+				sb.append(arg);
+			}
+		}
+		return sb.toString();
+	}
+}
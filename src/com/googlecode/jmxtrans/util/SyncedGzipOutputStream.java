@@ -0,0 +1,98 @@
+package com.googlecode.jmxtrans.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.output.CloseShieldOutputStream;
+
+/**
+ * Compresses what is written to it as a series of gzip members, which gzip,
+ * zcat and GZIPInputStream read back as a single stream.
+ *
+ * A member is ended, and everything written to it so far is on disk and
+ * readable, on {@link #sync()}, or on a flush once the member is
+ * syncIntervalMillis old. Flushing any more often than that would make for
+ * small members, which compress poorly, so the appenders can keep flushing
+ * after every line.
+ */
+public class SyncedGzipOutputStream extends OutputStream {
+
+	private final OutputStream out;
+	private final int bufferSize;
+	private final long syncIntervalMillis;
+
+	private GZIPOutputStream member;
+	private long memberStartedMillis;
+	private boolean closed = false;
+
+	/** */
+	public SyncedGzipOutputStream(OutputStream out, int bufferSize, long syncIntervalMillis) {
+		this.out = out;
+		this.bufferSize = bufferSize;
+		this.syncIntervalMillis = syncIntervalMillis;
+	}
+
+	/** */
+	@Override
+	public synchronized void write(int b) throws IOException {
+		this.member().write(b);
+	}
+
+	/** */
+	@Override
+	public synchronized void write(byte[] b, int off, int len) throws IOException {
+		this.member().write(b, off, len);
+	}
+
+	/**
+	 * Ends the member if it is old enough.
+	 */
+	@Override
+	public synchronized void flush() throws IOException {
+		if (this.member != null && System.currentTimeMillis() - this.memberStartedMillis >= this.syncIntervalMillis) {
+			this.sync();
+		}
+	}
+
+	/**
+	 * Ends the member, if anything was written to it, so that it can be read.
+	 */
+	public synchronized void sync() throws IOException {
+		if (this.closed) {
+			return;
+		}
+		if (this.member != null) {
+			// Closing the member ends its deflater, the shield keeps the file open.
+			this.member.close();
+			this.member = null;
+		}
+		this.out.flush();
+	}
+
+	/** */
+	@Override
+	public synchronized void close() throws IOException {
+		if (this.closed) {
+			return;
+		}
+		try {
+			this.sync();
+		} finally {
+			this.closed = true;
+			this.out.close();
+		}
+	}
+
+	/** */
+	private GZIPOutputStream member() throws IOException {
+		if (this.closed) {
+			throw new IOException("Stream closed");
+		}
+		if (this.member == null) {
+			this.member = new GZIPOutputStream(new CloseShieldOutputStream(this.out), this.bufferSize);
+			this.memberStartedMillis = System.currentTimeMillis();
+		}
+		return this.member;
+	}
+}
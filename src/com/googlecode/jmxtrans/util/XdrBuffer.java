@@ -0,0 +1,111 @@
+package com.googlecode.jmxtrans.util;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+
+/**
+ * A growable buffer encoding XDR (RFC 4506) integers and strings, what the
+ * Ganglia wire protocol is made of. The buffer is meant to be reset and
+ * reused, it is not thread safe.
+ */
+public class XdrBuffer {
+
+	private byte[] bytes;
+	private int size = 0;
+
+	/** */
+	public XdrBuffer(int initialCapacity) {
+		this.bytes = new byte[Math.max(initialCapacity, 16)];
+	}
+
+	/**
+	 * Appends a 4 byte big endian integer.
+	 */
+	public XdrBuffer putInt(int value) {
+		this.ensureCapacity(4);
+		this.bytes[this.size++] = (byte) (value >>> 24);
+		this.bytes[this.size++] = (byte) (value >>> 16);
+		this.bytes[this.size++] = (byte) (value >>> 8);
+		this.bytes[this.size++] = (byte) value;
+		return this;
+	}
+
+	/** */
+	public XdrBuffer putBoolean(boolean value) {
+		return this.putInt(value ? 1 : 0);
+	}
+
+	/**
+	 * Appends a string: its length, its UTF-8 bytes and 0 to 3 bytes of
+	 * padding. null is encoded as the empty string.
+	 */
+	public XdrBuffer putString(String value) {
+		if (value == null) {
+			return this.putInt(0);
+		}
+		try {
+			return this.putString(value.getBytes("UTF-8"));
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Appends a string that is already encoded.
+	 */
+	public XdrBuffer putString(byte[] utf8) {
+		this.putInt(utf8.length);
+		int padded = (utf8.length + 3) & ~3;
+		this.ensureCapacity(padded);
+		System.arraycopy(utf8, 0, this.bytes, this.size, utf8.length);
+		Arrays.fill(this.bytes, this.size + utf8.length, this.size + padded, (byte) 0);
+		this.size += padded;
+		return this;
+	}
+
+	/**
+	 * Appends bytes that are already XDR encoded.
+	 */
+	public XdrBuffer putRaw(byte[] encoded) {
+		this.ensureCapacity(encoded.length);
+		System.arraycopy(encoded, 0, this.bytes, this.size, encoded.length);
+		this.size += encoded.length;
+		return this;
+	}
+
+	/**
+	 * The number of bytes in the buffer.
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * The buffer itself, valid up to size().
+	 */
+	public byte[] array() {
+		return this.bytes;
+	}
+
+	/**
+	 * A copy of the content of the buffer.
+	 */
+	public byte[] toByteArray() {
+		return Arrays.copyOf(this.bytes, this.size);
+	}
+
+	/**
+	 * Drops everything, keeping the memory.
+	 */
+	public void reset() {
+		this.size = 0;
+	}
+
+	/** */
+	private void ensureCapacity(int more) {
+		int needed = this.size + more;
+		if (needed > this.bytes.length) {
+			this.bytes = Arrays.copyOf(this.bytes, Math.max(needed, this.bytes.length * 2));
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package com.googlecode.jmxtrans;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Reloads of the configuration, which keep the servers running but apply
+ * their new settings.
+ */
+public class JmxTransformerTests {
+
+	/** Never fires, the servers aren't there. */
+	private static final String CRON = "0 0 0 1 1 ? 2099";
+
+	private File dir;
+	private MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+
+	@Before
+	public void setupTest() throws Exception {
+		this.dir = File.createTempFile("jmxtrans", "");
+		this.dir.delete();
+		this.dir.mkdirs();
+	}
+
+	@After
+	public void cleanupTest() throws Exception {
+		FileUtils.deleteDirectory(this.dir);
+	}
+
+	/**
+	 * A changed numQueryThreads resizes the executor of the server, a server
+	 * gone from the file has its executor shut down and its MBeans removed.
+	 */
+	@Test
+	public void testReload() throws Exception {
+		File json = new File(this.dir, "servers.json");
+		FileUtils.writeStringToFile(json, servers(server("1", 2), server("2", 3)));
+		JmxTransformer transformer = new JmxTransformer();
+		transformer.setJsonDirOrFile(json);
+		transformer.start();
+		try {
+			assertEquals(2, this.mbs.getAttribute(executorName("1"), "MaximumPoolSize"));
+			assertEquals(3, this.mbs.getAttribute(executorName("2"), "MaximumPoolSize"));
+
+			FileUtils.writeStringToFile(json, servers(server("1", 4)));
+			transformer.fileModified(json);
+
+			assertEquals(4, this.mbs.getAttribute(executorName("1"), "MaximumPoolSize"));
+			assertFalse(this.mbs.isRegistered(executorName("2")));
+		} finally {
+			transformer.stop();
+		}
+	}
+
+	private static ObjectName executorName(String port) throws Exception {
+		return new ObjectName("com.googlecode.jmxtrans:Type=QueryExecutor,Server=" + ObjectName.quote("localhost:" + port));
+	}
+
+	private static String servers(String... servers) {
+		StringBuilder sb = new StringBuilder("{ \"servers\" : [ ");
+		for (int i = 0; i < servers.length; i++) {
+			if (i > 0) {
+				sb.append(", ");
+			}
+			sb.append(servers[i]);
+		}
+		return sb.append(" ] }").toString();
+	}
+
+	private static String server(String port, int numQueryThreads) {
+		return "{ \"host\" : \"localhost\", \"port\" : \"" + port + "\", \"cronExpression\" : \"" + CRON + "\", \"numQueryThreads\" : "
+				+ numQueryThreads + ", \"queries\" : [ { \"obj\" : \"java.lang:type=Memory\", \"attr\" : [ \"HeapMemoryUsage\" ], "
+				+ "\"outputWriters\" : [ { \"@class\" : \"com.googlecode.jmxtrans.model.output.StdOutWriter\" } ] } ] }";
+	}
+}
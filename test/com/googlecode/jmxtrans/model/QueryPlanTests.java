@@ -0,0 +1,69 @@
+package com.googlecode.jmxtrans.model;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.googlecode.jmxtrans.model.output.StdOutWriter;
+import com.googlecode.jmxtrans.util.ValidationException;
+
+/**
+ * Tests for {@link QueryPlan}.
+ */
+public class QueryPlanTests {
+
+	@Test
+	public void testCompile() throws Exception {
+		Query query = new Query("java.lang:type=Memory");
+		query.addAttr("HeapMemoryUsage");
+		query.addAttr("NonHeapMemoryUsage");
+		query.addKey("used");
+
+		QueryPlan plan = query.getPlan();
+		assertEquals("java.lang:type=Memory", plan.getObjectName().getCanonicalName());
+		assertArrayEquals(new String[] { "HeapMemoryUsage", "NonHeapMemoryUsage" }, plan.getAttributes(null));
+		assertTrue(plan.acceptsKey("used"));
+		assertFalse(plan.acceptsKey("max"));
+		assertSame(plan, query.getPlan());
+
+		// changing the query throws the plan away
+		query.addKey("max");
+		assertNotSame(plan, query.getPlan());
+		assertTrue(query.getPlan().acceptsKey("max"));
+	}
+
+	@Test
+	public void testNoKeysAcceptsEverything() throws Exception {
+		assertTrue(new Query("java.lang:type=Memory").getPlan().acceptsKey("anything"));
+	}
+
+	@Test(expected = ValidationException.class)
+	public void testInvalidObj() throws Exception {
+		new Query("not an object name").compile();
+	}
+
+	@Test
+	public void testMergedTypeNames() throws Exception {
+		StdOutWriter writer = new StdOutWriter();
+		writer.addTypeName("type");
+		writer.addTypeName("name");
+
+		Query query = new Query("java.lang:type=MemoryPool,*");
+		query.setTypeNames(new LinkedHashSet<String>(Arrays.asList("name", "other")));
+		query.addOutputWriter(writer);
+
+		List<String> merged = query.getPlan().getTypeNames(writer.getTypeNames());
+		assertEquals(Arrays.asList("name", "other", "type"), merged);
+		assertSame(merged, query.getPlan().getTypeNames(writer.getTypeNames()));
+		assertEquals(Arrays.asList("name", "other", "x"), query.getPlan().getTypeNames(Arrays.asList("x")));
+	}
+}
@@ -0,0 +1,142 @@
+package com.googlecode.jmxtrans.model.output;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A carbon listener for the tests and benchmarks of the Graphite writers: it
+ * accepts connections on a free local port and counts the lines (and reads
+ * calls) it gets, optionally keeping what was received.
+ */
+public class FakeCarbonServer implements Runnable {
+
+	private final ServerSocket serverSocket;
+	private final boolean keep;
+	private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+	private final AtomicLong lines = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong reads = new AtomicLong();
+
+	/**
+	 * @param keep
+	 *            whether to keep the received bytes for {@link #getReceived()}
+	 */
+	public FakeCarbonServer(boolean keep) throws IOException {
+		this.serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		this.keep = keep;
+		Thread acceptor = new Thread(this, "fake-carbon");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/** */
+	public int getPort() {
+		return this.serverSocket.getLocalPort();
+	}
+
+	/** */
+	@Override
+	public void run() {
+		while (!this.serverSocket.isClosed()) {
+			try {
+				final Socket socket = this.serverSocket.accept();
+				Thread reader = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						read(socket);
+					}
+				}, "fake-carbon-connection");
+				reader.setDaemon(true);
+				reader.start();
+			} catch (IOException e) {
+				// Closed.
+			}
+		}
+	}
+
+	/** */
+	private void read(Socket socket) {
+		byte[] buf = new byte[64 * 1024];
+		try {
+			InputStream in = socket.getInputStream();
+			int n;
+			while ((n = in.read(buf)) != -1) {
+				this.reads.incrementAndGet();
+				this.bytes.addAndGet(n);
+				int count = 0;
+				for (int i = 0; i < n; i++) {
+					if (buf[i] == '\n') {
+						count++;
+					}
+				}
+				if (this.keep) {
+					synchronized (this.received) {
+						this.received.write(buf, 0, n);
+					}
+				}
+				this.lines.addAndGet(count);
+			}
+		} catch (IOException e) {
+			// Connection closed.
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// Ignored.
+			}
+		}
+	}
+
+	/**
+	 * Waits until at least count lines came in, or the timeout is over.
+	 */
+	public boolean awaitLines(long count, long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (this.lines.get() < count) {
+			if (System.currentTimeMillis() > deadline) {
+				return false;
+			}
+			Thread.sleep(1);
+		}
+		return true;
+	}
+
+	/** */
+	public long getLines() {
+		return this.lines.get();
+	}
+
+	/** */
+	public long getBytes() {
+		return this.bytes.get();
+	}
+
+	/** The number of read() calls that returned data. */
+	public long getReads() {
+		return this.reads.get();
+	}
+
+	/** */
+	public byte[] getReceivedBytes() {
+		synchronized (this.received) {
+			return this.received.toByteArray();
+		}
+	}
+
+	/** */
+	public String getReceived() throws IOException {
+		synchronized (this.received) {
+			return this.received.toString("UTF-8");
+		}
+	}
+
+	/** */
+	public void close() throws IOException {
+		this.serverSocket.close();
+	}
+}
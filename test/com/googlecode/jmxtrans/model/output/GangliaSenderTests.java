@@ -0,0 +1,138 @@
+package com.googlecode.jmxtrans.model.output;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.googlecode.jmxtrans.model.Query;
+import com.googlecode.jmxtrans.model.Result;
+import com.googlecode.jmxtrans.util.GangliaSender;
+import com.googlecode.jmxtrans.util.JmxUtils;
+import com.googlecode.jmxtrans.util.MetricNameSanitizer;
+
+import info.ganglia.gmetric4j.gmetric.GMetric;
+import info.ganglia.gmetric4j.gmetric.GMetricType;
+
+/**
+ * The packets {@link GangliaWriter} sends through {@link GangliaSender},
+ * which are to be the ones gmetric4j sends.
+ */
+public class GangliaSenderTests {
+
+	private DatagramSocket gmond;
+	private DatagramSocket reference;
+
+	@Before
+	public void setupTest() throws Exception {
+		this.gmond = new DatagramSocket(0, InetAddress.getByName("localhost"));
+		this.reference = new DatagramSocket(0, InetAddress.getByName("localhost"));
+	}
+
+	@After
+	public void cleanupTest() {
+		this.gmond.close();
+		this.reference.close();
+	}
+
+	/**
+	 * With the 3.1 protocol, the metadata is only sent every
+	 * sendMetadataInterval values.
+	 */
+	@Test
+	public void testPackets31() throws Exception {
+		GangliaWriter writer = this.writer(true);
+		Query query = TestQueries.query(1, false);
+		writer.validateSetup(query);
+
+		this.announce(writer, query, true);
+		byte[] metadata = receive(this.reference);
+		byte[] sample = receive(this.reference);
+
+		for (int i = 0; i < 3; i++) {
+			writer.doWrite(query);
+		}
+		assertArrayEquals(metadata, receive(this.gmond));
+		assertArrayEquals(sample, receive(this.gmond));
+		assertArrayEquals(sample, receive(this.gmond));
+		assertArrayEquals(metadata, receive(this.gmond));
+		assertArrayEquals(sample, receive(this.gmond));
+	}
+
+	/**
+	 * With the 3.0 protocol, every value is sent alone, in one packet with its
+	 * type, units and slope.
+	 */
+	@Test
+	public void testPackets30() throws Exception {
+		GangliaWriter writer = this.writer(false);
+		Query query = TestQueries.query(1, false);
+		writer.validateSetup(query);
+
+		this.announce(writer, query, false);
+		byte[] sample = receive(this.reference);
+
+		for (int i = 0; i < 3; i++) {
+			writer.doWrite(query);
+		}
+		for (int i = 0; i < 3; i++) {
+			assertArrayEquals(sample, receive(this.gmond));
+		}
+		this.gmond.setSoTimeout(200);
+		assertNull(poll(this.gmond));
+	}
+
+	private GangliaWriter writer(boolean v31) {
+		GangliaWriter writer = new GangliaWriter();
+		writer.addSetting(GangliaWriter.HOST, "localhost");
+		writer.addSetting(GangliaWriter.PORT, this.gmond.getLocalPort());
+		writer.addSetting(GangliaWriter.ADDRESSING_MODE, "UNICAST");
+		writer.addSetting(GangliaWriter.V31, v31);
+		writer.addSetting(GangliaWriter.SEND_METADATA_INTERVAL, 2);
+		return writer;
+	}
+
+	/**
+	 * Has gmetric4j send the value of the query to the reference socket.
+	 */
+	private void announce(GangliaWriter writer, Query query, boolean v31) throws Exception {
+		Result result = query.getResults().get(0);
+		Map.Entry<String, Object> value = result.getValues().entrySet().iterator().next();
+		String name = JmxUtils.getKeyString2(query, result, value, writer.getTypeNames(), null, MetricNameSanitizer.GANGLIA);
+		String spoofedHostName = GangliaWriter.getSpoofedHostName(query.getServer().getHost(), query.getServer().getAlias());
+		new GMetric("localhost", this.reference.getLocalPort(), GMetric.UDPAddressingMode.UNICAST, GangliaWriter.DEFAULT_TTL, v31, null,
+				spoofedHostName).announce(name, "0", GMetricType.INT32, GangliaWriter.DEFAULT_UNITS, GangliaWriter.DEFAULT_SLOPE,
+				GangliaWriter.DEFAULT_TMAX, GangliaWriter.DEFAULT_DMAX, GangliaWriter.DEFAULT_GROUP_NAME);
+	}
+
+	private static byte[] receive(DatagramSocket socket) throws Exception {
+		socket.setSoTimeout(2000);
+		byte[] received = poll(socket);
+		if (received == null) {
+			throw new AssertionError("No packet received");
+		}
+		return received;
+	}
+
+	/**
+	 * The next packet, null if none comes before the timeout of the socket.
+	 */
+	private static byte[] poll(DatagramSocket socket) throws Exception {
+		DatagramPacket packet = new DatagramPacket(new byte[1500], 1500);
+		try {
+			socket.receive(packet);
+		} catch (SocketTimeoutException e) {
+			return null;
+		}
+		return Arrays.copyOf(packet.getData(), packet.getLength());
+	}
+}
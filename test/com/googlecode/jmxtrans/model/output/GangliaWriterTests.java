@@ -38,6 +38,7 @@ public class GangliaWriterTests {
         assertEquals(GangliaWriter.DEFAULT_TMAX, writer.tmax);
         assertEquals(GangliaWriter.DEFAULT_DMAX, writer.dmax);
         assertEquals(GangliaWriter.DEFAULT_GROUP_NAME, writer.groupName);
+        assertEquals(GangliaWriter.DEFAULT_SEND_METADATA_INTERVAL, writer.sendMetadataInterval);
     }
 
     /** Test validation when all parameters are set. */
@@ -0,0 +1,312 @@
+package com.googlecode.jmxtrans.model.output;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.googlecode.jmxtrans.model.Query;
+import com.googlecode.jmxtrans.util.ValidationException;
+
+/**
+ * Tests for {@link GraphiteWriter}, against a {@link FakeCarbonServer}.
+ */
+public class GraphiteWriterTests {
+
+	private FakeCarbonServer carbon;
+
+	@Before
+	public void startCarbon() throws Exception {
+		this.carbon = new FakeCarbonServer(true);
+	}
+
+	@After
+	public void stopCarbon() throws Exception {
+		this.carbon.close();
+	}
+
+	@Test(expected = ValidationException.class)
+	public void testValidationRejectsEmptyBatches() throws Exception {
+		GraphiteWriter writer = writer(this.carbon.getPort(), 0, 1024);
+		writer.validateSetup(new Query("test:type=Test"));
+	}
+
+	/**
+	 * Whatever the batching, carbon gets the same lines.
+	 */
+	@Test
+	public void testBatchingDoesNotChangeTheOutput() throws Exception {
+		Query query = TestQueries.query(25, true);
+		String unbatched = this.send(query, 1, GraphiteWriter.DEFAULT_MAX_BUFFER_BYTES, 50);
+		String batched = this.send(query, 7, GraphiteWriter.DEFAULT_MAX_BUFFER_BYTES, 100);
+		String small = this.send(query, GraphiteWriter.DEFAULT_BATCH_SIZE, 100, 150);
+
+		assertEquals(25, unbatched.split("\n").length);
+		assertTrue(unbatched.startsWith("servers.localhost_2003.Test.Count_value 0 1234567\n"));
+		assertTrue(unbatched.contains("servers.localhost_2003.Test.Count_24__value 24 1234567\n"));
+		assertEquals(unbatched, batched);
+		assertEquals(unbatched, small);
+	}
+
+	/**
+	 * Lines go out batchSize at a time: carbon reads no more chunks than
+	 * there are batches, where one write per line would take up to a read
+	 * per line.
+	 */
+	@Test
+	public void testLinesAreSentInBatches() throws Exception {
+		Query query = TestQueries.query(1000, false);
+		GraphiteWriter writer = writer(this.carbon.getPort(), 50, GraphiteWriter.DEFAULT_MAX_BUFFER_BYTES);
+		writer.validateSetup(query);
+		long reads = this.carbon.getReads();
+		writer.start();
+		try {
+			writer.doWrite(query);
+		} finally {
+			writer.stop();
+		}
+		assertTrue(this.carbon.awaitLines(1000, 5000));
+		assertTrue(this.carbon.getReads() - reads <= 1000 / 50);
+	}
+
+	/**
+	 * The pickled frames hold the same datapoints as the plaintext lines.
+	 */
+	@Test
+	public void testPickleFramesHoldTheDatapoints() throws Exception {
+		Query query = TestQueries.query(25, true);
+		String lines = this.send(query, GraphiteWriter.DEFAULT_BATCH_SIZE, GraphiteWriter.DEFAULT_MAX_BUFFER_BYTES, 50);
+
+		GraphiteWriter writer = writer(this.carbon.getPort(), 10, GraphiteWriter.DEFAULT_MAX_BUFFER_BYTES);
+		writer.addSetting(GraphiteWriter.PROTOCOL, GraphiteWriter.PROTOCOL_PICKLE);
+		writer.validateSetup(query);
+		int before = this.carbon.getReceivedBytes().length;
+		writer.start();
+		try {
+			writer.doWrite(query);
+		} finally {
+			writer.stop();
+		}
+
+		List<List<Object>> frames = null;
+		long deadline = System.currentTimeMillis() + 5000;
+		while (System.currentTimeMillis() < deadline) {
+			byte[] all = this.carbon.getReceivedBytes();
+			frames = decodeFrames(Arrays.copyOfRange(all, before, all.length));
+			if (frames != null && frames.size() == 3) {
+				break;
+			}
+			Thread.sleep(10);
+		}
+
+		// 25 datapoints, 10 per frame.
+		assertNotNull(frames);
+		assertEquals(3, frames.size());
+		assertEquals(10, frames.get(0).size());
+		assertEquals(5, frames.get(2).size());
+
+		StringBuilder fromPickle = new StringBuilder();
+		for (List<Object> frame : frames) {
+			for (Object datapoint : frame) {
+				Object[] pathAndValue = (Object[]) datapoint;
+				Object[] timeAndValue = (Object[]) pathAndValue[1];
+				fromPickle.append(pathAndValue[0]).append(' ').append(((Double) timeAndValue[1]).intValue()).append(' ')
+						.append(timeAndValue[0]).append('\n');
+			}
+		}
+		assertEquals(lines, fromPickle.toString());
+	}
+
+	/**
+	 * Two carbon-caches on the same port would clash, so instance b listens
+	 * on a second fake carbon. Paths go where carbon-relay would send them,
+	 * and everywhere with a replicationFactor of 2.
+	 */
+	@Test
+	public void testDestinationsAreShardedLikeCarbonRelay() throws Exception {
+		Query query = TestQueries.query(25, false);
+		FakeCarbonServer other = new FakeCarbonServer(true);
+		try {
+			for (int replicationFactor = 1; replicationFactor <= 2; replicationFactor++) {
+				GraphiteWriter writer = new GraphiteWriter();
+				writer.addSetting(GraphiteWriter.DESTINATIONS, "127.0.0.1:" + this.carbon.getPort() + ":a, 127.0.0.1:" + other.getPort() + ":b");
+				writer.addSetting(GraphiteWriter.REPLICATION_FACTOR, replicationFactor);
+				writer.validateSetup(query);
+				writer.start();
+				try {
+					writer.doWrite(query);
+				} finally {
+					writer.stop();
+				}
+			}
+
+			// The paths carbon's ring sends to instance a, the rest goes to b.
+			int[] onA = { 0, 3, 5, 6, 7, 8, 9, 11, 12, 13, 14, 16, 17 };
+			assertTrue(this.carbon.awaitLines(onA.length + 25, 5000));
+			assertTrue(other.awaitLines((25 - onA.length) + 25, 5000));
+
+			String a = this.carbon.getReceived();
+			String b = other.getReceived();
+			StringBuilder expectedA = new StringBuilder();
+			StringBuilder expectedB = new StringBuilder();
+			int next = 0;
+			for (int i = 0; i < 25; i++) {
+				String line = "servers.localhost_2003.Test.Count_" + ((i == 0) ? "" : i + "__") + "value " + i + " 1234567\n";
+				if (next < onA.length && onA[next] == i) {
+					expectedA.append(line);
+					next++;
+				} else {
+					expectedB.append(line);
+				}
+			}
+			assertEquals(expectedA.toString(), a.substring(0, expectedA.length()));
+			assertEquals(expectedB.toString(), b.substring(0, expectedB.length()));
+			assertEquals(25, a.substring(expectedA.length()).split("\n").length);
+			assertEquals(25, b.substring(expectedB.length()).split("\n").length);
+		} finally {
+			other.close();
+		}
+	}
+
+	@Test(expected = ValidationException.class)
+	public void testValidationRejectsBadDestinations() throws Exception {
+		GraphiteWriter writer = new GraphiteWriter();
+		writer.addSetting(GraphiteWriter.DESTINATIONS, "127.0.0.1:2003, 127.0.0.1");
+		writer.validateSetup(new Query("test:type=Test"));
+	}
+
+	@Test(expected = ValidationException.class)
+	public void testValidationRejectsUnknownProtocols() throws Exception {
+		GraphiteWriter writer = writer(this.carbon.getPort(), 1, 1024);
+		writer.addSetting(GraphiteWriter.PROTOCOL, "udp");
+		writer.validateSetup(new Query("test:type=Test"));
+	}
+
+	/**
+	 * Splits length prefixed pickle payloads, null if the last one isn't
+	 * complete yet.
+	 */
+	private static List<List<Object>> decodeFrames(byte[] bytes) throws Exception {
+		List<List<Object>> frames = new ArrayList<List<Object>>();
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+		int offset = 0;
+		while (offset < bytes.length) {
+			if (bytes.length - offset < 4) {
+				return null;
+			}
+			int length = in.readInt();
+			if (bytes.length - offset - 4 < length) {
+				return null;
+			}
+			byte[] payload = new byte[length];
+			in.readFully(payload);
+			frames.add(unpickle(payload));
+			offset += 4 + length;
+		}
+		return frames.isEmpty() ? null : frames;
+	}
+
+	/**
+	 * Just enough of an unpickler for what carbon is sent: a list of tuples of
+	 * unicode strings, ints and floats. Tuples come back as Object[].
+	 */
+	@SuppressWarnings("unchecked")
+	private static List<Object> unpickle(byte[] payload) {
+		Object mark = new Object();
+		LinkedList<Object> stack = new LinkedList<Object>();
+		ByteBuffer in = ByteBuffer.wrap(payload);
+		while (true) {
+			int opcode = in.get() & 0xff;
+			switch (opcode) {
+			case 0x80:
+				assertEquals(2, in.get());
+				break;
+			case ']':
+				stack.push(new ArrayList<Object>());
+				break;
+			case '(':
+				stack.push(mark);
+				break;
+			case 'X': {
+				in.order(ByteOrder.LITTLE_ENDIAN);
+				byte[] utf8 = new byte[in.getInt()];
+				in.order(ByteOrder.BIG_ENDIAN);
+				in.get(utf8);
+				stack.push(new String(utf8, Charset.forName("UTF-8")));
+				break;
+			}
+			case 'J':
+				in.order(ByteOrder.LITTLE_ENDIAN);
+				stack.push(Long.valueOf(in.getInt()));
+				in.order(ByteOrder.BIG_ENDIAN);
+				break;
+			case 'G':
+				stack.push(in.getDouble());
+				break;
+			case 0x86: {
+				Object second = stack.pop();
+				Object first = stack.pop();
+				stack.push(new Object[] { first, second });
+				break;
+			}
+			case 'e': {
+				LinkedList<Object> items = new LinkedList<Object>();
+				while (stack.peek() != mark) {
+					items.addFirst(stack.pop());
+				}
+				stack.pop();
+				((List<Object>) stack.peek()).addAll(items);
+				break;
+			}
+			case '.':
+				assertEquals(1, stack.size());
+				return (List<Object>) stack.pop();
+			default:
+				throw new AssertionError("Unexpected opcode " + opcode);
+			}
+		}
+	}
+
+	/**
+	 * Writes the query and returns what carbon got out of it.
+	 */
+	private String send(Query query, int batchSize, int maxBufferBytes, int expectedLines) throws Exception {
+		int before = this.carbon.getReceived().length();
+		GraphiteWriter writer = writer(this.carbon.getPort(), batchSize, maxBufferBytes);
+		writer.validateSetup(query);
+		writer.start();
+		try {
+			writer.doWrite(query);
+			writer.doWrite(query);
+		} finally {
+			writer.stop();
+		}
+		assertTrue(this.carbon.awaitLines(expectedLines, 5000));
+		String all = this.carbon.getReceived();
+		String mine = all.substring(before);
+		// Each write sends the query twice.
+		return mine.substring(0, mine.length() / 2);
+	}
+
+	private static GraphiteWriter writer(int port, int batchSize, int maxBufferBytes) {
+		GraphiteWriter writer = new GraphiteWriter();
+		writer.addSetting(GraphiteWriter.HOST, "127.0.0.1");
+		writer.addSetting(GraphiteWriter.PORT, port);
+		writer.addSetting(GraphiteWriter.BATCH_SIZE, batchSize);
+		writer.addSetting(GraphiteWriter.MAX_BUFFER_BYTES, maxBufferBytes);
+		return writer;
+	}
+}
@@ -0,0 +1,149 @@
+package com.googlecode.jmxtrans.model.output;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.googlecode.jmxtrans.model.Query;
+import com.googlecode.jmxtrans.util.RolledFileCompressor;
+
+/**
+ * Tests for {@link KeyOutWriter}.
+ */
+public class KeyOutWriterTests {
+
+	private File dir;
+
+	@Before
+	public void setupTest() throws Exception {
+		this.dir = File.createTempFile("keyout", "");
+		this.dir.delete();
+		this.dir.mkdirs();
+	}
+
+	@After
+	public void cleanupTest() throws Exception {
+		FileUtils.deleteDirectory(this.dir);
+	}
+
+	/**
+	 * In async mode every line is in the file once the writer is stopped.
+	 */
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testAsync() throws Exception {
+		File output = new File(this.dir, "keyout.txt");
+		KeyOutWriter writer = new KeyOutWriter();
+		writer.addSetting(KeyOutWriter.OUTPUT_FILE, output.getPath());
+		writer.addSetting(KeyOutWriter.SETTING_ASYNC, true);
+		writer.addSetting(KeyOutWriter.SETTING_ASYNC_FLUSH_SIZE, 1000);
+
+		Query query = TestQueries.query(100, false);
+		writer.start();
+		writer.validateSetup(query);
+		writer.doWrite(query);
+		writer.stop();
+
+		List<String> lines = FileUtils.readLines(output);
+		assertEquals(100, lines.size());
+		assertEquals("localhost_2003.Test.Count_value\t0\t1234567000", lines.get(0));
+		assertEquals("localhost_2003.Test.Count(99)_value\t99\t1234567000", lines.get(99));
+	}
+
+	/**
+	 * Compressed lines can be read back while the file is still being
+	 * written, once synced.
+	 */
+	@Test
+	public void testCompression() throws Exception {
+		File output = new File(this.dir, "keyout.txt.gz");
+		KeyOutWriter writer = new KeyOutWriter();
+		writer.addSetting(KeyOutWriter.OUTPUT_FILE, output.getPath());
+		writer.addSetting(KeyOutWriter.SETTING_COMPRESSION, "gzip");
+		writer.addSetting(KeyOutWriter.SETTING_COMPRESSION_SYNC_INTERVAL_MILLIS, 0);
+
+		Query query = TestQueries.query(100, false);
+		writer.start();
+		writer.validateSetup(query);
+		writer.doWrite(query);
+
+		List<String> lines = gunzip(output);
+		assertEquals(100, lines.size());
+		assertEquals("localhost_2003.Test.Count(99)_value\t99\t1234567000", lines.get(99));
+
+		writer.doWrite(query);
+		writer.stop();
+		assertEquals(200, gunzip(output).size());
+	}
+
+	/**
+	 * Rolled over files are gzipped, and shifted like the plain ones would
+	 * be.
+	 */
+	@Test
+	public void testCompressRolled() throws Exception {
+		File output = new File(this.dir, "keyout.txt");
+		KeyOutWriter writer = new KeyOutWriter();
+		writer.addSetting(KeyOutWriter.OUTPUT_FILE, output.getPath());
+		writer.addSetting(KeyOutWriter.SETTING_COMPRESS_ROLLED, true);
+		writer.addSetting(KeyOutWriter.SETTING_MAX_LOG_FILE_SIZE, "1KB");
+		writer.addSetting(KeyOutWriter.SETTING_MAX_BACK_FILES, 2);
+
+		Query query = TestQueries.query(100, false);
+		writer.start();
+		writer.validateSetup(query);
+		writer.doWrite(query);
+		writer.stop();
+		// The compressor runs one file at a time, this one is queued last.
+		RolledFileCompressor.compress(new File(this.dir, "none")).get();
+
+		assertTrue(new File(this.dir, "keyout.txt.1.gz").exists());
+		assertTrue(new File(this.dir, "keyout.txt.2.gz").exists());
+		assertFalse(new File(this.dir, "keyout.txt.1").exists());
+		assertFalse(new File(this.dir, "keyout.txt.3.gz").exists());
+		List<String> lines = gunzip(new File(this.dir, "keyout.txt.1.gz"));
+		assertTrue(lines.get(0), lines.get(0).startsWith("localhost_2003.Test.Count("));
+	}
+
+	/**
+	 * The logback writer compresses the same way.
+	 */
+	@Test
+	public void testTimeBasedCompression() throws Exception {
+		KeyOutWriter writer = new TimeBasedRollingKeyOutWriter();
+		writer.addSetting(KeyOutWriter.OUTPUT_FILE, new File(this.dir, "keyout.%d{yyyy-MM-dd}.%i.log").getPath());
+		writer.addSetting(KeyOutWriter.SETTING_COMPRESSION, "gzip");
+
+		Query query = TestQueries.query(100, false);
+		writer.start();
+		writer.validateSetup(query);
+		writer.doWrite(query);
+		writer.stop();
+
+		File[] files = this.dir.listFiles();
+		assertEquals(1, files.length);
+		assertEquals(100, gunzip(files[0]).size());
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<String> gunzip(File file) throws Exception {
+		InputStream in = new GZIPInputStream(new FileInputStream(file));
+		try {
+			return IOUtils.readLines(in);
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,160 @@
+package com.googlecode.jmxtrans.model.output;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.googlecode.jmxtrans.model.Query;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Tests for the HTTP mode of {@link OpenTSDBWriter}, against a stub of the
+ * /api/put endpoint.
+ */
+public class OpenTSDBWriterHttpTests {
+
+	private HttpServer server;
+	private final List<String> uris = Collections.synchronizedList(new ArrayList<String>());
+	private final List<String> encodings = Collections.synchronizedList(new ArrayList<String>());
+	private final List<Integer> clientPorts = Collections.synchronizedList(new ArrayList<Integer>());
+	private final List<JsonNode> bodies = Collections.synchronizedList(new ArrayList<JsonNode>());
+
+	/** What the stub answers, null for a 204. */
+	private volatile String answer = null;
+	private volatile int answerCode = 204;
+
+	private OpenTSDBWriter writer;
+
+	@Before
+	public void setupTest() throws Exception {
+		this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		this.server.createContext("/api/put", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				// Read it all, or the connection can't be reused.
+				InputStream in = new ByteArrayInputStream(readFully(exchange.getRequestBody()));
+				String encoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+				if ("gzip".equals(encoding)) {
+					in = new GZIPInputStream(in);
+				}
+				uris.add(exchange.getRequestURI().toString());
+				encodings.add(encoding);
+				clientPorts.add(exchange.getRemoteAddress().getPort());
+				bodies.add(new ObjectMapper().readTree(new String(readFully(in), "UTF-8")));
+
+				if (answer == null) {
+					exchange.sendResponseHeaders(204, -1);
+				} else {
+					byte[] content = answer.getBytes("UTF-8");
+					exchange.sendResponseHeaders(answerCode, content.length);
+					OutputStream out = exchange.getResponseBody();
+					out.write(content);
+					out.close();
+				}
+				exchange.close();
+			}
+		});
+		this.server.start();
+
+		this.writer = new OpenTSDBWriter();
+		this.writer.addSetting(OpenTSDBWriter.HOST, "localhost");
+		this.writer.addSetting(OpenTSDBWriter.PORT, this.server.getAddress().getPort());
+		this.writer.addSetting(OpenTSDBWriter.PROTOCOL, OpenTSDBWriter.PROTOCOL_HTTP);
+		this.writer.addSetting(OpenTSDBWriter.BATCH_SIZE, 3);
+	}
+
+	@After
+	public void cleanupTest() {
+		this.server.stop(0);
+	}
+
+	/**
+	 * The datapoints are sent in gzipped batches, over a single connection.
+	 */
+	@Test
+	public void testBatches() throws Exception {
+		this.writer.addSetting(OpenTSDBWriter.GZIP, true);
+		this.writer.start();
+		this.writer.doWrite(TestQueries.query(7, false));
+		this.writer.stop();
+
+		assertEquals(3, this.bodies.size());
+		assertEquals(3, this.bodies.get(0).size());
+		assertEquals(3, this.bodies.get(1).size());
+		assertEquals(1, this.bodies.get(2).size());
+		assertEquals("/api/put?summary", this.uris.get(0));
+		assertEquals("gzip", this.encodings.get(0));
+		assertEquals(1, new java.util.HashSet<Integer>(this.clientPorts).size());
+
+		JsonNode first = this.bodies.get(0).get(0);
+		assertEquals("Test.Count", first.get("metric").getTextValue());
+		assertEquals(1234567, first.get("timestamp").getLongValue());
+		assertEquals(0, first.get("value").getIntValue());
+		assertEquals("value", first.get("tags").get("type").getTextValue());
+		assertTrue(first.get("tags").has("host"));
+		assertEquals(7, this.writer.getDatapointsSent());
+	}
+
+	/**
+	 * The datapoints OpenTSDB didn't store are counted.
+	 */
+	@Test
+	public void testFailures() throws Exception {
+		this.writer.addSetting(OpenTSDBWriter.RESPONSE, OpenTSDBWriter.RESPONSE_DETAILS);
+		this.answerCode = 400;
+		this.answer = "{\"errors\":[{\"datapoint\":{},\"error\":\"Unknown metric\"}],\"failed\":1,\"success\":2}";
+		this.writer.start();
+		this.writer.doWrite(TestQueries.query(3, false));
+		this.writer.stop();
+
+		assertEquals("/api/put?details", this.uris.get(0));
+		assertEquals(null, this.encodings.get(0));
+		assertEquals(2, this.writer.getDatapointsSent());
+		assertEquals(1, this.writer.getDatapointsFailed());
+		assertEquals(0, this.writer.getRequestsFailed());
+	}
+
+	/**
+	 * An error without a summary fails the write.
+	 */
+	@Test(expected = IOException.class)
+	public void testServerError() throws Exception {
+		this.answerCode = 500;
+		this.answer = "oops";
+		this.writer.start();
+		try {
+			this.writer.doWrite(TestQueries.query(3, false));
+		} finally {
+			this.writer.stop();
+			assertEquals(1, this.writer.getRequestsFailed());
+		}
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream content = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			content.write(buffer, 0, read);
+		}
+		return content.toByteArray();
+	}
+}
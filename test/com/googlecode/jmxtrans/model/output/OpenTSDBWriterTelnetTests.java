@@ -0,0 +1,166 @@
+package com.googlecode.jmxtrans.model.output;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the telnet mode of {@link OpenTSDBWriter}, against a fake TSD
+ * that collects the lines it is sent.
+ */
+public class OpenTSDBWriterTelnetTests {
+
+	private ServerSocket tsd;
+	private final List<Socket> connections = Collections.synchronizedList(new ArrayList<Socket>());
+	private final BlockingQueue<String> lines = new LinkedBlockingQueue<String>();
+
+	private OpenTSDBWriter writer;
+
+	@Before
+	public void setupTest() throws Exception {
+		this.tsd = new ServerSocket(0, 50, InetAddress.getByName("localhost"));
+		Thread acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						final Socket connection = tsd.accept();
+						connections.add(connection);
+						new Thread(new Runnable() {
+							@Override
+							public void run() {
+								read(connection);
+							}
+						}).start();
+					}
+				} catch (IOException e) {
+					// Closed.
+				}
+			}
+		});
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		this.writer = new OpenTSDBWriter();
+		this.writer.addSetting(OpenTSDBWriter.HOST, "localhost");
+		this.writer.addSetting(OpenTSDBWriter.PORT, this.tsd.getLocalPort());
+	}
+
+	@After
+	public void cleanupTest() throws Exception {
+		this.tsd.close();
+		this.dropConnections();
+	}
+
+	/**
+	 * One put command per value, all with the same tags.
+	 */
+	@Test
+	public void testPutCommands() throws Exception {
+		this.writer.start();
+		this.writer.doWrite(TestQueries.query(3, false));
+		this.writer.stop();
+
+		List<String> received = this.take(3);
+		String host = InetAddress.getLocalHost().getHostName();
+		assertEquals("put Test.Count 1234567 0 type=value host=" + host, received.get(0));
+		for (String line : received) {
+			assertTrue(line, line.endsWith(" 1234567 " + received.indexOf(line) + " type=value host=" + host));
+		}
+	}
+
+	/**
+	 * Once the TSD drops the connection, the next write goes through a new one.
+	 */
+	@Test
+	public void testReconnect() throws Exception {
+		this.writer.start();
+		this.writer.doWrite(TestQueries.query(2, false));
+		this.take(2);
+		assertEquals(1, this.connections.size());
+
+		this.dropConnections();
+		this.writer.doWrite(TestQueries.query(2, false));
+		this.writer.doWrite(TestQueries.query(2, false));
+		this.writer.stop();
+
+		this.take(4);
+		assertEquals(1, this.connections.size());
+	}
+
+	/**
+	 * Starting again, as a reload does, replaces the socket pool and its MBean
+	 * instead of failing on the MBean already registered.
+	 */
+	@Test
+	public void testStartTwice() throws Exception {
+		MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+		ObjectName poolName = new ObjectName("com.googlecode.jmxtrans:Type=GenericKeyedObjectPool,PoolName=SocketFactory,Name=OpenTSDBWriter@"
+				+ Integer.toHexString(System.identityHashCode(this.writer)));
+
+		this.writer.start();
+		this.writer.doWrite(TestQueries.query(1, false));
+		this.take(1);
+
+		this.writer.start();
+		assertTrue(mbs.isRegistered(poolName));
+		this.writer.doWrite(TestQueries.query(1, false));
+		this.take(1);
+
+		this.writer.stop();
+		assertFalse(mbs.isRegistered(poolName));
+	}
+
+	private void read(Socket connection) {
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), "UTF-8"));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				this.lines.add(line);
+			}
+		} catch (IOException e) {
+			// Dropped.
+		}
+	}
+
+	private void dropConnections() throws IOException {
+		synchronized (this.connections) {
+			for (Socket connection : this.connections) {
+				connection.close();
+			}
+			this.connections.clear();
+		}
+	}
+
+	private List<String> take(int count) throws InterruptedException {
+		List<String> taken = new ArrayList<String>();
+		for (int i = 0; i < count; i++) {
+			String line = this.lines.poll(2, TimeUnit.SECONDS);
+			assertNotNull("Only " + i + " lines received", line);
+			taken.add(line);
+		}
+		return taken;
+	}
+}
@@ -0,0 +1,135 @@
+package com.googlecode.jmxtrans.model.output;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.googlecode.jmxtrans.model.Query;
+import com.googlecode.jmxtrans.util.RrdFilePoolTests;
+
+/**
+ * Tests for the pipe mode of {@link RRDToolWriter}, against a fake rrdtool
+ * that logs what it is asked to do and answers OK to anything but "bad".
+ */
+public class RRDToolWriterTests {
+
+	private static final String FAKE_RRDTOOL = "#!/bin/sh\n"
+			+ "log=\"$(dirname \"$0\")/calls.log\"\n"
+			+ "echo \"exec $*\" >> \"$log\"\n"
+			+ "if [ \"$1\" = create ]; then touch \"$2\"; fi\n"
+			+ "if [ \"$1\" = - ]; then\n"
+			+ "  while read line; do\n"
+			+ "    echo \"$line\" >> \"$log\"\n"
+			+ "    case \"$line\" in\n"
+			+ "      quit) exit 0;;\n"
+			+ "      *bad*) echo \"ERROR: bad\";;\n"
+			+ "      *) echo \"OK u:0.00 s:0.00 r:0.00\";;\n"
+			+ "    esac\n"
+			+ "  done\n"
+			+ "fi\n";
+
+	private File dir;
+	private RRDToolWriter writer;
+
+	@Before
+	public void setupTest() throws Exception {
+		this.dir = File.createTempFile("rrdtool", "");
+		this.dir.delete();
+		this.dir.mkdirs();
+		File rrdtool = new File(this.dir, "rrdtool");
+		FileUtils.writeStringToFile(rrdtool, FAKE_RRDTOOL);
+		rrdtool.setExecutable(true);
+
+		this.writer = new RRDToolWriter();
+		String dsName = this.writer.getDataSourceName(null, "Count", "value");
+		this.writer.addSetting(RRDToolWriter.TEMPLATE_FILE, RrdFilePoolTests.writeTemplate(this.dir, dsName).getPath());
+		this.writer.addSetting(RRDToolWriter.BINARY_PATH, this.dir.getPath());
+		this.writer.addSetting(RRDToolWriter.PIPE, true);
+	}
+
+	@After
+	public void cleanupTest() throws Exception {
+		FileUtils.deleteDirectory(this.dir);
+	}
+
+	/**
+	 * The database is created by an rrdtool of its own, the updates all go to
+	 * a single one.
+	 */
+	@Test
+	public void testPipe() throws Exception {
+		File output = new File(this.dir, "out/test.rrd");
+		this.writer.addSetting(RRDToolWriter.OUTPUT_FILE, output.getPath());
+		this.write(3);
+
+		List<String> calls = this.calls();
+		assertEquals(6, calls.size());
+		assertEquals("exec create " + output.getCanonicalPath(), calls.get(0).substring(0, calls.get(0).indexOf(" -s ")));
+		assertEquals("exec -", calls.get(1));
+		String update = "update " + output.getCanonicalPath() + " -t " + this.writer.getDataSourceName(null, "Count", "value") + " N:0";
+		assertEquals(update, calls.get(2));
+		assertEquals(update, calls.get(4));
+		assertEquals("quit", calls.get(5));
+		assertEquals(3, this.writer.getUpdatesOk());
+	}
+
+	/**
+	 * The errors rrdtool answers are counted, and don't stop the next updates.
+	 */
+	@Test
+	public void testErrors() throws Exception {
+		this.writer.addSetting(RRDToolWriter.OUTPUT_FILE, new File(this.dir, "bad.rrd").getPath());
+		this.write(2);
+
+		assertEquals(0, this.writer.getUpdatesOk());
+		assertEquals(2, this.writer.getUpdatesFailed());
+	}
+
+	/**
+	 * Batched samples go in a single update, the last ones on stop.
+	 */
+	@Test
+	public void testBatches() throws Exception {
+		File output = new File(this.dir, "test.rrd");
+		this.writer.addSetting(RRDToolWriter.OUTPUT_FILE, output.getPath());
+		this.writer.addSetting(RRDToolWriter.BATCH_SIZE, 2);
+		Query query = TestQueries.query(1, false);
+		this.writer.start();
+		this.writer.validateSetup(query);
+		this.writer.doWrite(query);
+		// RRD files take one sample per second.
+		Thread.sleep(1100);
+		this.writer.doWrite(query);
+		Thread.sleep(1100);
+		this.writer.doWrite(query);
+		this.writer.stop();
+
+		List<String> calls = this.calls();
+		assertEquals(5, calls.size());
+		assertTrue(calls.get(2), calls.get(2).matches("update \\S+ -t \\S+ \\d+:0 \\d+:0"));
+		assertTrue(calls.get(3), calls.get(3).matches("update \\S+ -t \\S+ \\d+:0"));
+		assertEquals(2, this.writer.getUpdatesOk());
+	}
+
+	private void write(int times) throws Exception {
+		Query query = TestQueries.query(1, false);
+		this.writer.start();
+		this.writer.validateSetup(query);
+		for (int i = 0; i < times; i++) {
+			this.writer.doWrite(query);
+		}
+		this.writer.stop();
+	}
+
+	@SuppressWarnings("unchecked")
+	private List<String> calls() throws Exception {
+		return FileUtils.readLines(new File(this.dir, "calls.log"));
+	}
+}
@@ -0,0 +1,109 @@
+package com.googlecode.jmxtrans.model.output;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.apache.commons.io.FileUtils;
+import org.jrobin.core.RrdDb;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.googlecode.jmxtrans.model.Query;
+import com.googlecode.jmxtrans.util.RrdFilePool;
+import com.googlecode.jmxtrans.util.RrdFilePoolTests;
+
+/**
+ * Tests for {@link RRDWriter}.
+ */
+public class RRDWriterTests {
+
+	private File dir;
+
+	@Before
+	public void setupTest() throws Exception {
+		this.dir = File.createTempFile("rrd", "");
+		this.dir.delete();
+		this.dir.mkdirs();
+	}
+
+	@After
+	public void cleanupTest() throws Exception {
+		FileUtils.deleteDirectory(this.dir);
+	}
+
+	/**
+	 * The database stays open after a write, and is there on disk once the
+	 * writer is stopped.
+	 */
+	@Test
+	public void testWriteAndStop() throws Exception {
+		File output = new File(this.dir, "out/test.rrd");
+		RRDWriter writer = new RRDWriter();
+		writer.addSetting(RRDWriter.OUTPUT_FILE, output.getPath());
+		writer.addSetting(RRDWriter.TEMPLATE_FILE, RrdFilePoolTests.writeTemplate(this.dir, "value").getPath());
+		writer.addSetting(RRDWriter.SYNC_PERIOD, 10);
+
+		Query query = TestQueries.query(1, false);
+		query.getResults().get(0).addValue("value", 42);
+		writer.start();
+		writer.validateSetup(query);
+		int open = RrdFilePool.getInstance().getOpenFileCount();
+		writer.doWrite(query);
+		assertEquals(open + 1, RrdFilePool.getInstance().getOpenFileCount());
+		writer.stop();
+		assertEquals(open, RrdFilePool.getInstance().getOpenFileCount());
+
+		RrdDb db = new RrdDb(output.getPath(), true);
+		try {
+			assertEquals(42.0, db.getLastDatasourceValue("value"), 0.0);
+		} finally {
+			db.close();
+		}
+	}
+
+	/**
+	 * Batched samples are only written once there are enough of them, or on
+	 * stop.
+	 */
+	@Test
+	public void testBatches() throws Exception {
+		File output = new File(this.dir, "batched.rrd");
+		RRDWriter writer = new RRDWriter();
+		writer.addSetting(RRDWriter.OUTPUT_FILE, output.getPath());
+		writer.addSetting(RRDWriter.TEMPLATE_FILE, RrdFilePoolTests.writeTemplate(this.dir, "value").getPath());
+		writer.addSetting(RRDWriter.BATCH_SIZE, 2);
+
+		Query query = TestQueries.query(1, false);
+		writer.start();
+		writer.validateSetup(query);
+		query.getResults().get(0).addValue("value", 1);
+		writer.doWrite(query);
+		long created = lastUpdate(output);
+
+		// RRD files take one sample per second.
+		Thread.sleep(1100);
+		query.getResults().get(0).addValue("value", 2);
+		writer.doWrite(query);
+		long first = lastUpdate(output);
+		assertTrue(first > created);
+
+		Thread.sleep(1100);
+		query.getResults().get(0).addValue("value", 3);
+		writer.doWrite(query);
+		assertEquals(first, lastUpdate(output));
+		writer.stop();
+		assertTrue(lastUpdate(output) > first);
+	}
+
+	private static long lastUpdate(File output) throws Exception {
+		RrdDb db = RrdFilePool.getInstance().request(output, null, 10);
+		try {
+			return db.getLastUpdateTime();
+		} finally {
+			RrdFilePool.getInstance().release(db, true);
+		}
+	}
+}
@@ -0,0 +1,176 @@
+package com.googlecode.jmxtrans.model.output;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.googlecode.jmxtrans.model.MetricRef;
+import com.googlecode.jmxtrans.model.Query;
+import com.googlecode.jmxtrans.model.Result;
+import com.googlecode.jmxtrans.util.ValidationException;
+
+/**
+ * Tests for {@link StatsDWriter} against a local UDP socket.
+ */
+public class StatsDWriterTests {
+
+	private DatagramSocket receiver;
+	private StatsDWriter writer;
+
+	@Before
+	public void setupTest() throws Exception {
+		this.receiver = new DatagramSocket(0, InetAddress.getByName("localhost"));
+		this.receiver.setSoTimeout(2000);
+		this.writer = new StatsDWriter();
+		this.writer.addSetting(StatsDWriter.HOST, "localhost");
+		this.writer.addSetting(StatsDWriter.PORT, this.receiver.getLocalPort());
+	}
+
+	@After
+	public void cleanupTest() {
+		this.receiver.close();
+	}
+
+	/**
+	 * Stats are packed into as few packets as packetSize allows, all of them
+	 * sent by the end of doWrite.
+	 */
+	@Test
+	public void testPacking() throws Exception {
+		this.writer.addSetting(StatsDWriter.PACKET_SIZE, 200);
+		Query query = TestQueries.query(50, false);
+		this.writer.validateSetup(query);
+		this.writer.doWrite(query);
+
+		List<String> lines = new ArrayList<String>();
+		int bytes = 0;
+		for (long i = 0; i < this.writer.getPacketsSent(); i++) {
+			String packet = this.receive();
+			assertTrue(packet.length() <= 200);
+			bytes += packet.length();
+			for (String line : packet.split("\n")) {
+				lines.add(line);
+			}
+		}
+		assertEquals(50, lines.size());
+		assertEquals("servers.localhost_2003.Test.Count_value:0|c", lines.get(0));
+		assertEquals("servers.localhost_2003.Test.Count(49)_value:49|c", lines.get(49));
+
+		// Every packet but the last is full enough not to take the next stat.
+		int stat = lines.get(49).length() + 1;
+		assertTrue(this.writer.getPacketsSent() <= 50 * stat / (200 - stat) + 1);
+		assertEquals(50, this.writer.getMetricsSent());
+		assertEquals(bytes, this.writer.getBytesSent());
+	}
+
+	/**
+	 * A stat larger than a packet goes alone.
+	 */
+	@Test
+	public void testOversizedStat() throws Exception {
+		this.writer.addSetting(StatsDWriter.PACKET_SIZE, 20);
+		Query query = TestQueries.query(2, false);
+		this.writer.validateSetup(query);
+		this.writer.doWrite(query);
+
+		assertEquals("servers.localhost_2003.Test.Count_value:0|c", this.receive());
+		assertEquals("servers.localhost_2003.Test.Count(1)_value:1|c", this.receive());
+		assertEquals(2, this.writer.getPacketsSent());
+	}
+
+	/**
+	 * Streamed values are sent as doWrite would send them, once the run ends.
+	 * A run beginning before the previous one ended shares its packet.
+	 */
+	@Test
+	public void testStreaming() throws Exception {
+		Query query = TestQueries.query(3, true);
+		this.writer.validateSetup(query);
+
+		this.writer.begin(query);
+		this.writer.begin(query);
+		for (Result result : query.getResults()) {
+			MetricRef metric = new MetricRef(query, result.getClassName(), result.getTypeName());
+			metric.setAttributeName(result.getAttributeName());
+			for (Entry<String, Object> value : result.getValues().entrySet()) {
+				metric.setKey(value.getKey());
+				this.writer.onValue(metric, value.getValue(), result.getEpoch());
+			}
+		}
+		assertEquals(0, this.writer.getPacketsSent());
+		this.writer.end(query);
+		this.writer.end(query);
+
+		assertEquals("servers.localhost_2003.Test.Count_value:0|c\n" + "servers.localhost_2003.Test.Count(1)_value:1|c\n"
+				+ "servers.localhost_2003.Test.Count(2)_value:2|c", this.receive());
+		assertEquals(1, this.writer.getPacketsSent());
+		assertEquals(3, this.writer.getMetricsSent());
+	}
+
+	/**
+	 * The writes reuse the pooled packets: one is enough for sequential
+	 * writes, and threads writing together need no more than one each.
+	 */
+	@Test
+	public void testPacketsAreReused() throws Exception {
+		final Query query = TestQueries.query(10, false);
+		this.writer.validateSetup(query);
+		for (int i = 0; i < 10; i++) {
+			this.writer.doWrite(query);
+		}
+		assertEquals(1, this.writer.getPacketsAllocated());
+
+		final AtomicReference<Exception> error = new AtomicReference<Exception>();
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < 100; i++) {
+							StatsDWriterTests.this.writer.doWrite(query);
+						}
+					} catch (Exception e) {
+						error.set(e);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertNull(error.get());
+		assertTrue(this.writer.getPacketsAllocated() <= threads.length);
+	}
+
+	@Test(expected = ValidationException.class)
+	public void testInvalidPacketSize() throws Exception {
+		this.writer.addSetting(StatsDWriter.PACKET_SIZE, 0);
+		this.writer.validateSetup(new Query("test"));
+	}
+
+	private String receive() throws Exception {
+		byte[] buffer = new byte[65536];
+		DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+		try {
+			this.receiver.receive(packet);
+		} catch (SocketTimeoutException e) {
+			throw new AssertionError("No packet received");
+		}
+		return new String(buffer, 0, packet.getLength(), "UTF-8");
+	}
+}
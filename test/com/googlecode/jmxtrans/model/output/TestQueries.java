@@ -0,0 +1,43 @@
+package com.googlecode.jmxtrans.model.output;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.googlecode.jmxtrans.model.Query;
+import com.googlecode.jmxtrans.model.Result;
+import com.googlecode.jmxtrans.model.Server;
+
+/**
+ * Queries holding Results, as the writers get them, for the writer tests.
+ */
+final class TestQueries {
+
+	private TestQueries() {
+	}
+
+	/**
+	 * A query with size numeric values, plus as many that aren't if withText,
+	 * as if read from localhost:2003.
+	 */
+	static Query query(int size, boolean withText) throws Exception {
+		Server server = new Server("localhost", "2003");
+		Query query = new Query("test:type=Test");
+		server.addQuery(query);
+
+		List<Result> results = new ArrayList<Result>();
+		for (int i = 0; i < size; i++) {
+			Result result = new Result((i == 0) ? "Count" : "Count(" + i + ")");
+			result.setQuery(query);
+			result.setClassName("Test");
+			result.setTypeName("type=Test");
+			result.setEpoch(1234567000L);
+			result.addValue("value", i);
+			if (withText) {
+				result.addValue("name", "not a number");
+			}
+			results.add(result);
+		}
+		query.setResults(results);
+		return query;
+	}
+}
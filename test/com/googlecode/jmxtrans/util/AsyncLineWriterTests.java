@@ -0,0 +1,105 @@
+package com.googlecode.jmxtrans.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.read.ListAppender;
+
+/**
+ * Tests for {@link AsyncLineWriter}.
+ */
+public class AsyncLineWriterTests {
+
+	private static final String SEP = System.getProperty("line.separator");
+
+	private ListAppender<ILoggingEvent> appender;
+	private Logger logger;
+
+	@Before
+	public void setupTest() {
+		LoggerContext context = new LoggerContext();
+		this.appender = new ListAppender<ILoggingEvent>();
+		this.appender.setContext(context);
+		this.appender.start();
+		this.logger = context.getLogger("test");
+		this.logger.addAppender(this.appender);
+	}
+
+	/**
+	 * Lines that don't fit in the queue are dropped, the others are logged
+	 * together on stop.
+	 */
+	@Test
+	public void testDropAndDrain() throws Exception {
+		AsyncLineWriter writer = new AsyncLineWriter(this.logger, true, 2, AsyncLineWriter.Overflow.DROP, 1024, 60000);
+		writer.write("a");
+		writer.write("b");
+		writer.write("c");
+		assertEquals(1, writer.getLinesDropped());
+
+		writer.start();
+		writer.stop(5000);
+		assertEquals(1, this.appender.list.size());
+		assertEquals("a" + SEP + "b", this.appender.list.get(0).getMessage());
+		assertEquals(2, writer.getLinesWritten());
+	}
+
+	/**
+	 * Batches are logged once they reach flushSize, and lines are logged one
+	 * by one if they can't be joined.
+	 */
+	@Test
+	public void testFlushSize() throws Exception {
+		AsyncLineWriter writer = new AsyncLineWriter(this.logger, true, 10, AsyncLineWriter.Overflow.BLOCK, 3, 60000);
+		for (String line : new String[] { "a", "b", "c" }) {
+			writer.write(line);
+		}
+		writer.start();
+		writer.stop(5000);
+		assertEquals(2, this.appender.list.size());
+		assertEquals("a" + SEP + "b", this.appender.list.get(0).getMessage());
+		assertEquals("c", this.appender.list.get(1).getMessage());
+
+		this.appender.list.clear();
+		writer = new AsyncLineWriter(this.logger, false, 10, AsyncLineWriter.Overflow.BLOCK, 1024, 60000);
+		writer.write("a");
+		writer.write("b");
+		writer.start();
+		writer.stop(5000);
+		assertEquals(2, this.appender.list.size());
+	}
+
+	/**
+	 * Once stopped, writes don't wait for a thread that is gone: a blocked one
+	 * gives up, the next ones return at once, and the lines are counted as
+	 * dropped.
+	 */
+	@Test
+	public void testWriteAfterStop() throws Exception {
+		final AsyncLineWriter writer = new AsyncLineWriter(this.logger, true, 1, AsyncLineWriter.Overflow.BLOCK, 1024, 60000);
+		writer.write("a");
+		Thread blocked = new Thread() {
+			@Override
+			public void run() {
+				try {
+					writer.write("b");
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+		blocked.start();
+
+		writer.stop(5000);
+		blocked.join(5000);
+		assertFalse(blocked.isAlive());
+		writer.write("c");
+		assertEquals(2, writer.getLinesDropped());
+	}
+}
@@ -0,0 +1,72 @@
+package com.googlecode.jmxtrans.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link BoundedCache}.
+ */
+public class BoundedCacheTests {
+
+	/**
+	 * Going over maxSize drops the tenth of the entries used least recently.
+	 */
+	@Test
+	public void testEvictsLeastRecentlyUsed() {
+		BoundedCache<Integer, String> cache = new BoundedCache<Integer, String>(10);
+		for (int i = 0; i < 10; i++) {
+			cache.putIfAbsent(i, "v" + i);
+		}
+		assertEquals("v0", cache.get(0));
+		assertEquals("v0", cache.putIfAbsent(0, "other"));
+
+		cache.putIfAbsent(10, "v10");
+		assertEquals(9, cache.size());
+		assertEquals("v0", cache.get(0));
+		assertNull(cache.get(1));
+		assertNull(cache.get(2));
+		assertEquals("v3", cache.get(3));
+		assertEquals("v10", cache.get(10));
+	}
+
+	/**
+	 * Threads putting at the same time leave the cache at about maxSize.
+	 */
+	@Test
+	public void testConcurrentPuts() throws Exception {
+		final BoundedCache<Integer, Integer> cache = new BoundedCache<Integer, Integer>(100);
+		final CountDownLatch start = new CountDownLatch(1);
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			final int offset = t * 100000;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for (int i = 0; i < 10000; i++) {
+							cache.putIfAbsent(offset + i, i);
+							cache.get(offset + i / 2);
+						}
+					} catch (Throwable e) {
+						error.set(e);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertNull(error.get());
+		assertTrue(cache.size() <= 100 + threads.length);
+	}
+}
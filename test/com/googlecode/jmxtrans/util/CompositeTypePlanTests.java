@@ -0,0 +1,126 @@
+package com.googlecode.jmxtrans.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import javax.management.openmbean.TabularDataSupport;
+import javax.management.openmbean.TabularType;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.googlecode.jmxtrans.model.Query;
+import com.googlecode.jmxtrans.model.Result;
+import com.googlecode.jmxtrans.util.QueryExecutionTests.RecordingWriter;
+
+/**
+ * Flattens a GcInfo lookalike: a duration and a table of MemoryUsage per pool.
+ */
+public class CompositeTypePlanTests {
+
+	private static final ObjectName NAME = newObjectName("com.googlecode.jmxtrans.test:type=Gc");
+
+	private MBeanServer mbs;
+	private CompositeType usageType;
+	private CompositeType gcType;
+
+	@Before
+	public void setupTest() throws Exception {
+		this.usageType = new CompositeType("MemoryUsage", "usage", new String[] { "used", "max" }, new String[] { "used", "max" },
+				new OpenType<?>[] { SimpleType.LONG, SimpleType.LONG });
+		CompositeType rowType = new CompositeType("Row", "row", new String[] { "key", "value" }, new String[] { "key", "value" },
+				new OpenType<?>[] { SimpleType.STRING, this.usageType });
+		TabularType tableType = new TabularType("Table", "table", rowType, new String[] { "key" });
+		this.gcType = new CompositeType("GcInfo", "gc", new String[] { "duration", "memoryUsageAfterGc" }, new String[] { "duration",
+				"memoryUsageAfterGc" }, new OpenType<?>[] { SimpleType.LONG, tableType });
+
+		TabularDataSupport table = new TabularDataSupport(tableType);
+		table.put(new CompositeDataSupport(rowType, new String[] { "key", "value" }, new Object[] { "Eden", this.usage(10, 100) }));
+		table.put(new CompositeDataSupport(rowType, new String[] { "key", "value" }, new Object[] { "Old", this.usage(20, 200) }));
+		CompositeData gcInfo = new CompositeDataSupport(this.gcType, new String[] { "duration", "memoryUsageAfterGc" }, new Object[] {
+				Long.valueOf(5), table });
+
+		this.mbs = ManagementFactory.getPlatformMBeanServer();
+		this.mbs.registerMBean(new Gc(gcInfo), NAME);
+	}
+
+	@After
+	public void cleanupTest() throws Exception {
+		this.mbs.unregisterMBean(NAME);
+	}
+
+	@Test
+	public void testPlansAreShared() throws Exception {
+		CompositeTypePlan plan = CompositeTypePlan.forType(this.gcType);
+		assertSame(plan, CompositeTypePlan.forType(this.gcType));
+		assertEquals(2, plan.getItems().length);
+		assertEquals("duration", plan.getItems()[0].getKey());
+		assertEquals(true, plan.getItems()[1].isTabular());
+		assertEquals("LastGcInfo.memoryUsageAfterGc", plan.getItems()[1].getName("LastGcInfo"));
+	}
+
+	@Test
+	public void testNestedDataIsFlattened() throws Exception {
+		for (int run = 0; run < 2; run++) {
+			RecordingWriter writer = new RecordingWriter();
+			Query query = new Query(NAME.getCanonicalName(), "LastGcInfo");
+			query.addOutputWriter(writer);
+			JmxUtils.processQuery(this.mbs, query);
+
+			List<Result> results = writer.results;
+			assertEquals(3, results.size());
+			this.assertUsage(results.get(0), "LastGcInfo.memoryUsageAfterGc.Eden", 10, 100);
+			this.assertUsage(results.get(1), "LastGcInfo.memoryUsageAfterGc.Old", 20, 200);
+			assertEquals("LastGcInfo", results.get(2).getAttributeName());
+			assertEquals(5L, results.get(2).getValues().get("duration"));
+		}
+	}
+
+	private void assertUsage(Result result, String attributeName, long used, long max) {
+		assertEquals(attributeName, result.getAttributeName());
+		Map<String, Object> values = result.getValues();
+		assertEquals(2, values.size());
+		assertEquals(used, values.get("used"));
+		assertEquals(max, values.get("max"));
+	}
+
+	private CompositeData usage(long used, long max) throws Exception {
+		return new CompositeDataSupport(this.usageType, new String[] { "used", "max" }, new Object[] { used, max });
+	}
+
+	private static ObjectName newObjectName(String name) {
+		try {
+			return new ObjectName(name);
+		} catch (Exception ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
+	public interface GcMBean {
+		CompositeData getLastGcInfo();
+	}
+
+	public static class Gc implements GcMBean {
+		private final CompositeData lastGcInfo;
+
+		public Gc(CompositeData lastGcInfo) {
+			this.lastGcInfo = lastGcInfo;
+		}
+
+		public CompositeData getLastGcInfo() {
+			return lastGcInfo;
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package com.googlecode.jmxtrans.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Checks {@link ConsistentHashRing} against what carbon's ConsistentHashRing
+ * (carbon_ch, 100 replicas) gives for the same destinations.
+ */
+public class ConsistentHashRingTests {
+
+	/** Path, then the nodes carbon walks through, A, B and C below. */
+	private static final String[] CARBON = {
+			"servers.host0_1099.java_lang.Memory.HeapMemoryUsage_used", "CBA",
+			"servers.host1_1099.java_lang.Memory.HeapMemoryUsage_used", "CBA",
+			"servers.host2_1099.java_lang.Memory.HeapMemoryUsage_used", "BAC",
+			"servers.host3_1099.java_lang.Memory.HeapMemoryUsage_used", "CBA",
+			"servers.host4_1099.java_lang.Memory.HeapMemoryUsage_used", "BAC",
+			"servers.host5_1099.java_lang.Memory.HeapMemoryUsage_used", "BCA",
+			"servers.host6_1099.java_lang.Memory.HeapMemoryUsage_used", "CBA",
+			"servers.host7_1099.java_lang.Memory.HeapMemoryUsage_used", "BAC",
+			"servers.host8_1099.java_lang.Memory.HeapMemoryUsage_used", "ABC",
+			"servers.host9_1099.java_lang.Memory.HeapMemoryUsage_used", "ACB",
+			"servers.host10_1099.java_lang.Memory.HeapMemoryUsage_used", "ABC",
+			"servers.host11_1099.java_lang.Memory.HeapMemoryUsage_used", "BCA" };
+
+	@Test
+	public void testCarbonKey() {
+		assertEquals("('10.0.0.1', 'a')", ConsistentHashRing.carbonKey("10.0.0.1", "a"));
+		assertEquals("('10.0.0.2', None)", ConsistentHashRing.carbonKey("10.0.0.2", null));
+	}
+
+	@Test
+	public void testSameNodesAsCarbon() {
+		ConsistentHashRing<String> ring = new ConsistentHashRing<String>();
+		ring.addNode(ConsistentHashRing.carbonKey("10.0.0.1", "a"), "A");
+		ring.addNode(ConsistentHashRing.carbonKey("10.0.0.1", "b"), "B");
+		ring.addNode(ConsistentHashRing.carbonKey("10.0.0.2", null), "C");
+
+		List<String> nodes = new ArrayList<String>();
+		for (int i = 0; i < CARBON.length; i += 2) {
+			String path = CARBON[i];
+			String expected = CARBON[i + 1];
+			assertEquals(path, expected.substring(0, 1), ring.getNode(path));
+
+			ring.getNodes(path, 2, nodes);
+			assertEquals(path, expected.substring(0, 2), join(nodes));
+
+			ring.getNodes(path, 5, nodes);
+			assertEquals(path, expected, join(nodes));
+		}
+	}
+
+	private static String join(List<String> nodes) {
+		StringBuilder sb = new StringBuilder();
+		for (String node : nodes) {
+			sb.append(node);
+		}
+		return sb.toString();
+	}
+}
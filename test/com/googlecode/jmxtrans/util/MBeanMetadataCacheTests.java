@@ -0,0 +1,112 @@
+package com.googlecode.jmxtrans.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.Set;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.googlecode.jmxtrans.util.MBeanMetadataCache.MBeanMetadata;
+
+/**
+ * Tests for {@link MBeanMetadataCache} against the platform MBeanServer.
+ */
+public class MBeanMetadataCacheTests {
+
+	private MBeanServer mbs;
+	private ObjectName name;
+	private MBeanMetadataCache cache;
+
+	@Before
+	public void setupTest() throws Exception {
+		this.mbs = ManagementFactory.getPlatformMBeanServer();
+		this.name = new ObjectName("com.googlecode.jmxtrans.test:type=Dummy,name=metadata");
+		this.mbs.registerMBean(new Dummy(), this.name);
+		this.cache = new MBeanMetadataCache();
+		this.cache.bind(null, this.mbs);
+	}
+
+	@After
+	public void cleanupTest() throws Exception {
+		this.cache.unbind();
+		if (this.mbs.isRegistered(this.name)) {
+			this.mbs.unregisterMBean(this.name);
+		}
+	}
+
+	@Test
+	public void testHitAfterMiss() throws Exception {
+		assertTrue(this.cache.isSubscribed());
+
+		MBeanMetadata metadata = this.cache.get(this.mbs, this.name);
+		assertEquals(Dummy.class.getName(), metadata.getClassName());
+		assertEquals("name=metadata,type=Dummy", metadata.getTypeName());
+		assertEquals(1, metadata.getAttributeNames().size());
+		assertEquals("Value", metadata.getAttributeNames().get(0));
+
+		this.cache.get(this.mbs, this.name);
+		assertEquals(1, this.cache.getMisses());
+		assertEquals(1, this.cache.getHits());
+	}
+
+	@Test
+	public void testUnregistrationInvalidates() throws Exception {
+		this.cache.get(this.mbs, this.name);
+		assertEquals(1, this.cache.getSize());
+
+		this.mbs.unregisterMBean(this.name);
+		assertEquals(0, this.cache.getSize());
+	}
+
+	@Test
+	public void testPatternResolutionFollowsRegistrations() throws Exception {
+		ObjectName pattern = new ObjectName("com.googlecode.jmxtrans.test:type=Dummy,*");
+		Set<ObjectName> names = this.cache.queryNames(this.mbs, pattern);
+		assertEquals(1, names.size());
+		assertTrue(names.contains(this.name));
+
+		ObjectName other = new ObjectName("com.googlecode.jmxtrans.test:type=Dummy,name=other");
+		ObjectName unrelated = new ObjectName("com.googlecode.jmxtrans.test:type=Other,name=other");
+		this.mbs.registerMBean(new Dummy(), other);
+		this.mbs.registerMBean(new Dummy(), unrelated);
+		try {
+			names = this.cache.queryNames(this.mbs, pattern);
+			assertEquals(2, names.size());
+			assertTrue(names.contains(other));
+		} finally {
+			this.mbs.unregisterMBean(other);
+			this.mbs.unregisterMBean(unrelated);
+		}
+
+		names = this.cache.queryNames(this.mbs, pattern);
+		assertEquals(1, names.size());
+		assertEquals(1, this.cache.getResolutionMisses());
+		assertEquals(2, this.cache.getResolutionHits());
+	}
+
+	@Test
+	public void testPatternResolutionIsRefreshed() throws Exception {
+		ObjectName pattern = new ObjectName("com.googlecode.jmxtrans.test:type=Dummy,*");
+		this.cache.setRefreshInterval(-1);
+		this.cache.queryNames(this.mbs, pattern);
+		this.cache.queryNames(this.mbs, pattern);
+		assertEquals(2, this.cache.getResolutionMisses());
+	}
+
+	public interface DummyMBean {
+		int getValue();
+	}
+
+	public static class Dummy implements DummyMBean {
+		public int getValue() {
+			return 42;
+		}
+	}
+}
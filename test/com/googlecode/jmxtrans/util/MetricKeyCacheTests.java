@@ -0,0 +1,96 @@
+package com.googlecode.jmxtrans.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map.Entry;
+
+import org.junit.Test;
+
+import com.googlecode.jmxtrans.model.CollectionSnapshot;
+import com.googlecode.jmxtrans.model.Query;
+import com.googlecode.jmxtrans.model.Result;
+import com.googlecode.jmxtrans.model.Server;
+import com.googlecode.jmxtrans.util.MetricKeyCache.MetricName;
+
+/**
+ * Tests for {@link MetricKeyCache}.
+ */
+public class MetricKeyCacheTests {
+
+	private static final List<String> TYPE_NAMES = Arrays.asList("name");
+
+	/**
+	 * The names are the ones getKeyString gives, and the per-run copies of a
+	 * query hit the names of the previous runs.
+	 */
+	@Test
+	public void testHitAcrossRuns() throws Exception {
+		Server server = new Server("my.host", "1099");
+		Query query = new Query("java.lang:type=MemoryPool,name=*");
+		server.addQuery(query);
+		Result result = result(query, "Usage(max)");
+		Entry<String, Object> value = new AbstractMap.SimpleEntry<String, Object>("used", 10);
+
+		MetricKeyCache cache = new MetricKeyCache(10);
+		MetricName first = get(cache, query, result, value, "servers");
+		assertEquals(JmxUtils.getKeyString(query, result, value, TYPE_NAMES, "servers", MetricNameSanitizer.GRAPHITE), first.getName());
+		assertEquals(first.getName(), new String(first.getUtf8(), "UTF-8"));
+
+		Query copy = new CollectionSnapshot(server, query, Arrays.asList(result), 0).toQuery();
+		assertNotSame(query, copy);
+		assertSame(first, get(cache, copy, result, value, "servers"));
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+
+		// Anything the name is built from is part of the key.
+		assertEquals(JmxUtils.getKeyString(query, result, value, TYPE_NAMES, "other", MetricNameSanitizer.GRAPHITE),
+				get(cache, query, result, value, "other").getName());
+		assertEquals(JmxUtils.getKeyString2(query, result, value, TYPE_NAMES, null, MetricNameSanitizer.GRAPHITE),
+				cache.get(query, result.getClassName(), result.getTypeName(), result.getAttributeName(), value.getKey(), TYPE_NAMES, null,
+						MetricNameSanitizer.GRAPHITE, false).getName());
+		assertEquals(3, cache.getMisses());
+	}
+
+	/**
+	 * The least recently used names go first.
+	 */
+	@Test
+	public void testEviction() throws Exception {
+		Server server = new Server("my.host", "1099");
+		Query query = new Query("test:type=Test");
+		server.addQuery(query);
+		Entry<String, Object> value = new AbstractMap.SimpleEntry<String, Object>("value", 1);
+
+		MetricKeyCache cache = new MetricKeyCache(2);
+		Result a = result(query, "A");
+		Result b = result(query, "B");
+		MetricName nameA = get(cache, query, a, value, null);
+		get(cache, query, b, value, null);
+		assertSame(nameA, get(cache, query, a, value, null));
+
+		get(cache, query, result(query, "C"), value, null);
+		assertEquals(2, cache.getSize());
+		assertSame(nameA, get(cache, query, a, value, null));
+		get(cache, query, b, value, null);
+		assertEquals(2, cache.getHits());
+		assertEquals(4, cache.getMisses());
+	}
+
+	private static Result result(Query query, String attributeName) {
+		Result result = new Result(attributeName);
+		result.setQuery(query);
+		result.setClassName("sun.management.MemoryPoolImpl");
+		result.setTypeName("type=MemoryPool,name=PS Eden Space");
+		return result;
+	}
+
+	private static MetricName get(MetricKeyCache cache, Query query, Result result, Entry<String, Object> value, String rootPrefix) {
+		return cache.get(query, result.getClassName(), result.getTypeName(), result.getAttributeName(), value.getKey(), TYPE_NAMES, rootPrefix,
+				MetricNameSanitizer.GRAPHITE, true);
+	}
+}
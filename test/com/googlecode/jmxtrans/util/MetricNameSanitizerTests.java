@@ -0,0 +1,88 @@
+package com.googlecode.jmxtrans.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Map.Entry;
+
+import org.junit.Test;
+
+import com.googlecode.jmxtrans.model.Query;
+import com.googlecode.jmxtrans.model.Result;
+import com.googlecode.jmxtrans.model.Server;
+
+/**
+ * Tests for {@link MetricNameSanitizer}.
+ */
+public class MetricNameSanitizerTests {
+
+	private static final String[] NAMES = { "java.lang", "PS Eden Space", "a/b\"c'd", "HeapMemoryUsage.used", "Count(1)",
+			"host:port|c@0.5", "caf\u00e9 \u2014 x", "", "plain_name" };
+
+	/**
+	 * The chain of replace() cleanupStr used to be.
+	 */
+	static String oldCleanupStr(String name) {
+		if (name == null) {
+			return null;
+		}
+		String clean = name.replace(".", "_");
+		clean = clean.replace(" ", "");
+		clean = clean.replace("\"", "");
+		clean = clean.replace("'", "");
+		clean = clean.replace("/", "_");
+		return clean;
+	}
+
+	@Test
+	public void testDefaultIsCleanupStr() {
+		for (String name : NAMES) {
+			assertEquals(oldCleanupStr(name), MetricNameSanitizer.DEFAULT.sanitize(name));
+			assertEquals(oldCleanupStr(name), JmxUtils.cleanupStr(name));
+		}
+		assertEquals(null, JmxUtils.cleanupStr(null));
+		// Nothing to change, nothing copied.
+		assertSame(NAMES[8], MetricNameSanitizer.DEFAULT.sanitize(NAMES[8]));
+	}
+
+	@Test
+	public void testWriterRules() {
+		assertEquals("Count_1_", MetricNameSanitizer.GRAPHITE.sanitize("Count(1)"));
+		assertEquals("a_b_", MetricNameSanitizer.GRAPHITE.sanitizeVerbatim("a(b)"));
+		assertEquals("a.b", MetricNameSanitizer.GRAPHITE.sanitizeVerbatim("a.b"));
+
+		assertEquals("host_port_c_0_5", MetricNameSanitizer.STATSD.sanitize("host:port|c@0.5"));
+
+		assertEquals("PS_Eden_Space", MetricNameSanitizer.OPENTSDB.sanitize("PS Eden Space"));
+		assertEquals("java.lang/x-y_z", MetricNameSanitizer.OPENTSDB.sanitize("java.lang/x-y_z"));
+		assertEquals("caf\u00e9___x", MetricNameSanitizer.OPENTSDB.sanitize("caf\u00e9 \u2014 x"));
+	}
+
+	/**
+	 * getKeyString with the Graphite rules gives what getKeyString followed
+	 * by GraphiteWriter's replaceAll("[()]", "_") used to.
+	 */
+	@Test
+	public void testGraphiteKeyString() throws Exception {
+		Server server = new Server("my.host", "1099");
+		Query query = new Query("java.lang:type=MemoryPool,name=*");
+		server.addQuery(query);
+
+		Result result = new Result("Usage(max)");
+		result.setQuery(query);
+		result.setClassName("sun.management.MemoryPoolImpl");
+		result.setTypeName("type=MemoryPool,name=PS Eden Space");
+		Entry<String, Object> value = new AbstractMap.SimpleEntry<String, Object>("used", 10);
+
+		String expected = "servers.my_host_1099.sun_management_MemoryPoolImpl.PSEdenSpace.Usage_max__used";
+		assertEquals(expected, JmxUtils.getKeyString(query, result, value, Arrays.asList("name"), "servers", MetricNameSanitizer.GRAPHITE));
+		assertEquals(expected.replace("Usage_max_", "Usage(max)"), JmxUtils.getKeyString(query, result, value, Arrays.asList("name"), "servers"));
+
+		server.setAlias("alias(1)");
+		query.setResultAlias("Pool");
+		assertEquals("root_x_.alias_1_.Pool.PSEdenSpace.Usage_max__used",
+				JmxUtils.getKeyString(query, result, value, Arrays.asList("name"), "root(x)", MetricNameSanitizer.GRAPHITE));
+	}
+}
@@ -0,0 +1,334 @@
+package com.googlecode.jmxtrans.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.googlecode.jmxtrans.ResultSink;
+import com.googlecode.jmxtrans.SnapshotWriter;
+import com.googlecode.jmxtrans.model.CollectionSnapshot;
+import com.googlecode.jmxtrans.model.MetricRef;
+import com.googlecode.jmxtrans.model.Query;
+import com.googlecode.jmxtrans.model.Result;
+import com.googlecode.jmxtrans.model.Server;
+
+/**
+ * Runs queries against MBeans registered in the platform MBeanServer, counting
+ * the remote calls made.
+ */
+public class QueryExecutionTests {
+
+	private MBeanServer mbs;
+	private List<ObjectName> names = new ArrayList<ObjectName>();
+	private AtomicInteger getAttributesCalls = new AtomicInteger();
+	private MBeanServerConnection connection;
+
+	@Before
+	public void setupTest() throws Exception {
+		this.mbs = ManagementFactory.getPlatformMBeanServer();
+		for (int i = 0; i < 5; i++) {
+			ObjectName name = new ObjectName("com.googlecode.jmxtrans.test:type=Counter,name=c" + i);
+			this.mbs.registerMBean(new Counter(i), name);
+			this.names.add(name);
+		}
+		this.connection = countingConnection(this.mbs);
+	}
+
+	@After
+	public void cleanupTest() throws Exception {
+		for (ObjectName name : this.names) {
+			this.mbs.unregisterMBean(name);
+		}
+	}
+
+	@Test
+	public void testQueriesOnTheSameMBeanAreMerged() throws Exception {
+		Server server = new Server("localhost", "0");
+		RecordingWriter countWriter = new RecordingWriter();
+		RecordingWriter totalWriter = new RecordingWriter();
+
+		Query count = new Query("com.googlecode.jmxtrans.test:type=Counter,*", "Count");
+		count.addOutputWriter(countWriter);
+		server.addQuery(count);
+
+		Query total = new Query("com.googlecode.jmxtrans.test:type=Counter,*", "Total");
+		total.addOutputWriter(totalWriter);
+		server.addQuery(total);
+
+		JmxUtils.processQueriesForServer(this.connection, server);
+
+		assertEquals(5, this.getAttributesCalls.get());
+		assertEquals(5, countWriter.results.size());
+		assertEquals(5, totalWriter.results.size());
+		for (Result result : countWriter.results) {
+			assertEquals("Count", result.getAttributeName());
+		}
+		for (Result result : totalWriter.results) {
+			assertEquals("Total", result.getAttributeName());
+		}
+	}
+
+	@Test
+	public void testWritersGetReadOnlyCopies() throws Exception {
+		Server server = new Server("localhost", "0");
+		RecordingWriter writer = new RecordingWriter();
+		SnapshotRecordingWriter snapshotWriter = new SnapshotRecordingWriter();
+		Query query = new Query("com.googlecode.jmxtrans.test:type=Counter,*", "Count");
+		query.addOutputWriter(writer);
+		query.addOutputWriter(snapshotWriter);
+		server.addQuery(query);
+
+		JmxUtils.processQueriesForServer(this.connection, server);
+
+		assertEquals(0, snapshotWriter.writes);
+		assertSame(query, snapshotWriter.snapshot.getQuery());
+		Query copy = writer.query;
+		assertNotSame(query, copy);
+		assertTrue(copy.isReadOnly());
+		assertSame(copy, snapshotWriter.snapshot.toQuery());
+		assertSame(copy, writer.results.get(0).getQuery());
+		try {
+			copy.setResultAlias("changed");
+			fail();
+		} catch (UnsupportedOperationException e) {
+			// Expected.
+		}
+		assertNull(query.getResults());
+	}
+
+	@Test
+	public void testBadQueryIsSkipped() throws Exception {
+		Server server = new Server("localhost", "0");
+		Query bad = new Query("not an object name", "Count");
+		bad.addOutputWriter(new RecordingWriter());
+		server.addQuery(bad);
+		RecordingWriter writer = new RecordingWriter();
+		Query good = new Query("com.googlecode.jmxtrans.test:type=Counter,*", "Count");
+		good.addOutputWriter(writer);
+		server.addQuery(good);
+
+		try {
+			JmxUtils.processQueriesForServer(this.connection, server);
+			fail();
+		} catch (IllegalStateException e) {
+			// The error of the bad query, once the others are written.
+		}
+		assertEquals(1, writer.writes);
+		assertEquals(5, writer.results.size());
+	}
+
+	@Test
+	public void testParallelFetchKeepsTheOrder() throws Exception {
+		Server server = new Server("localhost", "0");
+		RecordingWriter sequentialWriter = new RecordingWriter();
+		Query sequential = new Query("com.googlecode.jmxtrans.test:type=Counter,*", "Count");
+		sequential.addOutputWriter(sequentialWriter);
+		server.addQuery(sequential);
+		JmxUtils.processQueriesForServer(this.connection, server);
+
+		server = new Server("localhost", "0");
+		RecordingWriter parallelWriter = new RecordingWriter();
+		Query parallel = new Query("com.googlecode.jmxtrans.test:type=Counter,*", "Count");
+		parallel.setFetchParallelism(3);
+		parallel.addOutputWriter(parallelWriter);
+		server.addQuery(parallel);
+		JmxUtils.processQueriesForServer(this.connection, server);
+
+		assertEquals(1, sequentialWriter.writes);
+		assertEquals(1, parallelWriter.writes);
+		assertEquals(5, parallelWriter.results.size());
+		for (int i = 0; i < 5; i++) {
+			assertEquals(sequentialWriter.results.get(i).getValues(), parallelWriter.results.get(i).getValues());
+		}
+	}
+
+	@Test
+	public void testServerExecutorIsReused() throws Exception {
+		Server server = new Server("localhost", "0");
+		RecordingWriter writer = new RecordingWriter();
+		Query query = new Query("com.googlecode.jmxtrans.test:type=Counter,*", "Count");
+		query.setFetchParallelism(2);
+		query.addOutputWriter(writer);
+		server.addQuery(query);
+		assertEquals(2, server.getQueryThreadCount());
+
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(2, 2, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<Runnable>(),
+				new NamedThreadFactory("test-query"));
+		server.setQueryExecutor(executor);
+		try {
+			JmxUtils.processQueriesForServer(this.connection, server);
+			JmxUtils.processQueriesForServer(this.connection, server);
+
+			assertEquals(2, executor.getLargestPoolSize());
+			assertFalse(executor.isShutdown());
+			assertEquals(2, writer.writes);
+			assertEquals(10, writer.results.size());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testStreamingWritersGetTheSameValues() throws Exception {
+		Server server = new Server("localhost", "0");
+		RecordingWriter listWriter = new RecordingWriter();
+		StreamingWriter mixedStream = new StreamingWriter();
+		Query mixed = new Query("com.googlecode.jmxtrans.test:type=Counter,*", "Count");
+		mixed.addOutputWriter(listWriter);
+		mixed.addOutputWriter(mixedStream);
+		server.addQuery(mixed);
+
+		StreamingWriter stream = new StreamingWriter();
+		Query streamed = new Query("com.googlecode.jmxtrans.test:type=Counter,*", "Total");
+		streamed.addOutputWriter(stream);
+		server.addQuery(streamed);
+
+		JmxUtils.processQueriesForServer(this.connection, server);
+
+		assertEquals(5, this.getAttributesCalls.get());
+		assertEquals(1, listWriter.writes);
+		assertEquals(5, listWriter.results.size());
+		assertEquals(0, mixedStream.writes);
+		assertEquals("[begin, Count=0, Count=1, Count=2, Count=3, Count=4, end]", this.sorted(mixedStream.calls).toString());
+
+		assertNull(streamed.getResults());
+		assertEquals("[begin, Total=0, Total=10, Total=20, Total=30, Total=40, end]", this.sorted(stream.calls).toString());
+		assertEquals("localhost_0.com_googlecode_jmxtrans_util_QueryExecutionTests$Counter.Total",
+				stream.lastKey);
+	}
+
+	/** The values sorted, between begin and end. */
+	private List<String> sorted(List<String> calls) {
+		List<String> values = new ArrayList<String>(calls.subList(1, calls.size() - 1));
+		Collections.sort(values);
+		values.add(0, calls.get(0));
+		values.add(calls.get(calls.size() - 1));
+		return values;
+	}
+
+	/**
+	 * Counts the getAttributes calls made on the MBeanServer.
+	 */
+	private MBeanServerConnection countingConnection(final MBeanServer target) {
+		return (MBeanServerConnection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { MBeanServerConnection.class },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if (method.getName().equals("getAttributes")) {
+							getAttributesCalls.incrementAndGet();
+						}
+						try {
+							return method.invoke(target, args);
+						} catch (InvocationTargetException e) {
+							throw e.getCause();
+						}
+					}
+				});
+	}
+
+	public interface CounterMBean {
+		long getCount();
+
+		long getTotal();
+	}
+
+	public static class Counter implements CounterMBean {
+		private final long value;
+
+		public Counter(long value) {
+			this.value = value;
+		}
+
+		public long getCount() {
+			return value;
+		}
+
+		public long getTotal() {
+			return value * 10;
+		}
+	}
+
+	/**
+	 * Keeps track of the values it is streamed.
+	 */
+	public static class StreamingWriter extends BaseOutputWriter implements ResultSink {
+		public final List<String> calls = new ArrayList<String>();
+		public String lastKey;
+		public int writes = 0;
+
+		public void begin(Query query) throws Exception {
+			this.calls.add("begin");
+		}
+
+		public void onValue(MetricRef metric, Object value, long epoch) throws Exception {
+			this.calls.add(metric.getKey() + "=" + value);
+			this.lastKey = JmxUtils.getKeyString(metric, this.getTypeNames(), null);
+		}
+
+		public void end(Query query) throws Exception {
+			this.calls.add("end");
+		}
+
+		public void doWrite(Query query) throws Exception {
+			this.writes++;
+		}
+
+		public void validateSetup(Query query) throws ValidationException {
+		}
+	}
+
+	/**
+	 * Keeps every Result it is asked to write.
+	 */
+	public static class RecordingWriter extends BaseOutputWriter {
+		public final List<Result> results = new ArrayList<Result>();
+		public int writes = 0;
+		public Query query;
+
+		public void doWrite(Query query) throws Exception {
+			synchronized (this.results) {
+				this.writes++;
+				this.query = query;
+				this.results.addAll(query.getResults());
+			}
+		}
+
+		public void validateSetup(Query query) throws ValidationException {
+		}
+	}
+
+	/**
+	 * Keeps the last snapshot it is handed.
+	 */
+	public static class SnapshotRecordingWriter extends RecordingWriter implements SnapshotWriter {
+		public CollectionSnapshot snapshot;
+
+		public void doWrite(CollectionSnapshot snapshot) throws Exception {
+			this.snapshot = snapshot;
+		}
+	}
+}
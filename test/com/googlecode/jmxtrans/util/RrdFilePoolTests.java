@@ -0,0 +1,88 @@
+package com.googlecode.jmxtrans.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.apache.commons.io.FileUtils;
+import org.jrobin.core.RrdDb;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link RrdFilePool}.
+ */
+public class RrdFilePoolTests {
+
+	private File dir;
+	private File template;
+
+	@Before
+	public void setupTest() throws Exception {
+		this.dir = File.createTempFile("rrd", "");
+		this.dir.delete();
+		this.template = writeTemplate(this.dir, "value");
+	}
+
+	@After
+	public void cleanupTest() throws Exception {
+		FileUtils.deleteDirectory(this.dir);
+	}
+
+	/**
+	 * A database stays open between requests, until it is the least recently
+	 * used of too many.
+	 */
+	@Test
+	public void testKeptOpen() throws Exception {
+		RrdFilePool pool = new RrdFilePool(1);
+		File a = new File(this.dir, "a/a.rrd");
+		RrdDb db = pool.request(a, this.template, 60);
+		assertTrue(a.exists());
+		pool.release(db, true);
+		assertSame(db, pool.request(new File(this.dir, "a/../a/a.rrd"), this.template, 60));
+		pool.release(db, true);
+
+		RrdDb other = pool.request(new File(this.dir, "b.rrd"), this.template, 60);
+		assertEquals(1, pool.getOpenFileCount());
+		assertTrue(db.isClosed());
+		pool.release(other, true);
+	}
+
+	/**
+	 * Databases in use are only closed once released.
+	 */
+	@Test
+	public void testCloseInUse() throws Exception {
+		RrdFilePool pool = new RrdFilePool(1);
+		File a = new File(this.dir, "a.rrd");
+		RrdDb db = pool.request(a, this.template, 60);
+		RrdDb other = pool.request(new File(this.dir, "b.rrd"), this.template, 60);
+		assertEquals(2, pool.getOpenFileCount());
+
+		pool.close(a);
+		assertTrue(!db.isClosed());
+		pool.release(db, true);
+		assertTrue(db.isClosed());
+		assertEquals(1, pool.getOpenFileCount());
+
+		pool.release(other, false);
+		assertTrue(other.isClosed());
+		assertNotSame(other, pool.request(new File(this.dir, "b.rrd"), this.template, 60));
+	}
+
+	/**
+	 * A template for a database with a single GAUGE.
+	 */
+	public static File writeTemplate(File dir, String dsName) throws Exception {
+		File template = new File(dir, "template.xml");
+		FileUtils.writeStringToFile(template, "<rrd_def><path>${database}</path><step>60</step>"
+				+ "<datasource><name>" + dsName + "</name><type>GAUGE</type><heartbeat>120</heartbeat><min>U</min><max>U</max></datasource>"
+				+ "<archive><cf>AVERAGE</cf><xff>0.5</xff><steps>1</steps><rows>10</rows></archive></rrd_def>");
+		return template;
+	}
+}
@@ -0,0 +1,70 @@
+package com.googlecode.jmxtrans.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link RrdSampleBuffer}.
+ */
+public class RrdSampleBufferTests {
+
+	/**
+	 * Due on size or on age, a sample in the same second replacing the
+	 * previous one.
+	 */
+	@Test
+	public void testDue() {
+		RrdSampleBuffer buffer = new RrdSampleBuffer(3, 10000);
+		assertFalse(buffer.add(100, values("1"), 100000));
+		assertFalse(buffer.add(100, values("2"), 100500));
+		assertFalse(buffer.add(101, values("3"), 101000));
+		assertTrue(buffer.add(102, values("4"), 102000));
+
+		List<RrdSampleBuffer.Sample> samples = buffer.drain();
+		assertEquals(3, samples.size());
+		assertEquals(100, samples.get(0).getTimestamp());
+		assertEquals("2", samples.get(0).getValues().get("ds"));
+		assertEquals(102, samples.get(2).getTimestamp());
+		assertEquals(0, buffer.size());
+
+		assertFalse(buffer.add(103, values("5"), 103000));
+		assertFalse(buffer.isDue(112999));
+		assertTrue(buffer.isDue(113000));
+	}
+
+	/**
+	 * The timer flushes a buffer that is due although no sample was added.
+	 */
+	@Test
+	public void testFlushWhenDue() throws Exception {
+		final RrdSampleBuffer buffer = new RrdSampleBuffer(10, 50);
+		final CountDownLatch flushed = new CountDownLatch(1);
+		buffer.add(100, values("1"), System.currentTimeMillis());
+		buffer.flushWhenDue(new Runnable() {
+			@Override
+			public void run() {
+				buffer.drain();
+				flushed.countDown();
+			}
+		});
+		try {
+			assertTrue(flushed.await(5, TimeUnit.SECONDS));
+			assertEquals(0, buffer.size());
+		} finally {
+			buffer.cancel();
+		}
+	}
+
+	private static Map<String, String> values(String value) {
+		return Collections.singletonMap("ds", value);
+	}
+}